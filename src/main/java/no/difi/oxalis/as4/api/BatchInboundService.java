@@ -0,0 +1,39 @@
+/*
+ * Copyright 2010-2017 Norwegian Agency for Public Management and eGovernment (Difi)
+ *
+ * Licensed under the EUPL, Version 1.1 or – as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ *
+ * You may not use this work except in compliance with the Licence.
+ *
+ * You may obtain a copy of the Licence at:
+ *
+ * https://joinup.ec.europa.eu/community/eupl/og_page/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+
+package no.difi.oxalis.as4.api;
+
+import no.difi.oxalis.api.inbound.InboundMetadata;
+import no.difi.oxalis.api.inbound.InboundService;
+
+import java.util.List;
+
+/**
+ * Optional extension of an {@link InboundService} receiving completed transmissions in batches. Used when completion
+ * events are written behind, allowing the statistics backend to store a batch in one operation.
+ */
+public interface BatchInboundService extends InboundService {
+
+    void complete(List<InboundMetadata> inboundMetadata);
+}
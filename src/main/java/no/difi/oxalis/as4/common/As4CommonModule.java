@@ -27,10 +27,12 @@ import com.google.inject.Provides;
 import com.google.inject.Singleton;
 import lombok.extern.slf4j.Slf4j;
 import no.difi.oxalis.api.header.HeaderParser;
+import no.difi.oxalis.api.persist.PersisterHandler;
 import no.difi.oxalis.api.settings.Settings;
 import no.difi.oxalis.as4.api.MessageIdGenerator;
 import no.difi.oxalis.as4.config.As4Conf;
 import no.difi.oxalis.as4.config.TrustStoreSettings;
+import no.difi.oxalis.as4.persist.SegmentedPersisterHandler;
 import no.difi.oxalis.as4.util.As4MessageFactory;
 import no.difi.oxalis.as4.util.PolicyService;
 import no.difi.oxalis.commons.guice.ImplLoader;
@@ -46,6 +48,7 @@ public class As4CommonModule extends OxalisModule {
     protected void configure() {
         bindTyped(MessageIdGenerator.class, DefaultMessageIdGenerator.class);
         bindTyped(HeaderParser.class, DummyHeaderParser.class);
+        bindTyped(PersisterHandler.class, SegmentedPersisterHandler.class);
         bind(As4MessageFactory.class);
         SettingsBuilder.with(binder(), TrustStoreSettings.class);
         bindSettings(As4Conf.class);
@@ -0,0 +1,124 @@
+package no.difi.oxalis.as4.common;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+import no.difi.oxalis.api.model.Direction;
+import no.difi.oxalis.api.settings.Settings;
+import no.difi.oxalis.api.timestamp.Timestamp;
+import no.difi.oxalis.api.timestamp.TimestampProvider;
+import no.difi.oxalis.as4.config.As4Conf;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Obtains timestamps from the configured {@link TimestampProvider}. When asynchronous timestamping is enabled,
+ * requests are queued and handled by worker threads, so messages do not wait for the timestamp authority. Each
+ * request is a separate call to the provider. When the queue is full, the provider is called by the requesting thread.
+ * Otherwise the provider is called directly and the returned future is already completed.
+ */
+@Slf4j
+@Singleton
+public class AsyncTimestampService implements Closeable {
+
+    private final TimestampProvider timestampProvider;
+    private final boolean async;
+    private final int threads;
+    private final int queueSize;
+
+    private ThreadPoolExecutor executor;
+
+    @Inject
+    public AsyncTimestampService(TimestampProvider timestampProvider, Settings<As4Conf> settings) {
+        this(timestampProvider,
+                Boolean.parseBoolean(settings.getString(As4Conf.TIMESTAMP_ASYNC)),
+                settings.getInt(As4Conf.TIMESTAMP_ASYNC_THREADS),
+                settings.getInt(As4Conf.TIMESTAMP_ASYNC_QUEUE_SIZE));
+    }
+
+    public AsyncTimestampService(TimestampProvider timestampProvider, boolean async, int threads, int queueSize) {
+        this.timestampProvider = timestampProvider;
+        this.async = async;
+        this.threads = Math.max(1, threads);
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    /**
+     * When true, messages carry a local timestamp and the trusted timestamp is obtained later.
+     */
+    public boolean isAsync() {
+        return async;
+    }
+
+    public CompletableFuture<Timestamp> generate(byte[] previous, Direction direction) {
+        TimestampRequest request = new TimestampRequest(previous, direction);
+
+        if (!async) {
+            request.run();
+        } else {
+            getExecutor().execute(request);
+        }
+
+        return request.future;
+    }
+
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            AtomicInteger counter = new AtomicInteger();
+            executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueSize),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "oxalis-as4-timestamp-" + counter.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    },
+                    // A full queue slows down the callers instead of growing without bound
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+
+        return executor;
+    }
+
+    /**
+     * Stops the worker threads. Requests still queued complete exceptionally, so their messages keep the local
+     * timestamp.
+     */
+    @Override
+    public synchronized void close() {
+        if (executor == null) {
+            return;
+        }
+
+        for (Runnable request : executor.shutdownNow()) {
+            ((TimestampRequest) request).future.completeExceptionally(
+                    new IllegalStateException("Timestamp service closed"));
+        }
+        executor = null;
+    }
+
+    private class TimestampRequest implements Runnable {
+
+        private final byte[] previous;
+        private final Direction direction;
+        private final CompletableFuture<Timestamp> future = new CompletableFuture<>();
+
+        private TimestampRequest(byte[] previous, Direction direction) {
+            this.previous = previous;
+            this.direction = direction;
+        }
+
+        @Override
+        public void run() {
+            try {
+                future.complete(timestampProvider.generate(previous, direction));
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -39,5 +39,157 @@ public enum As4Conf {
 
     @Path("oxalis.as4.type")
     @DefaultValue("peppol")
-    TYPE
+    TYPE,
+
+    @Path("oxalis.as4.inbound.max_content_length")
+    @DefaultValue("-1")
+    INBOUND_MAX_CONTENT_LENGTH,
+
+    @Path("oxalis.as4.inbound.max_attachment_count")
+    @DefaultValue("-1")
+    INBOUND_MAX_ATTACHMENT_COUNT,
+
+    @Path("oxalis.as4.inbound.max_attachment_size")
+    @DefaultValue("-1")
+    INBOUND_MAX_ATTACHMENT_SIZE,
+
+    @Path("oxalis.as4.inbound.max_decompressed_size")
+    @DefaultValue("-1")
+    INBOUND_MAX_DECOMPRESSED_SIZE,
+
+    @Path("oxalis.as4.inbound.max_compression_ratio")
+    @DefaultValue("-1")
+    INBOUND_MAX_COMPRESSION_RATIO,
+
+    @Path("oxalis.as4.inbound.store_compressed")
+    @DefaultValue("false")
+    INBOUND_STORE_COMPRESSED,
+
+    @Path("oxalis.as4.inbound.attachment_memory_threshold")
+    @DefaultValue("-1")
+    INBOUND_ATTACHMENT_MEMORY_THRESHOLD,
+
+    @Path("oxalis.as4.inbound.attachment_directory")
+    @DefaultValue("")
+    INBOUND_ATTACHMENT_DIRECTORY,
+
+    @Path("oxalis.as4.inbound.complete.write_behind")
+    @DefaultValue("false")
+    INBOUND_COMPLETE_WRITE_BEHIND,
+
+    @Path("oxalis.as4.inbound.complete.queue_size")
+    @DefaultValue("10000")
+    INBOUND_COMPLETE_QUEUE_SIZE,
+
+    @Path("oxalis.as4.inbound.complete.batch_size")
+    @DefaultValue("100")
+    INBOUND_COMPLETE_BATCH_SIZE,
+
+    @Path("oxalis.as4.inbound.complete.flush_interval")
+    @DefaultValue("1000")
+    INBOUND_COMPLETE_FLUSH_INTERVAL,
+
+    @Path("oxalis.as4.inbound.payload_directories")
+    @DefaultValue("")
+    INBOUND_PAYLOAD_DIRECTORIES,
+
+    @Path("oxalis.as4.inbound.content_directory")
+    @DefaultValue("")
+    INBOUND_CONTENT_DIRECTORY,
+
+    @Path("oxalis.as4.inbound.payload_threads")
+    @DefaultValue("1")
+    INBOUND_PAYLOAD_THREADS,
+
+    @Path("oxalis.as4.inbound.journal.directory")
+    @DefaultValue("")
+    INBOUND_JOURNAL_DIRECTORY,
+
+    @Path("oxalis.as4.inbound.journal.segment_size")
+    @DefaultValue("67108864")
+    INBOUND_JOURNAL_SEGMENT_SIZE,
+
+    @Path("oxalis.as4.inbound.journal.commit_window")
+    @DefaultValue("2000")
+    INBOUND_JOURNAL_COMMIT_WINDOW,
+
+    @Path("oxalis.as4.inbound.journal.persist_threads")
+    @DefaultValue("4")
+    INBOUND_JOURNAL_PERSIST_THREADS,
+
+    @Path("oxalis.as4.inbound.journal.persist_queue_size")
+    @DefaultValue("10000")
+    INBOUND_JOURNAL_PERSIST_QUEUE_SIZE,
+
+    @Path("oxalis.as4.inbound.deferred.directory")
+    @DefaultValue("")
+    INBOUND_DEFERRED_DIRECTORY,
+
+    @Path("oxalis.as4.inbound.deferred.max_size")
+    @DefaultValue("10485760")
+    INBOUND_DEFERRED_MAX_SIZE,
+
+    @Path("oxalis.as4.inbound.deferred.threads")
+    @DefaultValue("4")
+    INBOUND_DEFERRED_THREADS,
+
+    @Path("oxalis.as4.inbound.deferred.queue_size")
+    @DefaultValue("100")
+    INBOUND_DEFERRED_QUEUE_SIZE,
+
+    @Path("oxalis.as4.inbound.deferred.max_attempts")
+    @DefaultValue("3")
+    INBOUND_DEFERRED_MAX_ATTEMPTS,
+
+    @Path("oxalis.as4.persister.segmented.directory")
+    @DefaultValue("")
+    PERSISTER_SEGMENTED_DIRECTORY,
+
+    @Path("oxalis.as4.persister.segmented.inline_size")
+    @DefaultValue("65536")
+    PERSISTER_SEGMENTED_INLINE_SIZE,
+
+    @Path("oxalis.as4.persister.segmented.retention")
+    @DefaultValue("0")
+    PERSISTER_SEGMENTED_RETENTION,
+
+    @Path("oxalis.as4.persister.segmented.index_retention")
+    @DefaultValue("168")
+    PERSISTER_SEGMENTED_INDEX_RETENTION,
+
+    @Path("oxalis.as4.message_index.directory")
+    @DefaultValue("")
+    MESSAGE_INDEX_DIRECTORY,
+
+    @Path("oxalis.as4.receipt_archive.directory")
+    @DefaultValue("")
+    RECEIPT_ARCHIVE_DIRECTORY,
+
+    @Path("oxalis.as4.receipt_archive.block_size")
+    @DefaultValue("262144")
+    RECEIPT_ARCHIVE_BLOCK_SIZE,
+
+    @Path("oxalis.as4.receipt_archive.flush_interval")
+    @DefaultValue("1000")
+    RECEIPT_ARCHIVE_FLUSH_INTERVAL,
+
+    @Path("oxalis.as4.receipt_archive.threads")
+    @DefaultValue("4")
+    RECEIPT_ARCHIVE_THREADS,
+
+    @Path("oxalis.as4.receipt_archive.queue_size")
+    @DefaultValue("10000")
+    RECEIPT_ARCHIVE_QUEUE_SIZE,
+
+    @Path("oxalis.as4.timestamp.async")
+    @DefaultValue("false")
+    TIMESTAMP_ASYNC,
+
+    @Path("oxalis.as4.timestamp.async_threads")
+    @DefaultValue("4")
+    TIMESTAMP_ASYNC_THREADS,
+
+    @Path("oxalis.as4.timestamp.async_queue_size")
+    @DefaultValue("10000")
+    TIMESTAMP_ASYNC_QUEUE_SIZE
 }
@@ -7,4 +7,6 @@ class AS4MessageContextKey {
 
     static final String FIRST_PAYLOAD_PATH = "no.difi.oxalis.as4.first.payload.path";
     static final String FIRST_PAYLOAD_HEADER = "no.difi.oxalis.as4.first.payload.header";
+    static final String RECEIPT_CALLBACK = "no.difi.oxalis.as4.receipt.callback";
+    static final String RECEIPT_DISCARD = "no.difi.oxalis.as4.receipt.discard";
 }
@@ -1,9 +1,12 @@
 package no.difi.oxalis.as4.inbound;
 
 import com.google.inject.Inject;
+import no.difi.oxalis.api.settings.Settings;
+import no.difi.oxalis.as4.config.As4Conf;
 import no.difi.oxalis.as4.lang.OxalisAs4TransmissionException;
 import no.difi.oxalis.as4.util.PolicyService;
 import org.apache.cxf.Bus;
+import org.apache.cxf.attachment.AttachmentDeserializer;
 import org.apache.cxf.binding.soap.SoapMessage;
 import org.apache.cxf.binding.soap.SoapVersion;
 import org.apache.cxf.binding.soap.interceptor.CheckFaultInterceptor;
@@ -13,14 +16,12 @@ import org.apache.cxf.ext.logging.LoggingFeature;
 import org.apache.cxf.interceptor.AttachmentInInterceptor;
 import org.apache.cxf.interceptor.StaxInInterceptor;
 import org.apache.cxf.jaxws.EndpointImpl;
-import org.apache.cxf.jaxws.handler.soap.SOAPHandlerFaultInInterceptor;
 import org.apache.cxf.message.Message;
 import org.apache.cxf.transport.MultipleEndpointObserver;
 import org.apache.cxf.ws.policy.WSPolicyFeature;
 import org.apache.cxf.wsdl.interceptors.AbstractEndpointSelectionInterceptor;
 
 import javax.xml.ws.Endpoint;
-import java.util.Arrays;
 
 public class As4EndpointsPublisherImpl implements As4EndpointsPublisher {
 
@@ -31,14 +32,26 @@ public class As4EndpointsPublisherImpl implements As4EndpointsPublisher {
     private AbstractEndpointSelectionInterceptor endpointSelector;
 
     @Inject
-    private As4FaultInHandler as4FaultInHandler;
+    private As4FaultOutInterceptor as4FaultOutInterceptor;
 
     @Inject
     private As4Interceptor oxalisAs4Interceptor;
 
+    @Inject
+    private As4ValidationInterceptor as4ValidationInterceptor;
+
+    @Inject
+    private ReceiptCaptureInterceptor receiptCaptureInterceptor;
+
     @Inject
     private PolicyService policyService;
 
+    @Inject
+    private InboundLimits inboundLimits;
+
+    @Inject
+    private Settings<As4Conf> settings;
+
     @Override
     public EndpointImpl publish(Bus bus) {
         EndpointImpl endpoint = null;
@@ -54,19 +67,34 @@ public class As4EndpointsPublisherImpl implements As4EndpointsPublisher {
         endpoint.getServer().getEndpoint()
                 .put(As4EndpointSelector.ENDPOINT_NAME, As4EndpointSelector.OXALIS_AS4_ENDPOINT_NAME);
 
-        endpoint.getBinding().setHandlerChain(Arrays.asList(as4FaultInHandler, new MessagingHandler()));
         endpoint.getInInterceptors().add(oxalisAs4Interceptor);
+        endpoint.getInInterceptors().add(as4ValidationInterceptor);
+        endpoint.getOutInterceptors().add(receiptCaptureInterceptor);
+        endpoint.getOutFaultInterceptors().add(as4FaultOutInterceptor);
+
+        long attachmentMemoryThreshold = Long.parseLong(settings.getString(As4Conf.INBOUND_ATTACHMENT_MEMORY_THRESHOLD));
+        String attachmentDirectory = settings.getString(As4Conf.INBOUND_ATTACHMENT_DIRECTORY);
 
         MultipleEndpointObserver newMO = new MultipleEndpointObserver(bus) {
             @Override
             protected Message createMessage(Message message) {
-                return new SoapMessage(message);
+                SoapMessage soapMessage = new SoapMessage(message);
+
+                // Attachments are deserialized before the endpoint is selected, so limits must live on the message
+                inboundLimits.apply(soapMessage);
+                if (attachmentMemoryThreshold >= 0) {
+                    soapMessage.put(AttachmentDeserializer.ATTACHMENT_MEMORY_THRESHOLD, attachmentMemoryThreshold);
+                }
+                if (!attachmentDirectory.isEmpty()) {
+                    soapMessage.put(AttachmentDeserializer.ATTACHMENT_DIRECTORY, attachmentDirectory);
+                }
+
+                return soapMessage;
             }
         };
 
         newMO.getBindingInterceptors().add(new AttachmentInInterceptor());
         newMO.getBindingInterceptors().add(new StaxInInterceptor());
-        newMO.getBindingInterceptors().add(new SOAPHandlerFaultInInterceptor(endpoint.getBinding()));
         newMO.getBindingInterceptors().add(new ReadHeadersInterceptor(bus, (SoapVersion) null));
         newMO.getBindingInterceptors().add(new StartBodyInterceptor());
         newMO.getBindingInterceptors().add(new CheckFaultInterceptor());
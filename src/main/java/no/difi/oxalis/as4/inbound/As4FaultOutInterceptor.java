@@ -0,0 +1,187 @@
+package no.difi.oxalis.as4.inbound;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+import no.difi.oxalis.api.model.TransmissionIdentifier;
+import no.difi.oxalis.api.persist.PersisterHandler;
+import no.difi.oxalis.as4.lang.OxalisAs4Exception;
+import no.difi.oxalis.as4.util.AS4ErrorCode;
+import no.difi.oxalis.as4.util.As4MessageFactory;
+import no.difi.oxalis.as4.util.Constants;
+import no.difi.oxalis.as4.util.MessageId;
+import org.apache.cxf.binding.soap.SoapHeader;
+import org.apache.cxf.binding.soap.SoapMessage;
+import org.apache.cxf.binding.soap.interceptor.AbstractSoapInterceptor;
+import org.apache.cxf.binding.soap.interceptor.Soap11FaultOutInterceptor;
+import org.apache.cxf.binding.soap.interceptor.Soap12FaultOutInterceptor;
+import org.apache.cxf.interceptor.Fault;
+import org.apache.cxf.interceptor.Interceptor;
+import org.apache.cxf.message.Attachment;
+import org.apache.cxf.message.Exchange;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.phase.Phase;
+import org.apache.cxf.phase.PhaseInterceptor;
+import org.apache.wss4j.common.ext.WSSecurityException;
+import org.w3c.dom.Element;
+
+import javax.activation.DataHandler;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Converts faults caused by an {@link OxalisAs4Exception} into an ebMS error signal. The eb:Messaging header is
+ * added to the outgoing fault message and the SOAP Fault body writer is dropped, so no SAAJ message is needed.
+ */
+@Slf4j
+@Singleton
+public class As4FaultOutInterceptor extends AbstractSoapInterceptor {
+
+    // The SOAP Fault writers are package-private, and added to the chain by their enclosing interceptors
+    private static final List<Class<?>> FAULT_WRITER_OWNERS = Arrays.asList(
+            Soap11FaultOutInterceptor.class,
+            Soap12FaultOutInterceptor.class
+    );
+
+    private final As4MessageFactory as4MessageFactory;
+    private final PersisterHandler persisterHandler;
+
+    @Inject
+    public As4FaultOutInterceptor(As4MessageFactory as4MessageFactory, PersisterHandler persisterHandler) {
+        super(Phase.PRE_PROTOCOL);
+        this.as4MessageFactory = as4MessageFactory;
+        this.persisterHandler = persisterHandler;
+    }
+
+    @Override
+    public void handleMessage(SoapMessage message) throws Fault {
+        Message inMessage = Optional.ofNullable(message.getExchange())
+                .map(Exchange::getInMessage)
+                .orElse(null);
+
+        if (inMessage == null) {
+            return;
+        }
+
+        String conversationId = (String) inMessage.get("oxalis.as4.conversationId");
+        MessageId messageId = (MessageId) inMessage.get(MessageId.MESSAGE_ID);
+
+        Optional.ofNullable(message.getContent(Exception.class))
+                .map(Exception::getCause)
+                .map(t -> launderException(t, inMessage))
+                .filter(OxalisAs4Exception.class::isInstance)
+                .map(OxalisAs4Exception.class::cast)
+                .flatMap(as4Exception -> Optional.ofNullable(messageId)
+                        .map(id -> toErrorHeader(as4Exception, id, inMessage)))
+                .ifPresent(errorHeader -> {
+                    SoapHeader header = new SoapHeader(Constants.MESSAGING_QNAME, errorHeader);
+                    header.setMustUnderstand(true);
+                    message.getHeaders().add(header);
+
+                    message.put(Message.RESPONSE_CODE, 500);
+                    removeFaultWriter(message);
+
+                    log.debug("Converted default Fault into EBMS error message");
+                    log.info("Returned EBMS error for message '{}' in conversation '{}'", messageId.getValue(), conversationId);
+                });
+    }
+
+    private Element toErrorHeader(OxalisAs4Exception as4Exception, MessageId id, Message inMessage) {
+        Path firstPayloadPath = (Path) inMessage.get(AS4MessageContextKey.FIRST_PAYLOAD_PATH);
+        As4PayloadHeader firstPayloadHeader = (As4PayloadHeader) inMessage.get(AS4MessageContextKey.FIRST_PAYLOAD_HEADER);
+
+        if (firstPayloadPath != null) {
+            try {
+                persisterHandler.persist(TransmissionIdentifier.of(id.getValue()), firstPayloadHeader, firstPayloadPath, as4Exception);
+            } catch (Exception e) {
+                log.error("Unable to persist exception", e);
+            }
+        }
+
+        try {
+            return as4MessageFactory.createErrorHeader(id, as4Exception);
+        } catch (OxalisAs4Exception e) {
+            log.error("Unable to create EBMS error message", e);
+            return null;
+        }
+    }
+
+    private void removeFaultWriter(Message message) {
+        List<Interceptor<? extends Message>> faultWriters = new ArrayList<>();
+        for (Interceptor<? extends Message> interceptor : message.getInterceptorChain()) {
+            if (interceptor instanceof PhaseInterceptor
+                    && Phase.MARSHAL.equals(((PhaseInterceptor<?>) interceptor).getPhase())
+                    && FAULT_WRITER_OWNERS.contains(interceptor.getClass().getEnclosingClass())) {
+                faultWriters.add(interceptor);
+            }
+        }
+        faultWriters.forEach(message.getInterceptorChain()::remove);
+    }
+
+    public static Throwable launderException(Throwable t, Message inMessage) {
+        if (t instanceof WSSecurityException) {
+
+            boolean isCompressionError = (boolean) Optional.ofNullable(inMessage)
+                    .map(m -> m.getOrDefault("oxalis.as4.compressionErrorDetected", false))
+                    .orElse(false);
+            if (isCompressionError) {
+
+                return new OxalisAs4Exception(
+                        "Content cannot be compressed after signature/encryption", AS4ErrorCode.EBMS_0303);
+            }
+
+        }
+
+        if (t.getCause() instanceof OxalisAs4Exception) {
+            t = t.getCause();
+        }
+
+        return t;
+    }
+
+    public static boolean attachmentsIsCompressed(Collection<Attachment> attachments) {
+
+        return Optional.of(attachments)
+                .map(Collection::stream).orElseGet(Stream::empty)
+                .map(Attachment::getDataHandler)
+                .map(Optional::of)
+                .anyMatch(As4FaultOutInterceptor::isInputStreamZipped);
+    }
+
+    public static boolean isInputStreamZipped(Optional<DataHandler> dataHandler) {
+
+        try {
+
+            if (dataHandler.isPresent()) {
+                return canExtractZipEntry(dataHandler.get().getInputStream());
+            } else {
+                return false;
+            }
+
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean canExtractZipEntry(InputStream is) {
+        try {
+
+            byte[] testExtraction = new byte[20];
+            GZIPInputStream zis = new GZIPInputStream(is);
+            zis.read(testExtraction);
+
+        } catch (IOException e) {
+            return false;
+        }
+
+        return true;
+    }
+}
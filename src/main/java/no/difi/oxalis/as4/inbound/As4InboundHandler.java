@@ -5,168 +5,462 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import lombok.extern.slf4j.Slf4j;
 import no.difi.oxalis.api.header.HeaderParser;
-import no.difi.oxalis.api.inbound.InboundService;
-import no.difi.oxalis.api.lang.TimestampException;
+import no.difi.oxalis.api.lang.OxalisLoadingException;
 import no.difi.oxalis.api.lang.VerifierException;
 import no.difi.oxalis.api.model.Direction;
 import no.difi.oxalis.api.model.TransmissionIdentifier;
 import no.difi.oxalis.api.persist.PersisterHandler;
+import no.difi.oxalis.api.settings.Settings;
 import no.difi.oxalis.api.timestamp.Timestamp;
-import no.difi.oxalis.api.timestamp.TimestampProvider;
 import no.difi.oxalis.api.transmission.TransmissionVerifier;
+import no.difi.oxalis.as4.common.AsyncTimestampService;
+import no.difi.oxalis.as4.config.As4Conf;
 import no.difi.oxalis.as4.lang.OxalisAs4Exception;
 import no.difi.oxalis.as4.lang.OxalisAs4TransmissionException;
+import no.difi.oxalis.as4.persist.ContentAddressedPayloadStore;
+import no.difi.oxalis.as4.persist.MessageIndex;
+import no.difi.oxalis.as4.persist.ReceiptArchive;
+import no.difi.oxalis.as4.persist.SegmentedPersisterHandler;
+import no.difi.oxalis.as4.persist.ShardedPayloadStore;
 import no.difi.oxalis.as4.util.*;
 import no.difi.oxalis.commons.header.SbdhHeaderParser;
-import no.difi.oxalis.commons.io.PeekingInputStream;
 import no.difi.oxalis.commons.io.UnclosableInputStream;
 import no.difi.vefa.peppol.common.code.DigestMethod;
 import no.difi.vefa.peppol.common.model.*;
 import no.difi.vefa.peppol.sbdh.SbdReader;
 import no.difi.vefa.peppol.sbdh.lang.SbdhException;
+import org.apache.cxf.attachment.AttachmentDataSource;
 import org.apache.cxf.attachment.AttachmentUtil;
-import org.apache.cxf.helpers.CastUtils;
+import org.apache.cxf.binding.soap.SoapMessage;
+import org.apache.cxf.io.Transferable;
 import org.apache.cxf.message.Attachment;
-import org.apache.cxf.phase.PhaseInterceptorChain;
+import org.apache.cxf.transport.http.AbstractHTTPDestination;
 import org.apache.cxf.ws.policy.AssertionInfoMap;
 import org.apache.neethi.Policy;
+import org.apache.wss4j.common.WSS4JConstants;
 import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.*;
-import org.w3.xmldsig.ReferenceType;
-
-import javax.xml.soap.*;
+import org.w3c.dom.Element;
+
+import javax.activation.DataSource;
+import javax.servlet.http.HttpServletRequest;
+import javax.xml.namespace.QName;
+import javax.xml.soap.MimeHeader;
+import javax.xml.soap.SOAPException;
+import javax.xml.soap.SOAPMessage;
 import javax.xml.ws.handler.MessageContext;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.Charset;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.cert.X509Certificate;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipException;
 
 @Slf4j
 @Singleton
 public class As4InboundHandler {
 
-    private static final String REQUIRED_PAYLOAD_HREF_PREFIX = "cid:";
+    private static final QName SECURITY_QNAME = new QName(WSS4JConstants.WSSE_NS, WSS4JConstants.WSSE_LN);
+
     public static final String COMPRESSION_TYPE = "CompressionType";
 
     private final TransmissionVerifier transmissionVerifier;
     private final PersisterHandler persisterHandler;
-    private final TimestampProvider timestampProvider;
+    private final AsyncTimestampService timestampService;
     private final HeaderParser headerParser;
     private final As4MessageFactory as4MessageFactory;
     private final PolicyService policyService;
-    private final InboundService inboundService;
+    private final WriteBehindInboundService inboundService;
+    private final MetadataJournal metadataJournal;
+    private final DeferredMessageJournal deferredMessageJournal;
+    private final ShardedPayloadStore payloadStore;
+    private final ContentAddressedPayloadStore contentStore;
+    private final ReceiptArchive receiptArchive;
+    private final MessageIndex messageIndex;
+    private final long maxDecompressedSize;
+    private final long maxCompressionRatio;
+    private final boolean storeCompressed;
+    private final ExecutorService payloadExecutor;
 
     @Inject
-    public As4InboundHandler(TransmissionVerifier transmissionVerifier, PersisterHandler persisterHandler, TimestampProvider timestampProvider, HeaderParser headerParser, As4MessageFactory as4MessageFactory, PolicyService policyService, InboundService inboundService) {
+    public As4InboundHandler(TransmissionVerifier transmissionVerifier, PersisterHandler persisterHandler, AsyncTimestampService timestampService, HeaderParser headerParser, As4MessageFactory as4MessageFactory, PolicyService policyService, WriteBehindInboundService inboundService, MetadataJournal metadataJournal, DeferredMessageJournal deferredMessageJournal, ShardedPayloadStore payloadStore, ContentAddressedPayloadStore contentStore, ReceiptArchive receiptArchive, MessageIndex messageIndex, Settings<As4Conf> settings) {
         this.transmissionVerifier = transmissionVerifier;
         this.persisterHandler = persisterHandler;
-        this.timestampProvider = timestampProvider;
+        this.timestampService = timestampService;
         this.headerParser = headerParser;
         this.as4MessageFactory = as4MessageFactory;
         this.policyService = policyService;
         this.inboundService = inboundService;
+        this.metadataJournal = metadataJournal;
+        this.deferredMessageJournal = deferredMessageJournal;
+        this.payloadStore = payloadStore;
+        this.contentStore = contentStore;
+        this.receiptArchive = receiptArchive;
+        this.messageIndex = messageIndex;
+        this.maxDecompressedSize = Long.parseLong(settings.getString(As4Conf.INBOUND_MAX_DECOMPRESSED_SIZE));
+        this.maxCompressionRatio = Long.parseLong(settings.getString(As4Conf.INBOUND_MAX_COMPRESSION_RATIO));
+        this.storeCompressed = Boolean.parseBoolean(settings.getString(As4Conf.INBOUND_STORE_COMPRESSED));
+
+        validatePayloadStorage();
+        this.payloadExecutor = createPayloadExecutor(settings.getInt(As4Conf.INBOUND_PAYLOAD_THREADS));
+    }
+
+    /**
+     * Payloads are stored in one place only, settings selecting more than one are rejected rather than one of them
+     * being ignored.
+     */
+    private void validatePayloadStorage() {
+        if (contentStore.isEnabled() && payloadStore.isEnabled()) {
+            throw new OxalisLoadingException("Settings oxalis.as4.inbound.content_directory and "
+                    + "oxalis.as4.inbound.payload_directories can not be combined");
+        }
+
+        if ((contentStore.isEnabled() || payloadStore.isEnabled())
+                && persisterHandler instanceof SegmentedPersisterHandler) {
+            throw new OxalisLoadingException("The segmented persister stores payloads itself, settings "
+                    + "oxalis.as4.inbound.content_directory and oxalis.as4.inbound.payload_directories "
+                    + "can not be used with it");
+        }
+    }
+
+    private ExecutorService createPayloadExecutor(int threads) {
+        if (threads <= 1) {
+            return null;
+        }
+
+        // The Oxalis default persister writes all payloads of a message to the same file
+        if (!contentStore.isEnabled() && !payloadStore.isEnabled()
+                && !(persisterHandler instanceof SegmentedPersisterHandler)) {
+            throw new OxalisLoadingException("Setting oxalis.as4.inbound.payload_threads above 1 requires "
+                    + "oxalis.as4.inbound.payload_directories, oxalis.as4.inbound.content_directory "
+                    + "or the segmented persister");
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "oxalis-as4-payload-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Hands metadata journaled before a restart, but never received by the persister, to the persister, and processes
+     * deferred messages left unprocessed. Called once on startup, before messages are received.
+     */
+    public void recover() {
+        // Replayed before deferred messages are processed, which journal metadata of their own
+        if (metadataJournal.isEnabled()) {
+            try {
+                List<MetadataJournal.Entry> unpersisted = metadataJournal.readUnpersisted();
+                if (!unpersisted.isEmpty()) {
+                    log.info("Persisting metadata of {} journaled message(s)", unpersisted.size());
+                }
+
+                for (MetadataJournal.Entry entry : unpersisted) {
+                    try {
+                        persistMetadata(entry.toMetadata(),
+                                entry.getPayloadPath() != null ? Paths.get(entry.getPayloadPath()) : null, null);
+                    } catch (UncheckedIOException e) {
+                        // Kept in the journal, replayed again on next startup
+                        log.error("Unable to persist journaled metadata of message '{}'", entry.getTransmissionIdentifier(), e);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read metadata journal", e);
+            }
+        }
+
+        // Deferred messages keep the timestamp journaled with them
+        deferredMessageJournal.recover(message -> processDeferred(message,
+                CompletableFuture.completedFuture(message.getTimestamp())), this::deadLetter);
     }
 
-    public SOAPMessage handle(SOAPMessage request, MessageContext messageContext) throws OxalisAs4Exception {
-        SOAPHeader soapHeader = getSoapHeader(request);
-        Timestamp timestamp = getTimestamp(soapHeader);
-        Iterator<AttachmentPart> attachments = CastUtils.cast(request.getAttachments());
+    /**
+     * Stops the threads persisting payloads in parallel. Called once on shutdown, after messages are no longer
+     * received.
+     */
+    public void close() {
+        if (payloadExecutor != null) {
+            payloadExecutor.shutdown();
+        }
+    }
+
+    public SOAPMessage handle(SoapMessage request, MessageContext messageContext) throws OxalisAs4Exception {
+        SecurityHeader securityHeader = getSecurityHeader(request);
+        CompletableFuture<Timestamp> trustedTimestamp =
+                timestampService.generate(securityHeader.getSignatureValue(), Direction.IN);
+        Timestamp timestamp = getTimestamp(trustedTimestamp);
+        Collection<Attachment> attachments = request.getAttachments();
 
         // Organize input data
-        UserMessage userMessage = SOAPHeaderParser.getUserMessage(soapHeader);
+        UserMessage userMessage = getUserMessage(request);
 
         As4EnvelopeHeader envelopeHeader = parseAs4EnvelopeHeader(userMessage);
 
         TransmissionIdentifier messageId = TransmissionIdentifier.of(envelopeHeader.getMessageId());
 
-        validateMessageId(messageId.getIdentifier()); // Validate UserMessage
-        validatePayloads(userMessage.getPayloadInfo()); // Validate Payloads
-
-        List<ReferenceType> referenceList = SOAPHeaderParser.getReferenceListFromSignedInfo(soapHeader);
-        ProsessingContext prosessingContext = new ProsessingContext(timestamp, referenceList);
+        ProsessingContext prosessingContext = new ProsessingContext(timestamp, securityHeader.getReferenceList());
 
         // Prepare response
         SOAPMessage response = as4MessageFactory.createReceiptMessage(userMessage, prosessingContext);
 
         if (!isPingMessage(userMessage)) {
-            // Inform Backend
+            HttpServletRequest httpRequest = (HttpServletRequest) messageContext.get(AbstractHTTPDestination.HTTP_REQUEST);
 
-            // Take a copy of the response so that we can persist it as metadata/proof
-            byte[] copyOfReceipt = copyReceipt(response);
+            if (httpRequest != null && deferredMessageJournal.accepts(httpRequest.getContentLengthLong())) {
+                // The receipt is sent once the message is durable, processing continues afterwards
+                DeferredMessage deferredMessage = createDeferredMessage(messageId, timestamp, securityHeader, userMessage, attachments);
 
-            // Handle payload
-            LinkedHashMap<InputStream, As4PayloadHeader> payloads = parseAttachments(attachments, userMessage);
+                Consumer<byte[]> receiptCallback = signedReceipt -> defer(deferredMessage
+                        .withSignedReceipt(signedReceipt)
+                        .withTimestamp(currentTimestamp(timestamp, trustedTimestamp)), trustedTimestamp);
 
-            List<Path> paths = new ArrayList<>();
-            for (Map.Entry<InputStream, As4PayloadHeader> payload : payloads.entrySet()) {
-                validateAttachmentHeader(payload.getValue());
+                request.getExchange().put(AS4MessageContextKey.RECEIPT_CALLBACK, receiptCallback);
+            } else {
+                Function<byte[], CompletableFuture<Void>> processReceipt = processUserMessage(
+                        userMessage, envelopeHeader, attachments, securityHeader, timestamp, trustedTimestamp, messageContext);
+
+                Consumer<byte[]> receiptCallback = signedReceipt -> awaitMetadata(processReceipt, signedReceipt, messageId);
 
-                // Persist payload
-                paths.add(persistPayload(payload.getKey(), payload.getValue(), messageId));
+                request.getExchange().put(AS4MessageContextKey.RECEIPT_CALLBACK, receiptCallback);
             }
+        }
+
+        // Send response
+        Policy policy = null;
+        try {
+            policy = policyService.getPolicy();
+        } catch (OxalisAs4TransmissionException e) {
+            throw new OxalisAs4Exception("Could not get policy", e, AS4ErrorCode.EBMS_0202);
+        }
 
-            Path firstPayloadPath = paths.get(0);
+        try {
+            response.setProperty(AssertionInfoMap.class.getName(), new AssertionInfoMap(policy));
+            response.saveChanges();
+        } catch (SOAPException e) {
+            throw new OxalisAs4Exception("Error persisting AS4 metadata", e, AS4ErrorCode.EBMS_0202);
+        }
+
+        return response;
+    }
+
+    /**
+     * Persists the payloads of the message, returning the function persisting the metadata once the signed receipt
+     * is available.
+     */
+    private Function<byte[], CompletableFuture<Void>> processUserMessage(UserMessage userMessage, As4EnvelopeHeader envelopeHeader, Collection<Attachment> attachments, SecurityHeader securityHeader, Timestamp timestamp, CompletableFuture<Timestamp> trustedTimestamp, MessageContext messageContext) throws OxalisAs4Exception {
+        TransmissionIdentifier messageId = TransmissionIdentifier.of(envelopeHeader.getMessageId());
+
+        // Handle payload
+        LinkedHashMap<InputStream, As4PayloadHeader> payloads = parseAttachments(attachments, userMessage);
+
+        List<Path> paths = persistPayloads(payloads, messageId);
+
+        Path firstPayloadPath = paths.get(0);
+        As4PayloadHeader firstHeader = payloads.entrySet().iterator().next().getValue();
+        if (messageContext != null) {
             messageContext.put(AS4MessageContextKey.FIRST_PAYLOAD_PATH, firstPayloadPath);
-            messageContext.put(AS4MessageContextKey.FIRST_PAYLOAD_HEADER, payloads.values().iterator().next());
+            messageContext.put(AS4MessageContextKey.FIRST_PAYLOAD_HEADER, firstHeader);
+            messageContext.put(AS4MessageContextKey.RECEIPT_DISCARD, (Consumer<Exception>) cause ->
+                    discardPayloads(messageId, firstHeader, paths, messageContext, cause));
+        }
 
-            // Persist Metadata
-            As4PayloadHeader firstHeader = payloads.entrySet().iterator().next().getValue();
-            String firstAttachmentId = envelopeHeader.getPayloadCIDs().get(0);
-            Digest firstAttachmentDigest = Digest.of(DigestMethod.SHA256, SOAPHeaderParser.getAttachmentDigest(firstAttachmentId, soapHeader));
+        // Persist Metadata
+        String firstAttachmentId = envelopeHeader.getPayloadCIDs().get(0);
+        Digest firstAttachmentDigest = Digest.of(DigestMethod.SHA256, securityHeader.getAttachmentDigest(firstAttachmentId));
 
-            X509Certificate senderCertificate = getSenderCertificate(soapHeader);
+        X509Certificate senderCertificate = securityHeader.getSenderCertificate();
 
-            As4InboundMetadata as4InboundMetadata = new As4InboundMetadata(
+        // Payloads stored as received are only decompressed on the side, record what the content was
+        InputStream firstPayload = payloads.keySet().iterator().next();
+        Digest decompressedDigest = null;
+        long decompressedSize = -1;
+        if (firstPayload instanceof GzipPassThroughInputStream) {
+            GzipPassThroughInputStream passThrough = (GzipPassThroughInputStream) firstPayload;
+            decompressedDigest = Digest.of(DigestMethod.SHA256, passThrough.getDecompressedDigest());
+            decompressedSize = passThrough.getDecompressedSize();
+        }
+        Digest firstDecompressedDigest = decompressedDigest;
+        long firstDecompressedSize = decompressedSize;
+
+        // The signed receipt is captured by ReceiptCaptureInterceptor and held back until the metadata is persisted
+        // as proof, or journaled when the metadata journal is enabled
+        return signedReceipt -> {
+            Function<Timestamp, As4InboundMetadata> metadata = metadataTimestamp -> new As4InboundMetadata(
                     messageId,
                     userMessage.getCollaborationInfo().getConversationId(),
                     firstHeader,
-                    timestamp,
+                    metadataTimestamp,
                     TransportProfile.AS4,
                     firstAttachmentDigest,
                     senderCertificate,
-                    copyOfReceipt,
-                    envelopeHeader);
-
-            try {
-                persisterHandler.persist(as4InboundMetadata, firstPayloadPath);
-            } catch (IOException e) {
-                throw new OxalisAs4Exception("Error persisting AS4 metadata", e, AS4ErrorCode.EBMS_0202);
+                    signedReceipt,
+                    envelopeHeader,
+                    firstDecompressedDigest,
+                    firstDecompressedSize);
+
+            Supplier<CompletableFuture<Void>> persist = () -> persistMetadata(metadata, timestamp, trustedTimestamp,
+                    firstPayloadPath, userMessage.getMessageInfo().getRefToMessageId(), messageId);
+
+            if (metadataJournal.isEnabled()) {
+                // The receipt is sent once the metadata is durable, the journal replays it should persisting fail
+                journalMetadata(metadata.apply(currentTimestamp(timestamp, trustedTimestamp)), firstPayloadPath);
+                metadataJournal.persist(messageId, persist);
+                return CompletableFuture.completedFuture(null);
             }
 
-            // Persist statistics
-            inboundService.complete(as4InboundMetadata);
+            return persist.get();
+        };
+    }
+
+    /**
+     * Persists the metadata with the trusted timestamp when available. Otherwise the metadata is persisted with the
+     * local timestamp right away, and the persister receives it again with the trusted timestamp once available.
+     */
+    private CompletableFuture<Void> persistMetadata(Function<Timestamp, As4InboundMetadata> metadata, Timestamp timestamp, CompletableFuture<Timestamp> trustedTimestamp, Path firstPayloadPath, String refToMessageId, TransmissionIdentifier messageId) {
+        if (trustedTimestamp.isDone()) {
+            return trustedTimestamp
+                    .handle((trusted, e) -> withTrustedTimestamp(timestamp, trusted, e, messageId))
+                    .thenCompose(metadataTimestamp -> archiveReceipts(metadata.apply(metadataTimestamp)))
+                    .thenAccept(archived -> persistMetadata(archived, firstPayloadPath, refToMessageId));
         }
 
-        // Send response
-        Policy policy = null;
+        CompletableFuture<Void> persisted = archiveReceipts(metadata.apply(timestamp))
+                .thenAccept(archived -> persistMetadata(archived, firstPayloadPath, refToMessageId));
+
+        persisted.thenCompose(result -> trustedTimestamp)
+                .thenCompose(trusted -> archiveReceipts(
+                        metadata.apply(withTrustedTimestamp(timestamp, trusted, null, messageId))))
+                .thenAccept(archived -> updateMetadata(archived, firstPayloadPath))
+                .whenComplete((result, e) -> {
+                    if (e != null) {
+                        log.error("Unable to add trusted timestamp to metadata of message '{}'", messageId, e);
+                    }
+                });
+
+        return persisted;
+    }
+
+    /**
+     * Persists the metadata of the message, called by ReceiptCaptureInterceptor before the receipt is written. A
+     * failure is answered with an ebMS error instead of the receipt, so the sender retries the message.
+     */
+    private void awaitMetadata(Function<byte[], CompletableFuture<Void>> processReceipt, byte[] signedReceipt, TransmissionIdentifier messageId) {
         try {
-            policy = policyService.getPolicy();
-        } catch (OxalisAs4TransmissionException e) {
-            throw new OxalisAs4Exception("Could not get policy", e, AS4ErrorCode.EBMS_0202);
+            processReceipt.apply(signedReceipt).join();
+        } catch (CompletionException | UncheckedIOException e) {
+            String message = "Error persisting AS4 metadata for message '" + messageId + "'";
+            throw new UncheckedIOException(new IOException(message,
+                    new OxalisAs4Exception(message, e.getCause(), AS4ErrorCode.EBMS_0202)));
         }
+    }
+
+    /**
+     * Hands the payloads of a message whose receipt is not sent to the persister along with the cause, the way
+     * As4FaultOutInterceptor does for faults raised before the receipt is written. The sender retries the message.
+     */
+    private void discardPayloads(TransmissionIdentifier messageId, As4PayloadHeader firstHeader, List<Path> paths, MessageContext messageContext, Exception cause) {
+        // Handed over here already, also when the fault is turned into an ebMS error
+        messageContext.remove(AS4MessageContextKey.FIRST_PAYLOAD_PATH);
+        messageContext.remove(AS4MessageContextKey.FIRST_PAYLOAD_HEADER);
+
+        log.warn("Receipt of message '{}' not sent, discarding its payloads", messageId);
 
         try {
-            response.setProperty(AssertionInfoMap.class.getName(), new AssertionInfoMap(policy));
-            response.saveChanges();
-        } catch (SOAPException e) {
-            throw new OxalisAs4Exception("Error persisting AS4 metadata", e, AS4ErrorCode.EBMS_0202);
+            persisterHandler.persist(messageId, firstHeader, paths.get(0), cause);
+        } catch (RuntimeException e) {
+            log.error("Unable to persist exception of message '{}'", messageId, e);
         }
 
-        return response;
+        deletePayloads(paths.subList(1, paths.size()), messageId);
     }
 
-    private X509Certificate getSenderCertificate(SOAPHeader soapHeader) {
+    private DeferredMessage createDeferredMessage(TransmissionIdentifier messageId, Timestamp timestamp, SecurityHeader securityHeader, UserMessage userMessage, Collection<Attachment> attachments) throws OxalisAs4Exception {
         try {
-            return SOAPHeaderParser.getSenderCertificate(soapHeader);
+            return DeferredMessage.of(messageId, timestamp, securityHeader, userMessage, attachments);
+        } catch (IOException e) {
+            throw new OxalisAs4Exception("Could not get attachment input stream", e);
+        }
+    }
+
+    private void defer(DeferredMessage deferredMessage, CompletableFuture<Timestamp> trustedTimestamp) {
+        try {
+            deferredMessageJournal.append(deferredMessage);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error journaling AS4 message '"
+                    + deferredMessage.getTransmissionIdentifier() + "'", e);
+        }
+
+        deferredMessageJournal.process(deferredMessage, message -> processDeferred(message, trustedTimestamp),
+                this::deadLetter);
+    }
+
+    private CompletableFuture<Void> processDeferred(DeferredMessage deferredMessage, CompletableFuture<Timestamp> trustedTimestamp) {
+        UserMessage userMessage = deferredMessage.getUserMessage();
+
+        try {
+            return processUserMessage(userMessage, parseAs4EnvelopeHeader(userMessage),
+                    deferredMessage.getAttachments(), deferredMessage.getSecurityHeader(),
+                    deferredMessage.getTimestamp(), trustedTimestamp, null)
+                    .apply(deferredMessage.getSignedReceipt());
         } catch (OxalisAs4Exception e) {
-            return null;
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /**
+     * Hands a deferred message given up to the persister: the first payload as received, along with the exception.
+     * The SBDH may be what failed, so the header is taken from the message properties.
+     */
+    private void deadLetter(DeferredMessage deferredMessage, Throwable cause) {
+        TransmissionIdentifier messageId = deferredMessage.getTransmissionIdentifier();
+        if (deferredMessage.getAttachments().isEmpty()) {
+            return;
         }
+
+        Map<String, String> properties = parseAs4EnvelopeHeader(deferredMessage.getUserMessage()).getMessageProperties();
+        Header header = new Header()
+                .sender(ParticipantIdentifier.of(properties.getOrDefault("originalSender", "unknown")))
+                .receiver(ParticipantIdentifier.of(properties.getOrDefault("finalRecipient", "unknown")));
+        Exception exception = cause instanceof Exception ? (Exception) cause : new IllegalStateException(cause);
+
+        try (InputStream inputStream = deferredMessage.getAttachments().get(0).getDataHandler().getInputStream()) {
+            Path payloadPath = persisterHandler.persist(messageId, header, inputStream);
+            persisterHandler.persist(messageId, header, payloadPath, exception);
+        } catch (IOException e) {
+            log.error("Unable to persist failed deferred message '{}'", messageId, e);
+        }
+    }
+
+    private UserMessage getUserMessage(SoapMessage request) throws OxalisAs4Exception {
+        // Unmarshalled by As4Interceptor before security processing
+        return Optional.ofNullable(request.get(UserMessage.class))
+                .orElseThrow(() -> new OxalisAs4Exception("No UserMessage present in header"));
+    }
+
+    private SecurityHeader getSecurityHeader(SoapMessage request) throws OxalisAs4Exception {
+        org.apache.cxf.headers.Header header = request.getHeader(SECURITY_QNAME);
+
+        if (header == null || !(header.getObject() instanceof Element)) {
+            throw new OxalisAs4Exception("No Security header present in message");
+        }
+
+        return SecurityHeaderReader.read((Element) header.getObject());
     }
 
     private boolean isPingMessage(UserMessage userMessage) {
@@ -189,114 +483,85 @@ public class As4InboundHandler {
                 ).orElse(false);
     }
 
-    public static void validatePayloads(PayloadInfo payloadInfo) throws OxalisAs4Exception {
-        List<String> externalPayloads = payloadInfo.getPartInfo().stream()
-                .map(PartInfo::getHref)
-                .filter(href -> !href.startsWith(REQUIRED_PAYLOAD_HREF_PREFIX))
-                .collect(Collectors.toList());
-
-        if (!externalPayloads.isEmpty()) {
-            String errorMessage = "Invalid PayloadInfo. Href(s) detected with \"external\" source: " + externalPayloads;
-            log.debug(errorMessage);
-
-            throw new OxalisAs4Exception(
-                    errorMessage,
-                    AS4ErrorCode.EBMS_0009
-            );
+    private Timestamp currentTimestamp(Timestamp timestamp, CompletableFuture<Timestamp> trustedTimestamp) {
+        if (trustedTimestamp.isDone() && !trustedTimestamp.isCompletedExceptionally()) {
+            return trustedTimestamp.join();
         }
 
+        return timestamp;
+    }
 
-        List<String> payloadsWithInvalidCharset = payloadInfo.getPartInfo().stream()
-                .filter(As4InboundHandler::partInfoHasInvalidCharset)
-                .map(PartInfo::getHref)
-                .collect(Collectors.toList());
-
-        if (!payloadsWithInvalidCharset.isEmpty()) {
-            String errorMessage = "Invalid PayloadInfo. Part(s) detected invalid \"CharacterSet\" header: " + payloadsWithInvalidCharset;
-            log.debug(errorMessage);
-
-            throw new OxalisAs4Exception(
-                    errorMessage,
-                    AS4ErrorCode.EBMS_0009
-            );
+    private void journalMetadata(As4InboundMetadata as4InboundMetadata, Path firstPayloadPath) {
+        try {
+            metadataJournal.append(as4InboundMetadata, firstPayloadPath);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error journaling AS4 metadata for message '"
+                    + as4InboundMetadata.getTransmissionIdentifier() + "'", e);
         }
+    }
 
+    /**
+     * Moves the receipts into the receipt archive, the returned metadata reads them from the archive instead of
+     * holding them while it is persisted and completed.
+     */
+    private CompletableFuture<As4InboundMetadata> archiveReceipts(As4InboundMetadata as4InboundMetadata) {
+        if (!receiptArchive.isEnabled()) {
+            return CompletableFuture.completedFuture(as4InboundMetadata);
+        }
 
-        List<String> payloadsMissingMimeTypeHeader = payloadInfo.getPartInfo().stream()
-                .filter(As4InboundHandler::partInfoMissingMimeTypeHeader)
-                .map(PartInfo::getHref)
+        String messageId = as4InboundMetadata.getTransmissionIdentifier().getIdentifier();
+        List<String> types = as4InboundMetadata.getReceipts().stream()
+                .map(receipt -> receipt.getType())
                 .collect(Collectors.toList());
 
-        if (!payloadsMissingMimeTypeHeader.isEmpty()) {
-            String errorMessage = "Invalid PayloadInfo. Part(s) detected without \"MimeType\" header: " + payloadsMissingMimeTypeHeader;
-            log.debug(errorMessage);
-
-            throw new OxalisAs4Exception(
-                    errorMessage,
-                    AS4ErrorCode.EBMS_0009
-            );
-        }
-
-    }
-
-    private static boolean partInfoHasInvalidCharset(PartInfo partInfo) {
-
-        return Optional.ofNullable(partInfo)
-                .map(PartInfo::getPartProperties)
-                .map(PartProperties::getProperty)
-                .map(Collection::stream).orElse(Stream.empty())
-                .anyMatch(property ->
-                        Optional.of(property)
-                                .map(Property::getName)
-                                .filter("CharacterSet"::equals)
-                                .map(fieldName -> Optional.of(property)
-                                        .map(Property::getValue)
-                                        .map(charset -> {
-                                            try {
-                                                return null == Charset.forName(property.getValue());
-                                            } catch (Exception e) {
-                                                return true;
-                                            }
-                                        }).orElse(true)
-                                ).orElse(false)
-                );
-    }
+        return CompletableFuture.allOf(as4InboundMetadata.getReceipts().stream()
+                .map(receipt -> receiptArchive.append(messageId, as4InboundMetadata.getConversationId(), receipt))
+                .toArray(CompletableFuture<?>[]::new))
+                .handle((result, e) -> {
+                    if (e != null) {
+                        log.error("Unable to archive receipts of message '{}'", messageId, e);
+                        return as4InboundMetadata;
+                    }
 
-    public static boolean partInfoMissingMimeTypeHeader(PartInfo partInfo) {
-        return Optional.ofNullable(partInfo)
-                .map(PartInfo::getPartProperties)
-                .map(PartProperties::getProperty)
-                .map(Collection::stream).orElse(Stream.empty())
-                .map(Property::getName)
-                .noneMatch("MimeType"::equals);
+                    return as4InboundMetadata.withReceipts(receiptArchive.supplier(messageId, types));
+                });
     }
 
-    public byte[] copyReceipt(SOAPMessage response) throws OxalisAs4Exception {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-
+    private void updateMetadata(As4InboundMetadata as4InboundMetadata, Path firstPayloadPath) {
         try {
-            response.writeTo(bos);
-        } catch (SOAPException | IOException e) {
-            throw new OxalisAs4Exception("Could not write SOAP response", e, AS4ErrorCode.EBMS_0202);
+            persisterHandler.persist(as4InboundMetadata, firstPayloadPath);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error updating AS4 metadata for message '"
+                    + as4InboundMetadata.getTransmissionIdentifier() + "'", e);
         }
-
-        return bos.toByteArray();
     }
 
-    public void validateMessageId(String messageId) throws OxalisAs4Exception {
+    private void persistMetadata(As4InboundMetadata as4InboundMetadata, Path firstPayloadPath, String refToMessageId) {
+        try {
+            persisterHandler.persist(as4InboundMetadata, firstPayloadPath);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error persisting AS4 metadata for message '"
+                    + as4InboundMetadata.getTransmissionIdentifier() + "'", e);
+        }
 
-        if (!MessageIdUtil.verify(messageId)) {
-            throw new OxalisAs4Exception(
-                    "Invalid Message-ID '" + messageId + "' in inbound message.",
-                    AS4ErrorCode.EBMS_0009
-            );
+        if (metadataJournal.isEnabled()) {
+            metadataJournal.markPersisted(as4InboundMetadata.getTransmissionIdentifier());
         }
 
+        if (messageIndex.isEnabled()) {
+            messageIndex.record(new MessageIndex.Entry(Direction.IN,
+                    as4InboundMetadata.getTransmissionIdentifier().getIdentifier(),
+                    as4InboundMetadata.getConversationId(), refToMessageId, as4InboundMetadata.getTimestamp(),
+                    String.valueOf(firstPayloadPath)));
+        }
+
+        // Persist statistics
+        inboundService.complete(as4InboundMetadata);
     }
 
-    private LinkedHashMap<InputStream, As4PayloadHeader> parseAttachments(Iterator<AttachmentPart> attachments, UserMessage userMessage) throws OxalisAs4Exception {
+    private LinkedHashMap<InputStream, As4PayloadHeader> parseAttachments(Collection<Attachment> attachments, UserMessage userMessage) throws OxalisAs4Exception {
 
-        if (!attachments.hasNext()) {
+        if (attachments == null || attachments.isEmpty()) {
             throw new OxalisAs4Exception("No attachment(s) present");
         }
 
@@ -316,68 +581,126 @@ public class As4InboundHandler {
 
         LinkedHashMap<InputStream, As4PayloadHeader> payloads = new LinkedHashMap<>();
 
-        Collection<Attachment> s = PhaseInterceptorChain.getCurrentMessage().getAttachments();
-
-        for (Attachment attachment : s) {
-            try {
-                InputStream is = attachment.getDataHandler().getInputStream();
-                String contentId = AttachmentUtil.cleanContentId(attachment.getId());
+        try {
+            for (Attachment attachment : attachments) {
+                parseAttachment(attachment, partInfoHeadersMap, userMessage, payloads);
+            }
+        } catch (OxalisAs4Exception | RuntimeException e) {
+            payloads.keySet().forEach(As4InboundHandler::closeQuietly);
+            throw e;
+        }
 
-                Map<String, MimeHeader> mimeHeaders = new HashMap<>();
-                attachment.getHeaderNames()
-                        .forEachRemaining(h -> mimeHeaders.put(h, new MimeHeader(h, attachment.getHeader(h))));
+        return payloads;
+    }
 
-                Map<String, MimeHeader> partInfoHeaders = partInfoHeadersMap.get(contentId);
+    private void parseAttachment(Attachment attachment, Map<String, Map<String, MimeHeader>> partInfoHeadersMap, UserMessage userMessage, LinkedHashMap<InputStream, As4PayloadHeader> payloads) throws OxalisAs4Exception {
+        InputStream is = null;
+        InputStream spooled = null;
+        LookaheadInputStream received = null;
+        boolean parsed = false;
 
-                if (isAttachmentCompressed(partInfoHeaders, mimeHeaders)) {
-                    try {
-                        is = new GZIPInputStream(is);
-                    } catch (IOException e) {
-                        throw new OxalisAs4Exception(
-                                "Unable to initiate decompression of payload with Content-ID: " + contentId,
-                                e,
-                                AS4ErrorCode.EBMS_0303,
-                                AS4ErrorCode.Severity.FAILURE
-                        );
-                    }
+        try {
+            is = attachment.getDataHandler().getInputStream();
+            String contentId = AttachmentUtil.cleanContentId(attachment.getId());
+
+            Map<String, MimeHeader> mimeHeaders = new HashMap<>();
+            attachment.getHeaderNames()
+                    .forEachRemaining(h -> mimeHeaders.put(h, new MimeHeader(h, attachment.getHeader(h))));
+
+            Map<String, MimeHeader> partInfoHeaders = partInfoHeadersMap.get(contentId);
+
+            boolean compressed = isAttachmentCompressed(partInfoHeaders, mimeHeaders);
+            spooled = compressed ? null : getSpooledInputStream(attachment);
+
+            // Keeps the received gzip bytes, while the start of the payload is decompressed to read the SBDH
+            received = compressed && storeCompressed ? new LookaheadInputStream(is) : null;
+
+            if (compressed) {
+                try {
+                    // Closing the decompressing stream must not close the received bytes replayed below
+                    is = new BoundedGzipInputStream(
+                            received != null ? new UnclosableInputStream(received) : is, maxDecompressedSize, maxCompressionRatio);
+                } catch (IOException e) {
+                    throw new OxalisAs4Exception(
+                            "Unable to initiate decompression of payload with Content-ID: " + contentId,
+                            e,
+                            AS4ErrorCode.EBMS_0303,
+                            AS4ErrorCode.Severity.FAILURE
+                    );
                 }
+            }
 
-                Header sbdh;
-                if (headerParser instanceof SbdhHeaderParser) {
+            Header sbdh;
+            if (headerParser instanceof SbdhHeaderParser) {
 
-                    try {
-                        PeekingInputStream pis = new PeekingInputStream(is);
+                try {
+                    // Only the bytes up to the start of the payload element are buffered
+                    LookaheadInputStream lis = new LookaheadInputStream(is);
+                    is = lis;
 
-                        try (SbdReader sbdReader = SbdReader.newInstance(pis)) {
+                    try (SbdReader sbdReader = SbdReader.newInstance(lis)) {
 
-                            sbdh = sbdReader.getHeader();
-                            is = pis.newInputStream();
+                        sbdh = sbdReader.getHeader();
+                        lis.replay();
 
-                        }
-                    } catch (SbdhException | IOException e) {
-                        launderZipException(contentId, e);
-                        throw new OxalisAs4Exception("Could not extract SBDH from payload");
                     }
-                } else {
-                    sbdh = new Header()
-                            .sender(ParticipantIdentifier.of(userMessage.getPartyInfo().getFrom().getPartyId().get(0).getValue()))
-                            .receiver(ParticipantIdentifier.of(userMessage.getPartyInfo().getTo().getPartyId().get(0).getValue()))
-                            .documentType(DocumentTypeIdentifier.of(userMessage.getCollaborationInfo().getService().getValue(),  Scheme.of(userMessage.getCollaborationInfo().getService().getType())))
-                            .identifier(InstanceIdentifier.of(userMessage.getCollaborationInfo().getAction()));
+                } catch (SbdhException | IOException e) {
+                    launderZipException(contentId, e);
+                    throw new OxalisAs4Exception("Could not extract SBDH from payload");
                 }
+            } else {
+                sbdh = new Header()
+                        .sender(ParticipantIdentifier.of(userMessage.getPartyInfo().getFrom().getPartyId().get(0).getValue()))
+                        .receiver(ParticipantIdentifier.of(userMessage.getPartyInfo().getTo().getPartyId().get(0).getValue()))
+                        .documentType(DocumentTypeIdentifier.of(userMessage.getCollaborationInfo().getService().getValue(),  Scheme.of(userMessage.getCollaborationInfo().getService().getType())))
+                        .identifier(InstanceIdentifier.of(userMessage.getCollaborationInfo().getAction()));
+            }
 
-                // Get an "unexpected eof in prolog"
-                As4PayloadHeader header = new As4PayloadHeader(sbdh, partInfoHeaders.values(), contentId, userMessage.getMessageInfo().getMessageId());
+            // Get an "unexpected eof in prolog"
+            As4PayloadHeader header = new As4PayloadHeader(sbdh, partInfoHeaders.values(), contentId, userMessage.getMessageInfo().getMessageId());
+
+            // The stream used to read the SBDH is released when the payload is read from another stream,
+            // returning its pooled buffer and inflater
+            if (received != null) {
+                is.close();
+                is = new GzipPassThroughInputStream(received.replay(), maxDecompressedSize, maxCompressionRatio);
+            } else if (spooled != null) {
+                is.close();
+                is = spooled;
+            }
 
-                // Extract "fresh" InputStream
-                payloads.put(is, header);
+            // Extract "fresh" InputStream, or hand over the spooled attachment as is
+            payloads.put(is, header);
+            parsed = true;
 
-            } catch (IOException e) {
-                throw new OxalisAs4Exception("Could not get attachment input stream", e);
+        } catch (IOException e) {
+            throw new OxalisAs4Exception("Could not get attachment input stream", e);
+        } finally {
+            if (!parsed) {
+                closeQuietly(is);
+                closeQuietly(received);
+                closeQuietly(spooled);
             }
         }
+    }
+
+    /**
+     * Returns a new stream of an attachment cached to a temporary file by CXF, when the payload store is able to
+     * take over the file.
+     */
+    private InputStream getSpooledInputStream(Attachment attachment) throws IOException {
+        if (!payloadStore.isEnabled()) {
+            return null;
+        }
 
-        return payloads;
+        DataSource dataSource = attachment.getDataHandler().getDataSource();
+        if (!(dataSource instanceof AttachmentDataSource) || !((AttachmentDataSource) dataSource).isCached()) {
+            return null;
+        }
+
+        // Attachments cached in memory are not transferable
+        InputStream is = dataSource.getInputStream();
+        return is instanceof Transferable ? is : null;
     }
 
     private void launderZipException(String contentId, Exception e) throws OxalisAs4Exception {
@@ -392,7 +715,7 @@ public class As4InboundHandler {
                 );
             }
 
-            cause = e.getCause();
+            cause = cause.getCause();
         }
     }
 
@@ -437,17 +760,114 @@ public class As4InboundHandler {
         return as4EnvelopeHeader;
     }
 
-    private Timestamp getTimestamp(SOAPHeader header) throws OxalisAs4Exception {
-        byte[] signature = SOAPHeaderParser.getSignature(header);
+    private Timestamp getTimestamp(CompletableFuture<Timestamp> trustedTimestamp) throws OxalisAs4Exception {
+        if (timestampService.isAsync()) {
+            // The trusted timestamp is added to the metadata once available
+            return new Timestamp(new Date(), null);
+        }
+
         try {
-            return timestampProvider.generate(signature, Direction.IN);
-        } catch (TimestampException e) {
-            throw new OxalisAs4Exception("Error generating timestamp", e);
+            return trustedTimestamp.join();
+        } catch (CompletionException e) {
+            throw new OxalisAs4Exception("Error generating timestamp", e.getCause());
+        }
+    }
+
+    private Timestamp withTrustedTimestamp(Timestamp timestamp, Timestamp trusted, Throwable e, TransmissionIdentifier messageId) {
+        if (e != null) {
+            log.error("Unable to obtain trusted timestamp for message '{}'", messageId, e);
+            return timestamp;
+        }
+
+        return new Timestamp(timestamp.getDate(), trusted.getReceipt().orElse(null));
+    }
+
+    /**
+     * Persists the payloads in order, or in parallel on the payload executor when configured. Payloads are hashed
+     * while persisted, so for messages with several large attachments the hashing is spread over the threads.
+     * When a payload fails, payloads not started are skipped and payloads already stored are deleted again.
+     */
+    private List<Path> persistPayloads(LinkedHashMap<InputStream, As4PayloadHeader> payloads, TransmissionIdentifier ti) throws OxalisAs4Exception {
+        try {
+            for (As4PayloadHeader as4PayloadHeader : payloads.values()) {
+                validateAttachmentHeader(as4PayloadHeader);
+            }
+
+            List<Path> paths = new ArrayList<>();
+            if (payloadExecutor == null || payloads.size() == 1) {
+                for (Map.Entry<InputStream, As4PayloadHeader> payload : payloads.entrySet()) {
+                    paths.add(persistPayload(payload.getKey(), payload.getValue(), ti));
+                }
+                return paths;
+            }
+
+            AtomicBoolean failed = new AtomicBoolean();
+            List<CompletableFuture<Path>> futures = payloads.entrySet().stream()
+                    .map(payload -> CompletableFuture.supplyAsync(() -> {
+                        // Skipped after an earlier payload failed
+                        if (failed.get()) {
+                            return null;
+                        }
+
+                        try {
+                            return persistPayload(payload.getKey(), payload.getValue(), ti);
+                        } catch (OxalisAs4Exception | RuntimeException e) {
+                            failed.set(true);
+                            throw new CompletionException(e);
+                        }
+                    }, payloadExecutor))
+                    .collect(Collectors.toList());
+
+            // Waits for every payload, including those still running after another one failed
+            OxalisAs4Exception failure = null;
+            for (CompletableFuture<Path> future : futures) {
+                try {
+                    Optional.ofNullable(future.join()).ifPresent(paths::add);
+                } catch (CompletionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof OxalisAs4Exception
+                                ? (OxalisAs4Exception) e.getCause()
+                                : new OxalisAs4Exception("Error persisting payload", e.getCause());
+                    }
+                }
+            }
+
+            // Every payload is done with, none is written to any longer
+            if (failure != null) {
+                deletePayloads(paths, ti);
+                throw failure;
+            }
+            return paths;
+        } catch (OxalisAs4Exception | RuntimeException e) {
+            // Payloads not persisted yet are not read any further
+            payloads.keySet().forEach(As4InboundHandler::closeQuietly);
+            throw e;
+        }
+    }
+
+    private void deletePayloads(List<Path> paths, TransmissionIdentifier ti) {
+        for (Path path : paths) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                log.warn("Unable to delete payload '{}' of failed message '{}'", path, ti, e);
+            }
         }
     }
 
     private Path persistPayload(InputStream inputStream, As4PayloadHeader as4PayloadHeader, TransmissionIdentifier ti) throws OxalisAs4Exception {
         try {
+            if (contentStore.isEnabled()) {
+                // Identical payloads are stored once, each message gets its own link to the content
+                Path payloadPath = contentStore.persist(ti, new UnclosableInputStream(inputStream));
+                ByteStreams.exhaust(inputStream);
+                return payloadPath;
+            }
+
+            if (payloadStore.isEnabled()) {
+                return persistPayload(inputStream, as4PayloadHeader.getCid(), ti);
+            }
+
             // Persist content
             Path payloadPath = persisterHandler.persist(ti, as4PayloadHeader, new UnclosableInputStream(inputStream));
 
@@ -457,22 +877,41 @@ public class As4InboundHandler {
         } catch (IOException e) {
             launderZipException(as4PayloadHeader.getCid(), e);
             throw new OxalisAs4Exception("Error processing payload input stream", e);
+        } finally {
+            closeQuietly(inputStream);
         }
     }
 
-    private void validateAttachmentHeader(Header attachmentHeader) throws OxalisAs4Exception {
+    private Path persistPayload(InputStream inputStream, String contentId, TransmissionIdentifier ti) throws IOException {
+        if (inputStream instanceof Transferable) {
+            return payloadStore.persist(ti, contentId, (Transferable) inputStream);
+        }
+
+        Path payloadPath = payloadStore.persist(ti, contentId, new UnclosableInputStream(inputStream));
+        ByteStreams.exhaust(inputStream);
+        return payloadPath;
+    }
+
+    /**
+     * Closes a payload stream once done with, failing to close it does not fail the message.
+     */
+    private static void closeQuietly(InputStream inputStream) {
+        if (inputStream == null) {
+            return;
+        }
+
         try {
-            transmissionVerifier.verify(attachmentHeader, Direction.IN);
-        } catch (VerifierException e) {
-            throw new OxalisAs4Exception("Error verifying SBDH", e);
+            inputStream.close();
+        } catch (IOException e) {
+            log.debug("Unable to close payload stream", e);
         }
     }
 
-    private SOAPHeader getSoapHeader(SOAPMessage request) throws OxalisAs4Exception {
+    private void validateAttachmentHeader(Header attachmentHeader) throws OxalisAs4Exception {
         try {
-            return request.getSOAPHeader();
-        } catch (SOAPException e) {
-            throw new OxalisAs4Exception("Could not get SOAP header", e);
+            transmissionVerifier.verify(attachmentHeader, Direction.IN);
+        } catch (VerifierException e) {
+            throw new OxalisAs4Exception("Error verifying SBDH", e);
         }
     }
 }
@@ -8,6 +8,7 @@ import no.difi.vefa.peppol.common.model.*;
 
 import java.security.cert.X509Certificate;
 import java.util.*;
+import java.util.function.Supplier;
 
 public class As4InboundMetadata implements InboundMetadata {
 
@@ -23,18 +24,28 @@ public class As4InboundMetadata implements InboundMetadata {
 
     private final Digest digest;
 
-    private final Receipt primaryReceipt;
-
-    private final List<Receipt> receipts;
+    private final Supplier<List<Receipt>> receipts;
 
     private final X509Certificate certificate;
 
     private final As4EnvelopeHeader as4EnvelopeHeader;
 
+    private final Digest decompressedDigest;
+
+    private final long decompressedSize;
+
 
     public As4InboundMetadata(TransmissionIdentifier transmissionIdentifier, String conversationId, Header header, Timestamp timestamp,
                               TransportProfile transportProfile, Digest digest, X509Certificate certificate,
                               byte[] primaryReceipt, As4EnvelopeHeader as4EnvelopeHeader) {
+        this(transmissionIdentifier, conversationId, header, timestamp, transportProfile, digest, certificate,
+                primaryReceipt, as4EnvelopeHeader, null, -1);
+    }
+
+    public As4InboundMetadata(TransmissionIdentifier transmissionIdentifier, String conversationId, Header header, Timestamp timestamp,
+                              TransportProfile transportProfile, Digest digest, X509Certificate certificate,
+                              byte[] primaryReceipt, As4EnvelopeHeader as4EnvelopeHeader,
+                              Digest decompressedDigest, long decompressedSize) {
         this.transmissionIdentifier = transmissionIdentifier;
         this.conversationId = conversationId;
         this.header = header;
@@ -42,15 +53,39 @@ public class As4InboundMetadata implements InboundMetadata {
         this.transportProfile = transportProfile;
         this.digest = digest;
         this.certificate = certificate;
-        this.primaryReceipt = Receipt.of("message/disposition-notification", primaryReceipt);
 
         List<Receipt> receipts = new ArrayList<>();
-        receipts.add(this.primaryReceipt);
+        receipts.add(Receipt.of("message/disposition-notification", primaryReceipt));
         if (timestamp.getReceipt().isPresent())
             receipts.add(timestamp.getReceipt().get());
-        this.receipts = Collections.unmodifiableList(receipts);
+        List<Receipt> unmodifiableReceipts = Collections.unmodifiableList(receipts);
+        this.receipts = () -> unmodifiableReceipts;
 
         this.as4EnvelopeHeader = as4EnvelopeHeader;
+        this.decompressedDigest = decompressedDigest;
+        this.decompressedSize = decompressedSize;
+    }
+
+    private As4InboundMetadata(As4InboundMetadata metadata, Supplier<List<Receipt>> receipts) {
+        this.transmissionIdentifier = metadata.transmissionIdentifier;
+        this.conversationId = metadata.conversationId;
+        this.header = metadata.header;
+        this.timestamp = metadata.timestamp;
+        this.transportProfile = metadata.transportProfile;
+        this.digest = metadata.digest;
+        this.certificate = metadata.certificate;
+        this.receipts = receipts;
+        this.as4EnvelopeHeader = metadata.as4EnvelopeHeader;
+        this.decompressedDigest = metadata.decompressedDigest;
+        this.decompressedSize = metadata.decompressedSize;
+    }
+
+    /**
+     * Copy of the metadata reading its receipts from the supplier, e.g. from a receipt archive, instead of holding
+     * them. The primary receipt is expected first.
+     */
+    public As4InboundMetadata withReceipts(Supplier<List<Receipt>> receipts) {
+        return new As4InboundMetadata(this, receipts);
     }
 
     @Override
@@ -94,12 +129,12 @@ public class As4InboundMetadata implements InboundMetadata {
 
     @Override
     public List<Receipt> getReceipts() {
-        return receipts;
+        return receipts.get();
     }
 
     @Override
     public Receipt primaryReceipt() {
-        return primaryReceipt;
+        return getReceipts().get(0);
     }
 
     @Override
@@ -110,4 +145,18 @@ public class As4InboundMetadata implements InboundMetadata {
     public As4EnvelopeHeader getAs4EnvelopeHeader() {
         return as4EnvelopeHeader;
     }
+
+    /**
+     * Digest of the decompressed payload, when the payload is stored compressed as received. Otherwise null.
+     */
+    public Digest getDecompressedDigest() {
+        return decompressedDigest;
+    }
+
+    /**
+     * Size of the decompressed payload, when the payload is stored compressed as received. Otherwise -1.
+     */
+    public long getDecompressedSize() {
+        return decompressedSize;
+    }
 }
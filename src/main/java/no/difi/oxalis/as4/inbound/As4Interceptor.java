@@ -4,9 +4,10 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import lombok.extern.slf4j.Slf4j;
 import no.difi.oxalis.as4.lang.OxalisAs4Exception;
+import no.difi.oxalis.as4.util.AS4ErrorCode;
 import no.difi.oxalis.as4.util.Constants;
-import no.difi.oxalis.as4.util.Marshalling;
 import no.difi.oxalis.as4.util.MessageId;
+import no.difi.oxalis.as4.util.MessagingReader;
 import no.difi.oxalis.as4.util.PolicyService;
 import org.apache.cxf.binding.soap.SoapMessage;
 import org.apache.cxf.binding.soap.interceptor.AbstractSoapInterceptor;
@@ -21,20 +22,19 @@ import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.CollaborationInfo
 import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.MessageInfo;
 import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.Messaging;
 import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.UserMessage;
-import org.w3c.dom.Node;
+import org.w3c.dom.Element;
 
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.Unmarshaller;
+import javax.xml.namespace.QName;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Optional;
+import java.util.Set;
 import java.util.stream.Stream;
 
 @Slf4j
 @Singleton
 public class As4Interceptor extends AbstractSoapInterceptor {
 
-    private final JAXBContext jaxbContext = Marshalling.getInstance();
     private final PolicyService policyService;
 
     @Inject
@@ -45,6 +45,11 @@ public class As4Interceptor extends AbstractSoapInterceptor {
         addBefore(PolicyBasedWSS4JInInterceptor.class.getName());
     }
 
+    @Override
+    public Set<QName> getUnderstoodHeaders() {
+        return Collections.singleton(Constants.MESSAGING_QNAME);
+    }
+
     @Override
     public void handleMessage(SoapMessage message) throws Fault {
         storeMessageIdInContext(message);
@@ -62,29 +67,32 @@ public class As4Interceptor extends AbstractSoapInterceptor {
         SoapMessage soapMessage = (SoapMessage) message;
         Header header = soapMessage.getHeader(Constants.MESSAGING_QNAME);
 
+        if (header == null || !(header.getObject() instanceof Element)) {
+            throw new Fault(new OxalisAs4Exception("Messaging header is missing", AS4ErrorCode.EBMS_0009));
+        }
+
         try {
-            Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
-            Messaging messaging = unmarshaller.unmarshal((Node) header.getObject(), Messaging.class).getValue();
+            Messaging messaging = MessagingReader.read((Element) header.getObject());
 
-            String messageId = Optional.ofNullable(messaging)
+            Optional<UserMessage> userMessage = Optional.ofNullable(messaging)
                     .map(Messaging::getUserMessage)
                     .map(Collection::stream).orElseGet(Stream::empty)
+                    .findFirst();
+
+            String messageId = userMessage
                     .map(UserMessage::getMessageInfo)
                     .map(MessageInfo::getMessageId)
-                    .findFirst()
                     .orElseThrow(() -> new Fault(new OxalisAs4Exception("MessageID is missing from UserMessage")));
 
             message.put(MessageId.MESSAGE_ID, new MessageId(messageId));
+            message.put(UserMessage.class, userMessage.get());
 
-            Optional.ofNullable(messaging)
-                    .map(Messaging::getUserMessage)
-                    .map(Collection::stream).orElseGet(Stream::empty)
+            userMessage
                     .map(UserMessage::getCollaborationInfo)
                     .map(CollaborationInfo::getConversationId)
-                    .findFirst()
                     .ifPresent(conversationId -> message.put("oxalis.as4.conversationId", conversationId));
 
-        } catch (JAXBException e) {
+        } catch (OxalisAs4Exception e) {
             throw new Fault(e);
         }
     }
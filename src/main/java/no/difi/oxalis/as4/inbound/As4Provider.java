@@ -3,6 +3,8 @@ package no.difi.oxalis.as4.inbound;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import no.difi.oxalis.as4.lang.OxalisAs4Exception;
+import org.apache.cxf.binding.soap.SoapMessage;
+import org.apache.cxf.phase.PhaseInterceptorChain;
 import org.apache.cxf.transport.http.AbstractHTTPDestination;
 
 import javax.annotation.Resource;
@@ -33,7 +35,7 @@ public class As4Provider implements Provider<SOAPMessage> {
         httpRes.setStatus(HttpServletResponse.SC_OK);
 
         try {
-            return handler.handle(request, messageContext);
+            return handler.handle((SoapMessage) PhaseInterceptorChain.getCurrentMessage(), messageContext);
         } catch (OxalisAs4Exception e) {
             httpRes.setStatus(HttpServletResponse.SC_BAD_REQUEST);
             throw new RuntimeException(e);
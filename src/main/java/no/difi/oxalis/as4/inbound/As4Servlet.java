@@ -4,6 +4,10 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import lombok.extern.slf4j.Slf4j;
 import no.difi.oxalis.api.settings.Settings;
+import no.difi.oxalis.as4.common.AsyncTimestampService;
+import no.difi.oxalis.as4.config.As4Conf;
+import no.difi.oxalis.as4.persist.MessageIndex;
+import no.difi.oxalis.as4.persist.ReceiptArchive;
 import no.difi.oxalis.as4.util.OxalisAlgorithmSuiteLoader;
 import no.difi.oxalis.commons.security.KeyStoreConf;
 import org.apache.cxf.ext.logging.LoggingFeature;
@@ -28,12 +32,39 @@ public class As4Servlet extends CXFNonSpringServlet {
     @Inject
     private Settings<KeyStoreConf> settings;
 
+    @Inject
+    private Settings<As4Conf> as4Settings;
+
     @Inject
     private As4EndpointsPublisher endpointsPublisher;
 
     @Inject
     private InboundMerlinProvider inboundMerlinProvider;
 
+    @Inject
+    private InboundLimits inboundLimits;
+
+    @Inject
+    private AsyncTimestampService timestampService;
+
+    @Inject
+    private WriteBehindInboundService inboundService;
+
+    @Inject
+    private MetadataJournal metadataJournal;
+
+    @Inject
+    private DeferredMessageJournal deferredMessageJournal;
+
+    @Inject
+    private ReceiptArchive receiptArchive;
+
+    @Inject
+    private MessageIndex messageIndex;
+
+    @Inject
+    private As4InboundHandler inboundHandler;
+
     @Override
     protected void loadBus(ServletConfig servletConfig) {
         super.loadBus(servletConfig);
@@ -54,6 +85,58 @@ public class As4Servlet extends CXFNonSpringServlet {
         endpointImpl.getOutInterceptors().add(new PolicyBasedWSS4JOutInterceptor());
 
         endpointImpl.getFeatures().add(new LoggingFeature());
+
+        inboundHandler.recover();
+    }
+
+    @Override
+    public void destroy() {
+        // Messages waiting for their trusted timestamp keep the local one
+        timestampService.close();
+
+        inboundHandler.close();
+
+        // Deliver completions still waiting for the inbound service
+        inboundService.close();
+
+        try {
+            deferredMessageJournal.close();
+            metadataJournal.close();
+            receiptArchive.close();
+            messageIndex.close();
+        } catch (IOException e) {
+            log.warn("Unable to close inbound journals", e);
+        }
+
+        super.destroy();
+    }
+
+    /**
+     * Requests announcing a body larger than the configured maximum are rejected from the headers alone.
+     * The body is never read, so containers will not answer "Expect: 100-continue" and well-behaved clients
+     * never transmit the payload.
+     */
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException {
+        long contentLength = request.getContentLengthLong();
+
+        if (!inboundLimits.acceptsContentLength(contentLength)) {
+            log.info("Rejected inbound request of {} bytes, maximum is {} bytes",
+                    contentLength, inboundLimits.getMaxContentLength());
+            rejectRequest(response);
+            return;
+        }
+
+        super.doPost(inboundLimits.limitContent(request), response);
+    }
+
+    private void rejectRequest(HttpServletResponse response) throws ServletException {
+        try {
+            response.setHeader("Connection", "close");
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        } catch (IOException e) {
+            throw new ServletException("Unable to send response", e);
+        }
     }
 
     @Override
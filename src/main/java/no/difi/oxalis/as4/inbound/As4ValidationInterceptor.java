@@ -0,0 +1,193 @@
+package no.difi.oxalis.as4.inbound;
+
+import com.google.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+import no.difi.oxalis.as4.lang.OxalisAs4Exception;
+import no.difi.oxalis.as4.util.AS4ErrorCode;
+import no.difi.oxalis.as4.util.MessageIdUtil;
+import org.apache.cxf.attachment.AttachmentUtil;
+import org.apache.cxf.binding.soap.SoapMessage;
+import org.apache.cxf.binding.soap.interceptor.AbstractSoapInterceptor;
+import org.apache.cxf.interceptor.Fault;
+import org.apache.cxf.message.Attachment;
+import org.apache.cxf.phase.Phase;
+import org.apache.cxf.ws.security.wss4j.PolicyBasedWSS4JInInterceptor;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.*;
+
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Performs the cheap structural checks of the ebMS header before any WS-Security processing takes place,
+ * so that malformed messages are rejected with EBMS:0009 without paying for decryption and signature validation.
+ * Relies on {@link As4Interceptor} having placed the {@link UserMessage} on the message.
+ */
+@Slf4j
+@Singleton
+public class As4ValidationInterceptor extends AbstractSoapInterceptor {
+
+    private static final String REQUIRED_PAYLOAD_HREF_PREFIX = "cid:";
+
+    public As4ValidationInterceptor() {
+        super(Phase.PRE_PROTOCOL);
+        addAfter(As4Interceptor.class.getName());
+        addBefore(OxalisAS4WsInInterceptor.class.getName());
+        addBefore(PolicyBasedWSS4JInInterceptor.class.getName());
+    }
+
+    @Override
+    public void handleMessage(SoapMessage message) throws Fault {
+        UserMessage userMessage = message.get(UserMessage.class);
+
+        if (userMessage == null) {
+            throw new Fault(new OxalisAs4Exception("UserMessage is missing from Messaging header", AS4ErrorCode.EBMS_0009));
+        }
+
+        try {
+            validateMessageId(userMessage.getMessageInfo().getMessageId());
+            validatePayloads(userMessage.getPayloadInfo());
+            validateAttachments(message.getAttachments(), userMessage.getPayloadInfo());
+        } catch (OxalisAs4Exception e) {
+            throw new Fault(e);
+        }
+    }
+
+    public static void validateMessageId(String messageId) throws OxalisAs4Exception {
+
+        if (!MessageIdUtil.verify(messageId)) {
+            throw new OxalisAs4Exception(
+                    "Invalid Message-ID '" + messageId + "' in inbound message.",
+                    AS4ErrorCode.EBMS_0009
+            );
+        }
+
+    }
+
+    public static void validatePayloads(PayloadInfo payloadInfo) throws OxalisAs4Exception {
+        List<String> externalPayloads = getPartInfo(payloadInfo).stream()
+                .map(PartInfo::getHref)
+                .filter(href -> href == null || !href.startsWith(REQUIRED_PAYLOAD_HREF_PREFIX))
+                .collect(Collectors.toList());
+
+        if (!externalPayloads.isEmpty()) {
+            String errorMessage = "Invalid PayloadInfo. Href(s) detected with \"external\" source: " + externalPayloads;
+            log.debug(errorMessage);
+
+            throw new OxalisAs4Exception(
+                    errorMessage,
+                    AS4ErrorCode.EBMS_0009
+            );
+        }
+
+
+        List<String> payloadsWithInvalidCharset = getPartInfo(payloadInfo).stream()
+                .filter(As4ValidationInterceptor::partInfoHasInvalidCharset)
+                .map(PartInfo::getHref)
+                .collect(Collectors.toList());
+
+        if (!payloadsWithInvalidCharset.isEmpty()) {
+            String errorMessage = "Invalid PayloadInfo. Part(s) detected invalid \"CharacterSet\" header: " + payloadsWithInvalidCharset;
+            log.debug(errorMessage);
+
+            throw new OxalisAs4Exception(
+                    errorMessage,
+                    AS4ErrorCode.EBMS_0009
+            );
+        }
+
+
+        List<String> payloadsMissingMimeTypeHeader = getPartInfo(payloadInfo).stream()
+                .filter(As4ValidationInterceptor::partInfoMissingMimeTypeHeader)
+                .map(PartInfo::getHref)
+                .collect(Collectors.toList());
+
+        if (!payloadsMissingMimeTypeHeader.isEmpty()) {
+            String errorMessage = "Invalid PayloadInfo. Part(s) detected without \"MimeType\" header: " + payloadsMissingMimeTypeHeader;
+            log.debug(errorMessage);
+
+            throw new OxalisAs4Exception(
+                    errorMessage,
+                    AS4ErrorCode.EBMS_0009
+            );
+        }
+
+    }
+
+    public static void validateAttachments(Collection<Attachment> attachments, PayloadInfo payloadInfo) throws OxalisAs4Exception {
+        if (attachments == null || countAttachments(attachments) == 0) {
+            return;
+        }
+
+        Set<String> partInfoContentIds = getPartInfo(payloadInfo).stream()
+                .map(PartInfo::getHref)
+                .map(AttachmentUtil::cleanContentId)
+                .collect(Collectors.toSet());
+
+        List<String> attachmentsWithoutPartInfo = attachments.stream()
+                .map(Attachment::getId)
+                .map(AttachmentUtil::cleanContentId)
+                .filter(contentId -> !partInfoContentIds.contains(contentId))
+                .collect(Collectors.toList());
+
+        if (!attachmentsWithoutPartInfo.isEmpty()) {
+            String errorMessage = "Invalid PayloadInfo. Attachment(s) detected without corresponding PartInfo: " + attachmentsWithoutPartInfo;
+            log.debug(errorMessage);
+
+            throw new OxalisAs4Exception(
+                    errorMessage,
+                    AS4ErrorCode.EBMS_0009
+            );
+        }
+    }
+
+    /**
+     * CXF enforces the maximum attachment count and size when all attachments are read, not while iterating them.
+     */
+    private static int countAttachments(Collection<Attachment> attachments) throws OxalisAs4Exception {
+        try {
+            return attachments.size();
+        } catch (RuntimeException e) {
+            throw new OxalisAs4Exception("Unable to read attachments: " + e.getMessage(), e, AS4ErrorCode.EBMS_0009);
+        }
+    }
+
+    private static List<PartInfo> getPartInfo(PayloadInfo payloadInfo) {
+        return Optional.ofNullable(payloadInfo)
+                .map(PayloadInfo::getPartInfo)
+                .orElseGet(Collections::emptyList);
+    }
+
+    private static boolean partInfoHasInvalidCharset(PartInfo partInfo) {
+
+        return Optional.ofNullable(partInfo)
+                .map(PartInfo::getPartProperties)
+                .map(PartProperties::getProperty)
+                .map(Collection::stream).orElse(Stream.empty())
+                .anyMatch(property ->
+                        Optional.of(property)
+                                .map(Property::getName)
+                                .filter("CharacterSet"::equals)
+                                .map(fieldName -> Optional.of(property)
+                                        .map(Property::getValue)
+                                        .map(charset -> {
+                                            try {
+                                                return null == Charset.forName(property.getValue());
+                                            } catch (Exception e) {
+                                                return true;
+                                            }
+                                        }).orElse(true)
+                                ).orElse(false)
+                );
+    }
+
+    public static boolean partInfoMissingMimeTypeHeader(PartInfo partInfo) {
+        return Optional.ofNullable(partInfo)
+                .map(PartInfo::getPartProperties)
+                .map(PartProperties::getProperty)
+                .map(Collection::stream).orElse(Stream.empty())
+                .map(Property::getName)
+                .noneMatch("MimeType"::equals);
+    }
+}
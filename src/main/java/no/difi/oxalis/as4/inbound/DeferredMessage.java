@@ -0,0 +1,282 @@
+package no.difi.oxalis.as4.inbound;
+
+import com.google.common.io.ByteStreams;
+import lombok.Getter;
+import no.difi.oxalis.api.model.TransmissionIdentifier;
+import no.difi.oxalis.api.timestamp.Timestamp;
+import no.difi.oxalis.as4.util.Constants;
+import no.difi.oxalis.as4.util.Marshalling;
+import no.difi.oxalis.as4.util.SecurityHeader;
+import no.difi.vefa.peppol.common.model.Receipt;
+import org.apache.cxf.attachment.AttachmentImpl;
+import org.apache.cxf.attachment.ByteDataSource;
+import org.apache.cxf.helpers.DOMUtils;
+import org.apache.cxf.message.Attachment;
+import org.apache.wss4j.common.WSS4JConstants;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.UserMessage;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.activation.DataHandler;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An inbound message accepted after security validation, with everything needed to process it later. Attachments
+ * are held as decrypted, but not yet decompressed.
+ */
+@Getter
+public class DeferredMessage {
+
+    private static final int VERSION = 2;
+
+    private final TransmissionIdentifier transmissionIdentifier;
+
+    /**
+     * Timestamp of receipt, with the trusted timestamp when available at the time the message was journaled.
+     */
+    private final Timestamp timestamp;
+
+    private final byte[] signatureValue;
+
+    private final X509Certificate senderCertificate;
+
+    /**
+     * DigestValue of each SignedInfo reference, by reference URI.
+     */
+    private final Map<String, String> referenceDigests;
+
+    private final UserMessage userMessage;
+
+    private final List<Attachment> attachments;
+
+    private final byte[] signedReceipt;
+
+    private DeferredMessage(TransmissionIdentifier transmissionIdentifier, Timestamp timestamp, byte[] signatureValue,
+                            X509Certificate senderCertificate, Map<String, String> referenceDigests,
+                            UserMessage userMessage, List<Attachment> attachments, byte[] signedReceipt) {
+        this.transmissionIdentifier = transmissionIdentifier;
+        this.timestamp = timestamp;
+        this.signatureValue = signatureValue;
+        this.senderCertificate = senderCertificate;
+        this.referenceDigests = referenceDigests;
+        this.userMessage = userMessage;
+        this.attachments = attachments;
+        this.signedReceipt = signedReceipt;
+    }
+
+    /**
+     * Reads the attachments into memory, as the streams of the request are gone once the receipt is sent.
+     */
+    public static DeferredMessage of(TransmissionIdentifier transmissionIdentifier, Timestamp timestamp,
+                                     SecurityHeader securityHeader, UserMessage userMessage,
+                                     Collection<Attachment> attachments) throws IOException {
+        Map<String, String> referenceDigests = new LinkedHashMap<>();
+        for (Element reference : securityHeader.getReferenceList()) {
+            Element digestValue = DOMUtils.getFirstChildWithName(reference, WSS4JConstants.SIG_NS, "DigestValue");
+            if (digestValue != null) {
+                referenceDigests.put(reference.getAttributeNS(null, "URI"), DOMUtils.getContent(digestValue));
+            }
+        }
+
+        List<Attachment> copies = new ArrayList<>();
+        if (attachments != null) {
+            for (Attachment attachment : attachments) {
+                byte[] content;
+                try (InputStream is = attachment.getDataHandler().getInputStream()) {
+                    content = ByteStreams.toByteArray(is);
+                }
+
+                Map<String, String> headers = new LinkedHashMap<>();
+                attachment.getHeaderNames().forEachRemaining(name -> headers.put(name, attachment.getHeader(name)));
+                copies.add(createAttachment(attachment.getId(), headers, content));
+            }
+        }
+
+        return new DeferredMessage(transmissionIdentifier, timestamp, securityHeader.getSignatureValue(),
+                securityHeader.getSenderCertificate(), referenceDigests, userMessage, copies, null);
+    }
+
+    public DeferredMessage withSignedReceipt(byte[] signedReceipt) {
+        return new DeferredMessage(transmissionIdentifier, timestamp, signatureValue, senderCertificate,
+                referenceDigests, userMessage, attachments, signedReceipt);
+    }
+
+    public DeferredMessage withTimestamp(Timestamp timestamp) {
+        return new DeferredMessage(transmissionIdentifier, timestamp, signatureValue, senderCertificate,
+                referenceDigests, userMessage, attachments, signedReceipt);
+    }
+
+    /**
+     * Security header holding the references of the original message.
+     */
+    public SecurityHeader getSecurityHeader() {
+        Document document = DOMUtils.newDocument();
+
+        List<Element> referenceList = new ArrayList<>();
+        for (Map.Entry<String, String> referenceDigest : referenceDigests.entrySet()) {
+            Element reference = document.createElementNS(WSS4JConstants.SIG_NS, "ds:Reference");
+            reference.setAttributeNS(null, "URI", referenceDigest.getKey());
+
+            Element digestValue = document.createElementNS(WSS4JConstants.SIG_NS, "ds:DigestValue");
+            digestValue.setTextContent(referenceDigest.getValue());
+            reference.appendChild(digestValue);
+
+            referenceList.add(reference);
+        }
+
+        return new SecurityHeader(signatureValue, referenceList, senderCertificate);
+    }
+
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+
+        out.writeByte(VERSION);
+        out.writeUTF(transmissionIdentifier.getIdentifier());
+        out.writeLong(timestamp.getDate().getTime());
+        Receipt timestampReceipt = timestamp.getReceipt().orElse(null);
+        out.writeBoolean(timestampReceipt != null);
+        if (timestampReceipt != null) {
+            out.writeUTF(timestampReceipt.getType());
+            writeBytes(out, timestampReceipt.getValue());
+        }
+        writeBytes(out, signatureValue);
+
+        try {
+            writeBytes(out, senderCertificate.getEncoded());
+        } catch (CertificateEncodingException e) {
+            throw new IOException("Unable to encode sender certificate", e);
+        }
+
+        out.writeInt(referenceDigests.size());
+        for (Map.Entry<String, String> referenceDigest : referenceDigests.entrySet()) {
+            out.writeUTF(referenceDigest.getKey());
+            out.writeUTF(referenceDigest.getValue());
+        }
+
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        try {
+            Marshalling.getInstance().createMarshaller()
+                    .marshal(new JAXBElement<>(Constants.USER_MESSAGE_QNAME, UserMessage.class, userMessage), xml);
+        } catch (JAXBException e) {
+            throw new IOException("Unable to marshal user message", e);
+        }
+        writeBytes(out, xml.toByteArray());
+
+        out.writeInt(attachments.size());
+        for (Attachment attachment : attachments) {
+            out.writeUTF(attachment.getId());
+
+            List<String> names = new ArrayList<>();
+            attachment.getHeaderNames().forEachRemaining(names::add);
+            out.writeInt(names.size());
+            for (String name : names) {
+                out.writeUTF(name);
+                out.writeUTF(attachment.getHeader(name));
+            }
+
+            writeBytes(out, ((ByteDataSource) attachment.getDataHandler().getDataSource()).getData());
+        }
+
+        writeBytes(out, signedReceipt != null ? signedReceipt : new byte[0]);
+
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    public static DeferredMessage decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+
+        int version = in.readByte();
+        if (version != 1 && version != VERSION) {
+            throw new IOException("Unsupported deferred message record version " + version);
+        }
+
+        TransmissionIdentifier transmissionIdentifier = TransmissionIdentifier.of(in.readUTF());
+        Date date = new Date(in.readLong());
+        // Records of version 1 hold the date only
+        Receipt timestampReceipt = version > 1 && in.readBoolean() ? Receipt.of(in.readUTF(), readBytes(in)) : null;
+        Timestamp timestamp = new Timestamp(date, timestampReceipt);
+        byte[] signatureValue = readBytes(in);
+
+        X509Certificate senderCertificate;
+        try {
+            senderCertificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+                    .generateCertificate(new ByteArrayInputStream(readBytes(in)));
+        } catch (CertificateException e) {
+            throw new IOException("Unable to decode sender certificate", e);
+        }
+
+        Map<String, String> referenceDigests = new LinkedHashMap<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            referenceDigests.put(in.readUTF(), in.readUTF());
+        }
+
+        UserMessage userMessage;
+        try {
+            userMessage = Marshalling.getInstance().createUnmarshaller()
+                    .unmarshal(new StreamSource(new ByteArrayInputStream(readBytes(in))), UserMessage.class)
+                    .getValue();
+        } catch (JAXBException e) {
+            throw new IOException("Unable to unmarshal user message", e);
+        }
+
+        List<Attachment> attachments = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            String id = in.readUTF();
+
+            Map<String, String> headers = new LinkedHashMap<>();
+            for (int j = in.readInt(); j > 0; j--) {
+                headers.put(in.readUTF(), in.readUTF());
+            }
+
+            attachments.add(createAttachment(id, headers, readBytes(in)));
+        }
+
+        byte[] signedReceipt = readBytes(in);
+
+        return new DeferredMessage(transmissionIdentifier, timestamp, signatureValue, senderCertificate,
+                referenceDigests, userMessage, attachments, signedReceipt.length > 0 ? signedReceipt : null);
+    }
+
+    private static Attachment createAttachment(String id, Map<String, String> headers, byte[] content) {
+        String contentType = headers.entrySet().stream()
+                .filter(header -> "Content-Type".equalsIgnoreCase(header.getKey()))
+                .map(Map.Entry::getValue)
+                .findFirst()
+                .orElse("application/octet-stream");
+
+        AttachmentImpl attachment = new AttachmentImpl(id, new DataHandler(new ByteDataSource(content, contentType)));
+        headers.forEach(attachment::setHeader);
+        return attachment;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,369 @@
+package no.difi.oxalis.as4.inbound;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+import no.difi.oxalis.api.lang.OxalisLoadingException;
+import no.difi.oxalis.api.settings.Settings;
+import no.difi.oxalis.as4.config.As4Conf;
+import no.difi.oxalis.as4.persist.GroupCommitJournal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Journal of inbound messages accepted before they are processed. A message is appended once security validation
+ * has passed, the receipt is sent as soon as the message is durable, and the remaining processing runs on worker
+ * threads. Completion is recorded in the journal as well, messages without completion are processed again on startup.
+ * <p>
+ * Failed attempts are recorded too. A message failing the maximum number of attempts is handed to the dead letter
+ * handler and counts as processed, so it does not keep its segment from being deleted.
+ * <p>
+ * Segments are deleted once all messages in them, and in all older segments, are processed.
+ */
+@Slf4j
+@Singleton
+public class DeferredMessageJournal implements Closeable {
+
+    private static final byte MESSAGE = 1;
+
+    private static final byte DONE = 2;
+
+    private static final byte FAILED = 3;
+
+    private static final byte EXCEPTION = 4;
+
+    private final GroupCommitJournal journal;
+    private final long maxSize;
+    private final int threads;
+    private final int queueSize;
+    private final int maxAttempts;
+
+    /**
+     * Number of unprocessed messages by segment, and the segment of each unprocessed message.
+     */
+    private final Map<Long, AtomicInteger> pending = new ConcurrentSkipListMap<>();
+    private final Map<String, Long> segments = new ConcurrentHashMap<>();
+    private final Map<String, Integer> failures = new ConcurrentHashMap<>();
+
+    /**
+     * Held shared from appending a message until it is tracked, and exclusively while deleting segments.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicBoolean recovered = new AtomicBoolean();
+
+    private ExecutorService executor;
+
+    @Inject
+    public DeferredMessageJournal(Settings<As4Conf> settings) {
+        this(open(settings),
+                Long.parseLong(settings.getString(As4Conf.INBOUND_DEFERRED_MAX_SIZE)),
+                settings.getInt(As4Conf.INBOUND_DEFERRED_THREADS),
+                settings.getInt(As4Conf.INBOUND_DEFERRED_QUEUE_SIZE),
+                settings.getInt(As4Conf.INBOUND_DEFERRED_MAX_ATTEMPTS));
+    }
+
+    public DeferredMessageJournal(GroupCommitJournal journal, long maxSize, int threads, int queueSize, int maxAttempts) {
+        this.journal = journal;
+        this.maxSize = maxSize;
+        this.threads = Math.max(1, threads);
+        this.queueSize = Math.max(1, queueSize);
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    private static GroupCommitJournal open(Settings<As4Conf> settings) {
+        String directory = settings.getString(As4Conf.INBOUND_DEFERRED_DIRECTORY);
+        if (directory == null || directory.isEmpty()) {
+            return null;
+        }
+
+        try {
+            return new GroupCommitJournal(Paths.get(directory), "message",
+                    Long.parseLong(settings.getString(As4Conf.INBOUND_JOURNAL_SEGMENT_SIZE)),
+                    Long.parseLong(settings.getString(As4Conf.INBOUND_JOURNAL_COMMIT_WINDOW)));
+        } catch (IOException e) {
+            throw new OxalisLoadingException("Unable to open inbound message journal in " + directory, e);
+        }
+    }
+
+    public boolean isEnabled() {
+        return journal != null;
+    }
+
+    /**
+     * Whether a request of the given length is processed after the receipt is sent. Messages are held in memory
+     * until processed, so only requests of known length up to the configured maximum are deferred.
+     */
+    public boolean accepts(long contentLength) {
+        return isEnabled() && contentLength >= 0 && contentLength <= maxSize;
+    }
+
+    /**
+     * Appends the message and waits until it is durable.
+     */
+    public void append(DeferredMessage message) throws IOException {
+        byte[] record = record(MESSAGE, message.encode());
+
+        lock.readLock().lock();
+        try {
+            long segment = journal.appendAndWait(record);
+            pending.computeIfAbsent(segment, s -> new AtomicInteger()).incrementAndGet();
+            track(message.getTransmissionIdentifier().getIdentifier(), segment);
+            failures.remove(message.getTransmissionIdentifier().getIdentifier());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Processes the appended message on a worker thread, recording completion when the returned future completes.
+     * The message is processed on the calling thread when the queue of the workers is full.
+     * <p>
+     * Messages failing to process are kept in the journal and processed again on startup, until the maximum number
+     * of attempts is reached. The message is then handed to the dead letter handler.
+     */
+    public void process(DeferredMessage message, Function<DeferredMessage, CompletableFuture<Void>> processor,
+                        BiConsumer<DeferredMessage, Throwable> deadLetter) {
+        CompletableFuture.supplyAsync(() -> processor.apply(message), getExecutor())
+                .thenCompose(Function.identity())
+                .whenComplete((result, e) -> {
+                    if (e == null) {
+                        complete(message, DONE, new byte[0]);
+                    } else {
+                        failed(message, e instanceof CompletionException ? e.getCause() : e, deadLetter);
+                    }
+                });
+    }
+
+    private void failed(DeferredMessage message, Throwable cause, BiConsumer<DeferredMessage, Throwable> deadLetter) {
+        String id = message.getTransmissionIdentifier().getIdentifier();
+        int attempts = failures.merge(id, 1, Integer::sum);
+
+        if (attempts < maxAttempts) {
+            log.error("Unable to process deferred message '{}' (attempt {} of {}), retrying on next startup",
+                    id, attempts, maxAttempts, cause);
+
+            try {
+                appendRecord(record(FAILED, id, new byte[0]));
+            } catch (IOException e) {
+                log.error("Unable to record failed attempt of deferred message '{}'", id, e);
+            }
+            return;
+        }
+
+        log.error("Unable to process deferred message '{}' in {} attempt(s), giving up", id, attempts, cause);
+
+        try {
+            deadLetter.accept(message, cause);
+        } catch (RuntimeException e) {
+            log.error("Unable to hand deferred message '{}' to dead letter handler", id, e);
+        }
+
+        complete(message, EXCEPTION, String.valueOf(cause).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Processes messages left unprocessed by an earlier run. Only the first call has any effect.
+     */
+    public void recover(Function<DeferredMessage, CompletableFuture<Void>> processor,
+                        BiConsumer<DeferredMessage, Throwable> deadLetter) {
+        if (!isEnabled() || !recovered.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            Map<String, DeferredMessage> messages = new LinkedHashMap<>();
+
+            for (Path segment : journal.getSegments()) {
+                long index = journal.getSegmentIndex(segment);
+                pending.putIfAbsent(index, new AtomicInteger());
+
+                GroupCommitJournal.read(segment, record -> {
+                    byte[] content = Arrays.copyOfRange(record, 1, record.length);
+
+                    if (record[0] == DONE || record[0] == EXCEPTION) {
+                        String id = readId(content);
+                        failures.remove(id);
+                        if (messages.remove(id) != null) {
+                            pending.get(segments.remove(id)).decrementAndGet();
+                        }
+                        return;
+                    }
+
+                    if (record[0] == FAILED) {
+                        failures.merge(readId(content), 1, Integer::sum);
+                        return;
+                    }
+
+                    try {
+                        DeferredMessage message = DeferredMessage.decode(content);
+                        String id = message.getTransmissionIdentifier().getIdentifier();
+                        messages.put(id, message);
+                        pending.get(index).incrementAndGet();
+                        track(id, index);
+                        failures.remove(id);
+                    } catch (IOException e) {
+                        log.error("Unable to read deferred message in journal segment '{}'", segment, e);
+                    }
+                });
+            }
+
+            if (!messages.isEmpty()) {
+                log.info("Processing {} deferred message(s) left from earlier run", messages.size());
+            }
+            messages.values().forEach(message -> process(message, processor, deadLetter));
+
+            deleteProcessedSegments();
+        } catch (IOException e) {
+            log.error("Unable to recover deferred messages", e);
+        }
+    }
+
+    /**
+     * Records completion of the message, successful or not.
+     */
+    private void complete(DeferredMessage message, byte type, byte[] detail) {
+        String id = message.getTransmissionIdentifier().getIdentifier();
+
+        try {
+            appendRecord(record(type, id, detail));
+        } catch (IOException e) {
+            log.error("Unable to record completion of deferred message '{}'", id, e);
+            return;
+        }
+
+        failures.remove(id);
+        Long segment = segments.remove(id);
+        if (segment != null) {
+            pending.get(segment).decrementAndGet();
+        }
+
+        deleteProcessedSegments();
+    }
+
+    /**
+     * Appends a record about a message appended earlier. A segment holding only such records is deleted along with
+     * the others.
+     */
+    private void appendRecord(byte[] record) throws IOException {
+        lock.readLock().lock();
+        try {
+            pending.computeIfAbsent(journal.appendAndWait(record), s -> new AtomicInteger());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * A message received again replaces the earlier copy.
+     */
+    private void track(String id, long segment) {
+        Long previous = segments.put(id, segment);
+        if (previous != null) {
+            pending.get(previous).decrementAndGet();
+        }
+    }
+
+    private static byte[] record(byte type, byte[] content) {
+        byte[] record = new byte[content.length + 1];
+        record[0] = type;
+        System.arraycopy(content, 0, record, 1, content.length);
+        return record;
+    }
+
+    /**
+     * Record of a message id, followed by a zero byte and the detail when present.
+     */
+    private static byte[] record(byte type, String id, byte[] detail) {
+        byte[] content = id.getBytes(StandardCharsets.UTF_8);
+        if (detail.length > 0) {
+            byte[] withDetail = new byte[content.length + 1 + detail.length];
+            System.arraycopy(content, 0, withDetail, 0, content.length);
+            System.arraycopy(detail, 0, withDetail, content.length + 1, detail.length);
+            content = withDetail;
+        }
+        return record(type, content);
+    }
+
+    private static String readId(byte[] content) {
+        int end = 0;
+        while (end < content.length && content[end] != 0) {
+            end++;
+        }
+        return new String(content, 0, end, StandardCharsets.UTF_8);
+    }
+
+    private void deleteProcessedSegments() {
+        lock.writeLock().lock();
+        try {
+            long current = journal.getCurrentSegment();
+            for (Map.Entry<Long, AtomicInteger> segment : pending.entrySet()) {
+                // Later segments may hold completion of messages in this segment, only delete from the oldest on
+                if (segment.getKey() >= current || segment.getValue().get() > 0) {
+                    return;
+                }
+
+                try {
+                    journal.deleteSegment(segment.getKey());
+                    pending.remove(segment.getKey());
+                } catch (IOException e) {
+                    log.warn("Unable to delete processed journal segment {}", segment.getKey(), e);
+                    return;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            AtomicInteger counter = new AtomicInteger();
+            executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueSize), runnable -> {
+                Thread thread = new Thread(runnable, "oxalis-as4-deferred-" + counter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return executor;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdown();
+                try {
+                    executor.awaitTermination(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        if (journal != null) {
+            journal.close();
+        }
+    }
+}
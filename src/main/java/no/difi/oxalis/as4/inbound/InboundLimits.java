@@ -0,0 +1,75 @@
+package no.difi.oxalis.as4.inbound;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import no.difi.oxalis.api.settings.Settings;
+import no.difi.oxalis.as4.config.As4Conf;
+import org.apache.cxf.attachment.AttachmentDeserializer;
+import org.apache.cxf.message.Message;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Size limits of inbound requests. A negative limit disables the check.
+ */
+@Singleton
+public class InboundLimits {
+
+    private final long maxContentLength;
+
+    private final long maxAttachmentCount;
+
+    private final long maxAttachmentSize;
+
+    @Inject
+    public InboundLimits(Settings<As4Conf> settings) {
+        this(getLimit(settings, As4Conf.INBOUND_MAX_CONTENT_LENGTH),
+                getLimit(settings, As4Conf.INBOUND_MAX_ATTACHMENT_COUNT),
+                getLimit(settings, As4Conf.INBOUND_MAX_ATTACHMENT_SIZE));
+    }
+
+    public InboundLimits(long maxContentLength, long maxAttachmentCount, long maxAttachmentSize) {
+        this.maxContentLength = maxContentLength;
+        this.maxAttachmentCount = maxAttachmentCount;
+        this.maxAttachmentSize = maxAttachmentSize;
+    }
+
+    private static long getLimit(Settings<As4Conf> settings, As4Conf key) {
+        return Long.parseLong(settings.getString(key));
+    }
+
+    public long getMaxContentLength() {
+        return maxContentLength;
+    }
+
+    /**
+     * Whether a request announcing the given Content-Length is accepted. Requests of unknown length are accepted,
+     * see {@link #limitContent(HttpServletRequest)}.
+     */
+    public boolean acceptsContentLength(long contentLength) {
+        return maxContentLength < 0 || contentLength <= maxContentLength;
+    }
+
+    /**
+     * Guards the body of requests without Content-Length, failing the read once the maximum is exceeded.
+     */
+    public HttpServletRequest limitContent(HttpServletRequest request) {
+        if (maxContentLength < 0 || request.getContentLengthLong() >= 0) {
+            return request;
+        }
+
+        return new LimitedHttpServletRequest(request, maxContentLength);
+    }
+
+    /**
+     * Places the attachment limits on the message read by CXF.
+     */
+    public void apply(Message message) {
+        if (maxAttachmentCount >= 0) {
+            message.put(AttachmentDeserializer.ATTACHMENT_MAX_COUNT, Math.toIntExact(maxAttachmentCount));
+        }
+        if (maxAttachmentSize >= 0) {
+            message.put(AttachmentDeserializer.ATTACHMENT_MAX_SIZE, maxAttachmentSize);
+        }
+    }
+}
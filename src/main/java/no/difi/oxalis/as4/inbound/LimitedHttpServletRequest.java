@@ -0,0 +1,91 @@
+package no.difi.oxalis.as4.inbound;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import java.io.IOException;
+
+/**
+ * Guards requests without a Content-Length header (chunked transfer), failing the read as soon as more than
+ * the allowed number of bytes has been received.
+ */
+class LimitedHttpServletRequest extends HttpServletRequestWrapper {
+
+    private final long maxContentLength;
+
+    private ServletInputStream inputStream;
+
+    LimitedHttpServletRequest(HttpServletRequest request, long maxContentLength) {
+        super(request);
+        this.maxContentLength = maxContentLength;
+    }
+
+    @Override
+    public ServletInputStream getInputStream() throws IOException {
+        if (inputStream == null) {
+            inputStream = new LimitedServletInputStream(super.getInputStream(), maxContentLength);
+        }
+
+        return inputStream;
+    }
+
+    private static class LimitedServletInputStream extends ServletInputStream {
+
+        private final ServletInputStream delegate;
+
+        private final long maxContentLength;
+
+        private long count;
+
+        LimitedServletInputStream(ServletInputStream delegate, long maxContentLength) {
+            this.delegate = delegate;
+            this.maxContentLength = maxContentLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = delegate.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = delegate.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        private void count(int n) throws IOException {
+            count += n;
+            if (count > maxContentLength) {
+                throw new IOException(String.format("Request exceeds maximum content length of %d bytes", maxContentLength));
+            }
+        }
+
+        @Override
+        public boolean isFinished() {
+            return delegate.isFinished();
+        }
+
+        @Override
+        public boolean isReady() {
+            return delegate.isReady();
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            delegate.setReadListener(readListener);
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
@@ -1,36 +0,0 @@
-package no.difi.oxalis.as4.inbound;
-
-import javax.xml.namespace.QName;
-import javax.xml.ws.handler.MessageContext;
-import javax.xml.ws.handler.soap.SOAPHandler;
-import javax.xml.ws.handler.soap.SOAPMessageContext;
-import java.util.Collections;
-import java.util.Set;
-
-public class MessagingHandler implements SOAPHandler<SOAPMessageContext> {
-    @Override
-    public Set<QName> getHeaders() {
-
-        QName messagingHeader = new QName(
-                "http://docs.oasis-open.org/ebxml-msg/ebms/v3.0/ns/core/200704/",
-                "Messaging"
-        );
-
-        return Collections.singleton(messagingHeader);
-    }
-
-    @Override
-    public boolean handleMessage(SOAPMessageContext context) {
-        return true;
-    }
-
-    @Override
-    public boolean handleFault(SOAPMessageContext context) {
-        return true;
-    }
-
-    @Override
-    public void close(MessageContext context) {
-
-    }
-}
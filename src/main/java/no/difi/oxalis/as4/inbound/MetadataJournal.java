@@ -0,0 +1,543 @@
+package no.difi.oxalis.as4.inbound;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import no.difi.oxalis.api.lang.OxalisLoadingException;
+import no.difi.oxalis.api.model.TransmissionIdentifier;
+import no.difi.oxalis.api.settings.Settings;
+import no.difi.oxalis.api.timestamp.Timestamp;
+import no.difi.oxalis.as4.config.As4Conf;
+import no.difi.oxalis.as4.persist.GroupCommitJournal;
+import no.difi.vefa.peppol.common.code.DigestMethod;
+import no.difi.vefa.peppol.common.lang.PeppolParsingException;
+import no.difi.vefa.peppol.common.model.Digest;
+import no.difi.vefa.peppol.common.model.DocumentTypeIdentifier;
+import no.difi.vefa.peppol.common.model.Header;
+import no.difi.vefa.peppol.common.model.InstanceIdentifier;
+import no.difi.vefa.peppol.common.model.InstanceType;
+import no.difi.vefa.peppol.common.model.ParticipantIdentifier;
+import no.difi.vefa.peppol.common.model.ProcessIdentifier;
+import no.difi.vefa.peppol.common.model.Receipt;
+import no.difi.vefa.peppol.common.model.TransportProfile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Records the metadata of inbound messages in a {@link GroupCommitJournal}, so metadata of concurrent messages is
+ * synced to disk together. Enabled by configuring a journal directory.
+ * <p>
+ * A marker is appended once the persister has received the metadata. Metadata without a marker, e.g. when the
+ * access point stopped between journaling and persisting, is handed to the persister again on startup, see
+ * {@link #readUnpersisted()}. The persister may therefore receive the metadata of a message twice.
+ * <p>
+ * The receipt is sent once the metadata is durable, the persister receives the metadata on worker threads.
+ * <p>
+ * Segments are deleted once all metadata in them, and in all older segments, is persisted.
+ */
+@Slf4j
+@Singleton
+public class MetadataJournal implements Closeable {
+
+    private static final int VERSION = 2;
+
+    private static final int METADATA = 0;
+
+    private static final int PERSISTED = 1;
+
+    private final GroupCommitJournal journal;
+    private final int threads;
+    private final int queueSize;
+
+    /**
+     * Number of unpersisted messages by segment, and the segment of each unpersisted message.
+     */
+    private final Map<Long, AtomicInteger> pending = new ConcurrentSkipListMap<>();
+    private final Map<String, Long> segments = new ConcurrentHashMap<>();
+
+    /**
+     * Held shared from appending a record until it is tracked, and exclusively while deleting segments.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicBoolean recovered = new AtomicBoolean();
+
+    private ExecutorService executor;
+
+    @Inject
+    public MetadataJournal(Settings<As4Conf> settings) {
+        this(open(settings),
+                settings.getInt(As4Conf.INBOUND_JOURNAL_PERSIST_THREADS),
+                settings.getInt(As4Conf.INBOUND_JOURNAL_PERSIST_QUEUE_SIZE));
+    }
+
+    public MetadataJournal(GroupCommitJournal journal, int threads, int queueSize) {
+        this.journal = journal;
+        this.threads = Math.max(1, threads);
+        this.queueSize = Math.max(1, queueSize);
+    }
+
+    private static GroupCommitJournal open(Settings<As4Conf> settings) {
+        String directory = settings.getString(As4Conf.INBOUND_JOURNAL_DIRECTORY);
+        if (directory == null || directory.isEmpty()) {
+            return null;
+        }
+
+        try {
+            return new GroupCommitJournal(Paths.get(directory), "metadata",
+                    Long.parseLong(settings.getString(As4Conf.INBOUND_JOURNAL_SEGMENT_SIZE)),
+                    Long.parseLong(settings.getString(As4Conf.INBOUND_JOURNAL_COMMIT_WINDOW)));
+        } catch (IOException e) {
+            throw new OxalisLoadingException("Unable to open metadata journal in " + directory, e);
+        }
+    }
+
+    public boolean isEnabled() {
+        return journal != null;
+    }
+
+    /**
+     * Appends the metadata and waits until it is synced to disk, together with metadata of concurrent messages.
+     */
+    public void append(As4InboundMetadata metadata, Path payloadPath) throws IOException {
+        byte[] record = encode(metadata, payloadPath);
+
+        lock.readLock().lock();
+        try {
+            long segment = journal.appendAndWait(record);
+            pending.computeIfAbsent(segment, s -> new AtomicInteger()).incrementAndGet();
+            track(metadata.getTransmissionIdentifier().getIdentifier(), segment);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Hands journaled metadata to the persister on a worker thread, the receipt does not wait for it. Failures are
+     * logged, the metadata is handed to the persister again on startup. The metadata is persisted on the calling
+     * thread when the queue of the workers is full.
+     */
+    public void persist(TransmissionIdentifier transmissionIdentifier, Supplier<CompletableFuture<Void>> persister) {
+        CompletableFuture.supplyAsync(persister, getExecutor())
+                .thenCompose(Function.identity())
+                .whenComplete((result, e) -> {
+                    if (e != null) {
+                        log.error("Unable to persist journaled metadata of message '{}', retrying on next startup",
+                                transmissionIdentifier, e instanceof CompletionException ? e.getCause() : e);
+                    }
+                });
+    }
+
+    /**
+     * Records that the persister has received the metadata of the message, and deletes segments no longer holding
+     * unpersisted metadata. A marker lost in a crash only causes the metadata to be persisted again.
+     */
+    public void markPersisted(TransmissionIdentifier transmissionIdentifier) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bos)) {
+            out.writeByte(VERSION);
+            out.writeByte(PERSISTED);
+            out.writeUTF(transmissionIdentifier.getIdentifier());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        lock.readLock().lock();
+        try {
+            // A segment holding markers only is deleted along with the others
+            pending.computeIfAbsent(journal.appendAndWait(bos.toByteArray()), s -> new AtomicInteger());
+        } catch (IOException e) {
+            log.warn("Unable to journal persisted metadata of message '{}'", transmissionIdentifier, e);
+            return;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        Long segment = segments.remove(transmissionIdentifier.getIdentifier());
+        if (segment != null) {
+            pending.get(segment).decrementAndGet();
+        }
+
+        deleteProcessedSegments();
+    }
+
+    /**
+     * Reads all metadata of the journal, oldest first.
+     */
+    public void read(Consumer<Entry> consumer) throws IOException {
+        for (Path segment : journal.getSegments()) {
+            List<byte[]> records = new ArrayList<>();
+            GroupCommitJournal.read(segment, records::add);
+
+            for (byte[] record : records) {
+                if (!isMarker(record)) {
+                    consumer.accept(decode(record));
+                }
+            }
+        }
+    }
+
+    /**
+     * Metadata not yet received by the persister, oldest first. Records written before markers were introduced
+     * (version 1) are never returned, they do not hold the complete header.
+     * <p>
+     * The first call, on startup before messages are received, also records which segments hold unpersisted metadata
+     * and deletes the segments that do not.
+     */
+    public List<Entry> readUnpersisted() throws IOException {
+        boolean tracking = recovered.compareAndSet(false, true);
+        Map<String, Entry> unpersisted = new LinkedHashMap<>();
+
+        for (Path segment : journal.getSegments()) {
+            long index = journal.getSegmentIndex(segment);
+            if (tracking) {
+                pending.putIfAbsent(index, new AtomicInteger());
+            }
+
+            List<byte[]> records = new ArrayList<>();
+            GroupCommitJournal.read(segment, records::add);
+
+            for (byte[] record : records) {
+                if (isMarker(record)) {
+                    String id = decodeMarker(record);
+                    if (unpersisted.remove(id) != null && tracking) {
+                        pending.get(segments.remove(id)).decrementAndGet();
+                    }
+                } else if (record[0] == VERSION) {
+                    Entry entry = decode(record);
+                    String id = entry.getTransmissionIdentifier().getIdentifier();
+                    unpersisted.put(id, entry);
+                    if (tracking) {
+                        pending.get(index).incrementAndGet();
+                        track(id, index);
+                    }
+                }
+            }
+        }
+
+        if (tracking) {
+            deleteProcessedSegments();
+        }
+
+        return new ArrayList<>(unpersisted.values());
+    }
+
+    /**
+     * Metadata of a message received again replaces the earlier copy.
+     */
+    private void track(String id, long segment) {
+        Long previous = segments.put(id, segment);
+        if (previous != null) {
+            pending.get(previous).decrementAndGet();
+        }
+    }
+
+    private void deleteProcessedSegments() {
+        lock.writeLock().lock();
+        try {
+            long current = journal.getCurrentSegment();
+            for (Map.Entry<Long, AtomicInteger> segment : pending.entrySet()) {
+                // Later segments may hold markers of metadata in this segment, only delete from the oldest on
+                if (segment.getKey() >= current || segment.getValue().get() > 0) {
+                    return;
+                }
+
+                try {
+                    journal.deleteSegment(segment.getKey());
+                    pending.remove(segment.getKey());
+                } catch (IOException e) {
+                    log.warn("Unable to delete persisted metadata journal segment {}", segment.getKey(), e);
+                    return;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            AtomicInteger counter = new AtomicInteger();
+            executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueSize), runnable -> {
+                Thread thread = new Thread(runnable, "oxalis-as4-metadata-" + counter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return executor;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Markers of metadata being persisted are still written to the journal
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdown();
+                try {
+                    executor.awaitTermination(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    public static byte[] encode(As4InboundMetadata metadata, Path payloadPath) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(bos);
+
+        Header header = metadata.getHeader();
+
+        out.writeByte(VERSION);
+        out.writeByte(METADATA);
+        out.writeUTF(metadata.getTransmissionIdentifier().getIdentifier());
+        writeNullable(out, metadata.getConversationId());
+        writeNullable(out, header.getSender());
+        writeNullable(out, header.getReceiver());
+        writeNullable(out, header.getDocumentType());
+        writeNullable(out, header.getProcess());
+        writeNullable(out, header.getIdentifier() != null ? header.getIdentifier().getIdentifier() : null);
+        InstanceType instanceType = header.getInstanceType();
+        out.writeBoolean(instanceType != null);
+        if (instanceType != null) {
+            writeNullable(out, instanceType.getStandard());
+            writeNullable(out, instanceType.getType());
+            writeNullable(out, instanceType.getVersion());
+        }
+        out.writeLong(header.getCreationTimestamp() != null ? header.getCreationTimestamp().getTime() : -1);
+        out.writeLong(metadata.getTimestamp().getTime());
+        writeDigest(out, metadata.getDigest());
+        writeNullable(out, payloadPath);
+
+        try {
+            writeBytes(out, metadata.getCertificate() != null ? metadata.getCertificate().getEncoded() : new byte[0]);
+        } catch (CertificateEncodingException e) {
+            throw new IOException("Unable to encode sender certificate", e);
+        }
+
+        out.writeInt(metadata.getReceipts().size());
+        for (Receipt receipt : metadata.getReceipts()) {
+            out.writeUTF(receipt.getType());
+            writeBytes(out, receipt.getValue());
+        }
+
+        out.writeBoolean(metadata.getDecompressedDigest() != null);
+        if (metadata.getDecompressedDigest() != null) {
+            writeDigest(out, metadata.getDecompressedDigest());
+        }
+        out.writeLong(metadata.getDecompressedSize());
+
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    public static Entry decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+
+        int version = in.readByte();
+        if (version == 1) {
+            return decodeVersion1(in);
+        }
+        if (version != VERSION) {
+            throw new IOException("Unsupported metadata journal record version " + version);
+        }
+        if (in.readByte() != METADATA) {
+            throw new IOException("Metadata journal record holds no metadata");
+        }
+
+        TransmissionIdentifier transmissionIdentifier = TransmissionIdentifier.of(in.readUTF());
+        String conversationId = readNullable(in);
+
+        Header header = readIdentifiers(readNullable(in), readNullable(in), readNullable(in), readNullable(in));
+        String identifier = readNullable(in);
+        if (identifier != null) {
+            header = header.identifier(InstanceIdentifier.of(identifier));
+        }
+        if (in.readBoolean()) {
+            header = header.instanceType(InstanceType.of(readNullable(in), readNullable(in), readNullable(in)));
+        }
+        long creationTimestamp = in.readLong();
+        if (creationTimestamp >= 0) {
+            header = header.creationTimestamp(new Date(creationTimestamp));
+        }
+
+        Date timestamp = new Date(in.readLong());
+        Digest digest = readDigest(in);
+        String payloadPath = readNullable(in);
+        byte[] certificate = readBytes(in);
+        List<Receipt> receipts = readReceipts(in);
+        Digest decompressedDigest = in.readBoolean() ? readDigest(in) : null;
+        long decompressedSize = in.readLong();
+
+        return new Entry(transmissionIdentifier, conversationId, header, timestamp, digest, payloadPath, certificate,
+                receipts, decompressedDigest, decompressedSize);
+    }
+
+    /**
+     * Records of version 1 hold the header identifiers only, missing values were written as "null".
+     */
+    private static Entry decodeVersion1(DataInputStream in) throws IOException {
+        TransmissionIdentifier transmissionIdentifier = TransmissionIdentifier.of(in.readUTF());
+        String conversationId = readVersion1(in);
+
+        Header header = readIdentifiers(readVersion1(in), readVersion1(in), readVersion1(in), readVersion1(in));
+
+        Date timestamp = new Date(in.readLong());
+        Digest digest = readDigest(in);
+        String payloadPath = readVersion1(in);
+        byte[] certificate = readBytes(in);
+        List<Receipt> receipts = readReceipts(in);
+
+        return new Entry(transmissionIdentifier, conversationId, header, timestamp, digest, payloadPath, certificate,
+                receipts, null, -1);
+    }
+
+    private static Header readIdentifiers(String sender, String receiver, String documentType, String process)
+            throws IOException {
+        try {
+            return Header.newInstance()
+                    .sender(sender != null ? ParticipantIdentifier.parse(sender) : null)
+                    .receiver(receiver != null ? ParticipantIdentifier.parse(receiver) : null)
+                    .documentType(documentType != null ? DocumentTypeIdentifier.parse(documentType) : null)
+                    .process(process != null ? ProcessIdentifier.parse(process) : null);
+        } catch (PeppolParsingException e) {
+            throw new IOException("Unable to read header identifiers", e);
+        }
+    }
+
+    private static boolean isMarker(byte[] record) {
+        return record.length > 1 && record[0] == VERSION && record[1] == PERSISTED;
+    }
+
+    private static String decodeMarker(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record, 2, record.length - 2));
+        return in.readUTF();
+    }
+
+    private static void writeNullable(DataOutputStream out, Object value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value.toString());
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static String readVersion1(DataInputStream in) throws IOException {
+        String value = in.readUTF();
+        return "null".equals(value) ? null : value;
+    }
+
+    private static void writeDigest(DataOutputStream out, Digest digest) throws IOException {
+        out.writeUTF(digest.getMethod().getUri());
+        writeBytes(out, digest.getValue());
+    }
+
+    private static Digest readDigest(DataInputStream in) throws IOException {
+        return Digest.of(DigestMethod.fromUri(in.readUTF()), readBytes(in));
+    }
+
+    private static List<Receipt> readReceipts(DataInputStream in) throws IOException {
+        List<Receipt> receipts = new ArrayList<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            receipts.add(Receipt.of(in.readUTF(), readBytes(in)));
+        }
+        return receipts;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Entry {
+
+        private final TransmissionIdentifier transmissionIdentifier;
+
+        private final String conversationId;
+
+        private final Header header;
+
+        private final Date timestamp;
+
+        private final Digest digest;
+
+        private final String payloadPath;
+
+        private final byte[] certificate;
+
+        private final List<Receipt> receipts;
+
+        private final Digest decompressedDigest;
+
+        private final long decompressedSize;
+
+        /**
+         * Metadata as handed to the persister. The envelope header is not journaled and is missing.
+         */
+        public As4InboundMetadata toMetadata() throws IOException {
+            X509Certificate senderCertificate = null;
+            if (certificate.length > 0) {
+                try {
+                    senderCertificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+                            .generateCertificate(new ByteArrayInputStream(certificate));
+                } catch (CertificateException e) {
+                    throw new IOException("Unable to decode sender certificate", e);
+                }
+            }
+
+            Timestamp metadataTimestamp = new Timestamp(timestamp, receipts.size() > 1 ? receipts.get(1) : null);
+            return new As4InboundMetadata(transmissionIdentifier, conversationId, header, metadataTimestamp,
+                    TransportProfile.AS4, digest, senderCertificate, receipts.get(0).getValue(), null,
+                    decompressedDigest, decompressedSize);
+        }
+    }
+}
@@ -40,17 +40,14 @@ public class OxalisAS4WsInInterceptor extends WSS4JInInterceptor {
             msg.put(WSHandlerConstants.ACTION, WSHandlerConstants.SIGNATURE + " " + WSHandlerConstants.ENCRYPT);
         }
 
-        Collection<Attachment> attachments = new ArrayList<>();
-        if(msg.getAttachments() != null){
-            attachments.addAll(msg.getAttachments());
-        }
-
-
         try {
             super.handleMessage(msg);
         } catch (Throwable t){
 
-            if (As4FaultInHandler.attachmentsIsCompressed(attachments)){
+            // Only needed for diagnosing the failure, so the attachments are not collected up front
+            Collection<Attachment> attachments = msg.getAttachments() != null
+                    ? msg.getAttachments() : Collections.emptyList();
+            if (As4FaultOutInterceptor.attachmentsIsCompressed(attachments)){
                 msg.put("oxalis.as4.compressionErrorDetected", true);
             }
             throw t;
@@ -60,19 +57,46 @@ public class OxalisAS4WsInInterceptor extends WSS4JInInterceptor {
         SOAPMessage soapMessage = msg.getContent(SOAPMessage.class);
         if (soapMessage != null) {
             if (soapMessage.countAttachments() > 0) {
+                Map<String, Attachment> attachmentsById = indexById(msg.getAttachments());
+
                 Iterator<AttachmentPart> it = CastUtils.cast(soapMessage.getAttachments());
                 while (it.hasNext()) {
                     AttachmentPart part = it.next();
-                    Optional<Attachment> first = msg.getAttachments().stream()
-                            .filter(a -> a.getId().equals(part.getContentId().replaceAll("<|>", "")))
-                            .findFirst();
-                    first.ifPresent(a -> part.setDataHandler(a.getDataHandler()));
-                    first.orElseThrow(() -> new Fault(new OxalisAs4Exception("Unable to find attachment")));
+                    Attachment attachment = attachmentsById.get(stripAngleBrackets(part.getContentId()));
+                    if (attachment == null) {
+                        throw new Fault(new OxalisAs4Exception("Unable to find attachment"));
+                    }
+                    part.setDataHandler(attachment.getDataHandler());
                 }
             }
         }
     }
 
+    private static Map<String, Attachment> indexById(Collection<Attachment> attachments) {
+        Map<String, Attachment> attachmentsById = new HashMap<>();
+        if (attachments != null) {
+            for (Attachment attachment : attachments) {
+                attachmentsById.putIfAbsent(attachment.getId(), attachment);
+            }
+        }
+        return attachmentsById;
+    }
+
+    private static String stripAngleBrackets(String contentId) {
+        if (contentId == null || (contentId.indexOf('<') < 0 && contentId.indexOf('>') < 0)) {
+            return contentId;
+        }
+
+        StringBuilder sb = new StringBuilder(contentId.length());
+        for (int i = 0; i < contentId.length(); i++) {
+            char c = contentId.charAt(i);
+            if (c != '<' && c != '>') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
     @Override
     public Set<QName> getUnderstoodHeaders() {
         Set<QName> understoodHeaders = super.getUnderstoodHeaders();
@@ -3,7 +3,7 @@ package no.difi.oxalis.as4.inbound;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import no.difi.oxalis.api.timestamp.Timestamp;
-import org.w3.xmldsig.ReferenceType;
+import org.w3c.dom.Element;
 
 import java.util.List;
 
@@ -12,6 +12,6 @@ import java.util.List;
 public class ProsessingContext {
 
     private Timestamp receiptTimestamp;
-    private List<ReferenceType> referenceList;
+    private List<Element> referenceList;
 
 }
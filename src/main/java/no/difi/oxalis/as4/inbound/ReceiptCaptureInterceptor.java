@@ -0,0 +1,106 @@
+package no.difi.oxalis.as4.inbound;
+
+import com.google.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.cxf.interceptor.AttachmentOutInterceptor;
+import org.apache.cxf.interceptor.Fault;
+import org.apache.cxf.interceptor.StaxOutInterceptor;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.phase.AbstractPhaseInterceptor;
+import org.apache.cxf.phase.Phase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.function.Consumer;
+
+/**
+ * Holds the receipt back while it is written, and hands the signed bytes to the callback placed on the exchange by
+ * {@link As4InboundHandler} once the response is complete. The receipt is only written to the wire after the
+ * callback has returned, a failing callback prevents the receipt from being sent.
+ * <p>
+ * When the receipt is not sent, because the callback failed or was never reached, the payloads of the message are
+ * discarded through the handler placed on the inbound message.
+ */
+@Slf4j
+@Singleton
+public class ReceiptCaptureInterceptor extends AbstractPhaseInterceptor<Message> {
+
+    public ReceiptCaptureInterceptor() {
+        super(Phase.PRE_STREAM);
+        addBefore(AttachmentOutInterceptor.class.getName());
+        addBefore(StaxOutInterceptor.class.getName());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void handleMessage(Message message) throws Fault {
+        Consumer<byte[]> callback = (Consumer<byte[]>) message.getExchange().get(AS4MessageContextKey.RECEIPT_CALLBACK);
+        OutputStream os = message.getContent(OutputStream.class);
+
+        if (callback == null || os == null) {
+            return;
+        }
+
+        HeldOutputStream held = new HeldOutputStream(os, callback);
+        message.put(HeldOutputStream.class, held);
+        message.setContent(OutputStream.class, held);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void handleFault(Message message) {
+        HeldOutputStream held = message.get(HeldOutputStream.class);
+        Message inMessage = message.getExchange().getInMessage();
+
+        if (held == null || held.accepted || inMessage == null) {
+            return;
+        }
+
+        Consumer<Exception> discard = (Consumer<Exception>) inMessage.remove(AS4MessageContextKey.RECEIPT_DISCARD);
+        if (discard != null) {
+            try {
+                discard.accept(message.getContent(Exception.class));
+            } catch (RuntimeException e) {
+                log.error("Unable to discard payloads of message without receipt", e);
+            }
+        }
+    }
+
+    private static class HeldOutputStream extends ByteArrayOutputStream {
+
+        private final OutputStream outputStream;
+        private final Consumer<byte[]> callback;
+
+        private boolean closed;
+
+        /**
+         * Whether the callback returned, from then on the message is kept also when the receipt fails to be written.
+         */
+        private volatile boolean accepted;
+
+        private HeldOutputStream(OutputStream outputStream, Consumer<byte[]> callback) {
+            this.outputStream = outputStream;
+            this.callback = callback;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            try {
+                callback.accept(toByteArray());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            accepted = true;
+
+            writeTo(outputStream);
+            outputStream.close();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package no.difi.oxalis.as4.inbound;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+import no.difi.oxalis.api.inbound.InboundMetadata;
+import no.difi.oxalis.api.inbound.InboundService;
+import no.difi.oxalis.api.settings.Settings;
+import no.difi.oxalis.as4.api.BatchInboundService;
+import no.difi.oxalis.as4.config.As4Conf;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passes completed transmissions to the {@link InboundService}. With write-behind enabled, completions are queued
+ * and delivered by a worker thread, so inbound messages do not wait for the statistics backend. The queue is bounded,
+ * callers block when it is full. Queued completions are delivered on {@link #close()} and on JVM shutdown.
+ */
+@Slf4j
+@Singleton
+public class WriteBehindInboundService implements InboundService, Closeable {
+
+    private static final long CLOSE_TIMEOUT = 30_000;
+
+    private final InboundService inboundService;
+    private final boolean writeBehind;
+    private final int batchSize;
+    private final long flushInterval;
+
+    private final BlockingQueue<InboundMetadata> queue;
+
+    private Thread worker;
+    private Thread shutdownHook;
+    private volatile boolean closed;
+
+    @Inject
+    public WriteBehindInboundService(InboundService inboundService, Settings<As4Conf> settings) {
+        this(inboundService,
+                Boolean.parseBoolean(settings.getString(As4Conf.INBOUND_COMPLETE_WRITE_BEHIND)),
+                settings.getInt(As4Conf.INBOUND_COMPLETE_QUEUE_SIZE),
+                settings.getInt(As4Conf.INBOUND_COMPLETE_BATCH_SIZE),
+                Long.parseLong(settings.getString(As4Conf.INBOUND_COMPLETE_FLUSH_INTERVAL)));
+    }
+
+    public WriteBehindInboundService(InboundService inboundService, boolean writeBehind, int queueSize, int batchSize,
+                                     long flushInterval) {
+        this.inboundService = inboundService;
+        this.writeBehind = writeBehind;
+        this.batchSize = Math.max(1, batchSize);
+        this.flushInterval = Math.max(1, flushInterval);
+        this.queue = new LinkedBlockingQueue<>(Math.max(1, queueSize));
+    }
+
+    @Override
+    public void complete(InboundMetadata inboundMetadata) {
+        if (!writeBehind || closed) {
+            deliver(Collections.singletonList(inboundMetadata));
+            return;
+        }
+
+        start();
+
+        try {
+            if (!queue.offer(inboundMetadata)) {
+                log.debug("Completion queue is full, waiting for the inbound service");
+                queue.put(inboundMetadata);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            deliver(Collections.singletonList(inboundMetadata));
+            return;
+        }
+
+        // Closed while queueing, the worker may already be gone
+        if (closed && queue.remove(inboundMetadata)) {
+            deliver(Collections.singletonList(inboundMetadata));
+        }
+    }
+
+    private synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+
+        worker = new Thread(this::processQueue, "oxalis-as4-inbound-complete");
+        worker.setDaemon(true);
+        worker.start();
+
+        shutdownHook = new Thread(this::close, "oxalis-as4-inbound-complete-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    private void processQueue() {
+        List<InboundMetadata> batch = new ArrayList<>(batchSize);
+
+        while (!closed || !queue.isEmpty()) {
+            try {
+                InboundMetadata first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                if (inboundService instanceof BatchInboundService) {
+                    // Let the batch fill up within the flush interval
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushInterval);
+                    while (batch.size() < batchSize && !closed) {
+                        InboundMetadata next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                        queue.drainTo(batch, batchSize - batch.size());
+                    }
+                } else {
+                    queue.drainTo(batch, batchSize - 1);
+                }
+
+                deliver(batch);
+            } catch (InterruptedException e) {
+                // Remaining completions are delivered by close()
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void deliver(List<InboundMetadata> batch) {
+        if (batch.size() > 1 && inboundService instanceof BatchInboundService) {
+            try {
+                ((BatchInboundService) inboundService).complete(batch);
+            } catch (RuntimeException e) {
+                log.error("Error completing {} inbound transmissions", batch.size(), e);
+            }
+            return;
+        }
+
+        for (InboundMetadata inboundMetadata : batch) {
+            try {
+                inboundService.complete(inboundMetadata);
+            } catch (RuntimeException e) {
+                log.error("Error completing inbound transmission '{}'", inboundMetadata.getTransmissionIdentifier(), e);
+            }
+        }
+    }
+
+    /**
+     * Stops the worker after delivering queued completions. Later completions are delivered directly.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        Thread thread;
+        synchronized (this) {
+            thread = worker;
+        }
+
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join(CLOSE_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        List<InboundMetadata> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            log.info("Delivering {} queued inbound completions", remaining.size());
+            deliver(remaining);
+        }
+
+        removeShutdownHook();
+    }
+
+    private synchronized void removeShutdownHook() {
+        if (shutdownHook == null || Thread.currentThread() == shutdownHook) {
+            return;
+        }
+
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // JVM is already shutting down
+        }
+        shutdownHook = null;
+    }
+}
@@ -2,11 +2,13 @@ package no.difi.oxalis.as4.outbound;
 
 import com.google.inject.Inject;
 import lombok.extern.slf4j.Slf4j;
+import no.difi.oxalis.api.model.Direction;
 import no.difi.oxalis.api.outbound.TransmissionRequest;
 import no.difi.oxalis.api.outbound.TransmissionResponse;
 import no.difi.oxalis.api.settings.Settings;
 import no.difi.oxalis.as4.api.MessageIdGenerator;
 import no.difi.oxalis.as4.lang.OxalisAs4TransmissionException;
+import no.difi.oxalis.as4.persist.MessageIndex;
 import no.difi.oxalis.as4.util.CompressionUtil;
 import no.difi.oxalis.as4.util.Constants;
 import no.difi.oxalis.as4.util.PolicyService;
@@ -26,6 +28,7 @@ import org.apache.cxf.transports.http.configuration.HTTPClientPolicy;
 import org.apache.cxf.ws.policy.WSPolicyFeature;
 import org.apache.wss4j.common.crypto.Merlin;
 import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.Messaging;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.UserMessage;
 
 import javax.xml.bind.JAXBException;
 import javax.xml.namespace.QName;
@@ -69,6 +72,9 @@ public class As4MessageSender {
     @Inject
     private PolicyService policyService;
 
+    @Inject
+    private MessageIndex messageIndex;
+
     public TransmissionResponse send(TransmissionRequest request) throws OxalisAs4TransmissionException {
         Dispatch<SOAPMessage> dispatch = createDispatch(request);
         Collection<Attachment> attachments = prepareAttachments(request);
@@ -80,7 +86,19 @@ public class As4MessageSender {
 
         SOAPMessage response = dispatch.invoke(null);
 
-        return transmissionResponseConverter.convert(request, response);
+        TransmissionResponse transmissionResponse = transmissionResponseConverter.convert(request, response);
+
+        if (messageIndex.isEnabled()) {
+            UserMessage userMessage = messaging.getUserMessage().get(0);
+            messageIndex.record(new MessageIndex.Entry(Direction.OUT,
+                    userMessage.getMessageInfo().getMessageId(),
+                    userMessage.getCollaborationInfo().getConversationId(),
+                    userMessage.getMessageInfo().getRefToMessageId(),
+                    transmissionResponse.getTimestamp(),
+                    String.valueOf(request.getEndpoint().getAddress())));
+        }
+
+        return transmissionResponse;
     }
 
     private SoapHeader getSoapHeader(Messaging messaging) throws OxalisAs4TransmissionException {
@@ -11,6 +11,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.function.Supplier;
 
 public class As4TransmissionResponse implements TransmissionResponse {
 
@@ -18,26 +19,32 @@ public class As4TransmissionResponse implements TransmissionResponse {
     private final TransmissionRequest transmissionRequest;
     private final TransmissionIdentifier transmissionIdentifier;
     private final Digest digest;
-    private final Receipt receipt;
-    private final List<Receipt> receipts;
+    private final Supplier<Receipt> receipt;
+    private final Receipt timestampReceipt;
     private final Date timestamp;
     private final OxalisAs4TransmissionException transmissionException;
 
     public As4TransmissionResponse(TransmissionIdentifier transmissionIdentifier,
                                    TransmissionRequest transmissionRequest, Digest digest,
                                    byte[] nativeEvidenceBytes, Timestamp timestamp, Date date) {
+        this(transmissionIdentifier, transmissionRequest, digest,
+                receiptSupplier(Receipt.of("message/disposition-notification", nativeEvidenceBytes)), timestamp, date);
+    }
+
+    /**
+     * @param receipt supplier of the receipt, e.g. reading it from a receipt archive, so the response does not hold
+     *                the receipt itself.
+     */
+    public As4TransmissionResponse(TransmissionIdentifier transmissionIdentifier,
+                                   TransmissionRequest transmissionRequest, Digest digest,
+                                   Supplier<Receipt> receipt, Timestamp timestamp, Date date) {
         this.transmissionIdentifier = transmissionIdentifier;
         this.transmissionRequest = transmissionRequest;
         this.digest = digest;
-        this.receipt = Receipt.of("message/disposition-notification", nativeEvidenceBytes);
+        this.receipt = receipt;
+        this.timestampReceipt = timestamp.getReceipt().orElse(null);
         this.timestamp = date;
         this.transmissionException = null;
-
-        List<Receipt> receiptList = new ArrayList<>();
-        receiptList.add(receipt);
-        timestamp.getReceipt().ifPresent(receiptList::add);
-
-        this.receipts = Collections.unmodifiableList(receiptList);
     }
 
     public As4TransmissionResponse(TransmissionIdentifier transmissionIdentifier, TransmissionRequest transmissionRequest, OxalisAs4TransmissionException transmissionException) {
@@ -46,7 +53,7 @@ public class As4TransmissionResponse implements TransmissionResponse {
         this.transmissionException = transmissionException;
         this.digest = null;
         this.receipt = null;
-        this.receipts = null;
+        this.timestampReceipt = null;
         this.timestamp = null;
     }
 
@@ -61,7 +68,17 @@ public class As4TransmissionResponse implements TransmissionResponse {
 
     @Override
     public List<Receipt> getReceipts() {
-        return receipts;
+        if (receipt == null) {
+            return null;
+        }
+
+        List<Receipt> receiptList = new ArrayList<>();
+        receiptList.add(receipt.get());
+        if (timestampReceipt != null) {
+            receiptList.add(timestampReceipt);
+        }
+
+        return Collections.unmodifiableList(receiptList);
     }
 
     @Override
@@ -71,7 +88,7 @@ public class As4TransmissionResponse implements TransmissionResponse {
 
     @Override
     public Receipt primaryReceipt() {
-        return receipt;
+        return receipt != null ? receipt.get() : null;
     }
 
     @Override
@@ -89,6 +106,10 @@ public class As4TransmissionResponse implements TransmissionResponse {
         return timestamp;
     }
 
+    private static Supplier<Receipt> receiptSupplier(Receipt receipt) {
+        return () -> receipt;
+    }
+
     public OxalisAs4TransmissionException getTransmissionException() {
         return transmissionException;
     }
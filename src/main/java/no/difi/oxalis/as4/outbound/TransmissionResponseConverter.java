@@ -1,44 +1,50 @@
 package no.difi.oxalis.as4.outbound;
 
 import com.google.inject.Inject;
-import no.difi.oxalis.api.lang.TimestampException;
 import no.difi.oxalis.api.model.Direction;
 import no.difi.oxalis.api.model.TransmissionIdentifier;
 import no.difi.oxalis.api.outbound.TransmissionRequest;
 import no.difi.oxalis.api.outbound.TransmissionResponse;
 import no.difi.oxalis.api.timestamp.Timestamp;
-import no.difi.oxalis.api.timestamp.TimestampProvider;
+import no.difi.oxalis.as4.common.AsyncTimestampService;
+import no.difi.oxalis.as4.lang.OxalisAs4Exception;
 import no.difi.oxalis.as4.lang.OxalisAs4TransmissionException;
+import no.difi.oxalis.as4.persist.ReceiptArchive;
 import no.difi.oxalis.as4.util.AS4ErrorCode;
-import no.difi.oxalis.as4.util.Marshalling;
+import no.difi.oxalis.as4.util.MessagingReader;
 import no.difi.oxalis.commons.bouncycastle.BCHelper;
 import no.difi.vefa.peppol.common.code.DigestMethod;
 import no.difi.vefa.peppol.common.model.Digest;
+import no.difi.vefa.peppol.common.model.Receipt;
 import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.Error;
 import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.SignalMessage;
+import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.Unmarshaller;
 import javax.xml.soap.SOAPException;
 import javax.xml.soap.SOAPMessage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
 
 import static no.difi.oxalis.as4.util.Constants.DIGEST_ALGORITHM_SHA256;
 
 public class TransmissionResponseConverter {
 
-    private final JAXBContext jaxbContext = Marshalling.getInstance();
-    private final TimestampProvider timestampProvider;
+    private final AsyncTimestampService timestampService;
+
+    private final ReceiptArchive receiptArchive;
 
     @Inject
-    public TransmissionResponseConverter(TimestampProvider timestampProvider) {
-        this.timestampProvider = timestampProvider;
+    public TransmissionResponseConverter(AsyncTimestampService timestampService, ReceiptArchive receiptArchive) {
+        this.timestampService = timestampService;
+        this.receiptArchive = receiptArchive;
     }
 
     public TransmissionResponse convert(TransmissionRequest request, SOAPMessage response) throws OxalisAs4TransmissionException {
@@ -66,6 +72,17 @@ public class TransmissionResponseConverter {
             throw new OxalisAs4TransmissionException("Could not write response", e);
         }
 
+        if (receiptArchive.isEnabled()) {
+            return new As4TransmissionResponse(
+                    ti,
+                    request,
+                    digest,
+                    archiveReceipt(request, ti, Receipt.of("message/disposition-notification", bos.toByteArray())),
+                    ts,
+                    ts.getDate()
+            );
+        }
+
         return new As4TransmissionResponse(
                 ti,
                 request,
@@ -76,6 +93,19 @@ public class TransmissionResponseConverter {
         );
     }
 
+    /**
+     * Appends the receipt to the receipt archive, the response reads it back from there when asked for.
+     */
+    private Supplier<Receipt> archiveReceipt(TransmissionRequest request, TransmissionIdentifier ti, Receipt receipt) {
+        String conversationId = request instanceof As4TransmissionRequest
+                ? ((As4TransmissionRequest) request).getConversationId() : null;
+        receiptArchive.append(ti.getIdentifier(), conversationId, receipt);
+
+        Supplier<List<Receipt>> receipts = receiptArchive.supplier(ti.getIdentifier(),
+                Collections.singletonList(receipt.getType()));
+        return () -> receipts.get().get(0);
+    }
+
     private Digest getDigest() throws OxalisAs4TransmissionException {
         try {
             MessageDigest md = BCHelper.getMessageDigest(DIGEST_ALGORITHM_SHA256);
@@ -85,11 +115,15 @@ public class TransmissionResponseConverter {
         }
     }
 
+    /**
+     * Outbound transmissions always wait for the trusted timestamp, as the response is handed to the caller complete
+     * and is not updated afterwards.
+     */
     private Timestamp getTimestamp() throws OxalisAs4TransmissionException {
         try {
-            return timestampProvider.generate(null, Direction.OUT);
-        } catch (TimestampException e) {
-            throw new OxalisAs4TransmissionException("Could not create timestamp", e);
+            return timestampService.generate(null, Direction.OUT).join();
+        } catch (CompletionException e) {
+            throw new OxalisAs4TransmissionException("Could not create timestamp", e.getCause());
         }
     }
 
@@ -97,10 +131,9 @@ public class TransmissionResponseConverter {
         Node signalNode = getSignalNode(soapMessage);
 
         try {
-            Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
-            return unmarshaller.unmarshal(signalNode, SignalMessage.class).getValue();
-        } catch (JAXBException e) {
-            throw new OxalisAs4TransmissionException("Could not create unmarshaller", e);
+            return MessagingReader.readSignalMessage((Element) signalNode);
+        } catch (OxalisAs4Exception e) {
+            throw new OxalisAs4TransmissionException("Could not read SignalMessage", e);
         }
     }
 
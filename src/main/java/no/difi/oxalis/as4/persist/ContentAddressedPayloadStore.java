@@ -0,0 +1,160 @@
+package no.difi.oxalis.as4.persist;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Striped;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import lombok.extern.slf4j.Slf4j;
+import no.difi.oxalis.api.model.TransmissionIdentifier;
+import no.difi.oxalis.api.settings.Settings;
+import no.difi.oxalis.as4.config.As4Conf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Stores payloads under the SHA-256 of their content, keeping a single copy of identical payloads received in
+ * several messages. The hash is computed while the payload is streamed to disk, payloads up to
+ * {@link #MEMORY_THRESHOLD} are hashed in memory and not written at all when the content is already stored.
+ * <p>
+ * Content with hash {@code c} is stored as {@code <directory>/<c[0..2]>/<c[2..4]>/<c>.payload}. Each message gets
+ * its own hard link to the content, {@code <directory>/messages/<h[0..2]>/<h[2..4]>/<h>-<c>.payload} where {@code h}
+ * is the hash of the message id, so moving or deleting the payload of one message leaves other messages untouched.
+ * The file system counts the links: content whose link count has dropped to one is no longer referred to by any
+ * message. Where hard links are not supported, the content itself is handed out and shared between messages.
+ */
+@Slf4j
+@Singleton
+public class ContentAddressedPayloadStore {
+
+    static final int MEMORY_THRESHOLD = 64 * 1024;
+
+    private final Path directory;
+
+    private final Striped<Lock> locks = Striped.lock(64);
+
+    private volatile boolean linksSupported = true;
+
+    @Inject
+    public ContentAddressedPayloadStore(Settings<As4Conf> settings) {
+        this(settings.getString(As4Conf.INBOUND_CONTENT_DIRECTORY).isEmpty()
+                ? null : Paths.get(settings.getString(As4Conf.INBOUND_CONTENT_DIRECTORY)));
+    }
+
+    public ContentAddressedPayloadStore(Path directory) {
+        this.directory = directory;
+    }
+
+    public boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Stores the content unless already present, and links the message to it.
+     *
+     * @return Path of the link of the message to the content.
+     */
+    public Path persist(TransmissionIdentifier transmissionIdentifier, InputStream inputStream) throws IOException {
+        MessageDigest messageDigest = sha256();
+        byte[] buffer = new byte[MEMORY_THRESHOLD + 1];
+        int length = ByteStreams.read(inputStream, buffer, 0, buffer.length);
+        Path temporary = null;
+
+        try {
+            if (length <= MEMORY_THRESHOLD) {
+                messageDigest.update(buffer, 0, length);
+            } else {
+                Files.createDirectories(directory);
+                temporary = Files.createTempFile(directory, ".", ".tmp");
+                try (OutputStream outputStream = new DigestOutputStream(Files.newOutputStream(temporary), messageDigest)) {
+                    outputStream.write(buffer, 0, length);
+                    ByteStreams.copy(inputStream, outputStream);
+                }
+            }
+
+            String hash = BaseEncoding.base16().lowerCase().encode(messageDigest.digest());
+            Path path = getPath(hash);
+
+            Lock lock = locks.get(hash);
+            lock.lock();
+            try {
+                if (Files.exists(path)) {
+                    log.debug("Payload of '{}' already stored as {}", transmissionIdentifier, hash);
+                } else {
+                    Files.createDirectories(path.getParent());
+                    if (temporary == null) {
+                        temporary = Files.createTempFile(path.getParent(), ".", ".tmp");
+                        try (OutputStream outputStream = Files.newOutputStream(temporary)) {
+                            outputStream.write(buffer, 0, length);
+                        }
+                    }
+                    Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+                }
+
+                return link(transmissionIdentifier, hash, path);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            if (temporary != null) {
+                Files.deleteIfExists(temporary);
+            }
+        }
+    }
+
+    Path getPath(String hash) {
+        return directory.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash + ".payload");
+    }
+
+    Path getLinkPath(TransmissionIdentifier transmissionIdentifier, String hash) {
+        String id = BaseEncoding.base16().lowerCase().encode(
+                sha256().digest(transmissionIdentifier.getIdentifier().getBytes(StandardCharsets.UTF_8)));
+        return directory.resolve("messages").resolve(id.substring(0, 2)).resolve(id.substring(2, 4))
+                .resolve(id + "-" + hash + ".payload");
+    }
+
+    /**
+     * A message received again gets a new link to the content.
+     */
+    private Path link(TransmissionIdentifier transmissionIdentifier, String hash, Path path) throws IOException {
+        if (!linksSupported) {
+            return path;
+        }
+
+        Path link = getLinkPath(transmissionIdentifier, hash);
+        Files.createDirectories(link.getParent());
+        Files.deleteIfExists(link);
+
+        try {
+            return Files.createLink(link, path);
+        } catch (NoSuchFileException | AccessDeniedException e) {
+            throw e;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            log.warn("Unable to create hard link in {}, payloads are shared between messages", directory, e);
+            linksSupported = false;
+            return path;
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package no.difi.oxalis.as4.persist;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of records in rolling segment files. Records appended by concurrent callers are written and
+ * synced to disk together by a single writer thread, waiting up to the commit window for more records to arrive.
+ * An append is durable once its future completes.
+ * <p>
+ * Each record is stored as its length, a CRC32 of the content and the content. A new segment is started when the
+ * journal is opened, so a record torn by a crash is only ever found at the end of a segment, where reading stops.
+ */
+@Slf4j
+public class GroupCommitJournal implements Closeable {
+
+    private static final int HEADER_SIZE = 8;
+
+    private static final int MAX_BATCH = 1024;
+
+    private final Path directory;
+    private final String prefix;
+    private final long segmentSize;
+    private final long commitWindow;
+
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+
+    private FileChannel channel;
+    private long segmentIndex;
+
+    private volatile boolean closed;
+
+    /**
+     * @param commitWindow Time (in microseconds) to wait for more records before syncing a batch.
+     */
+    public GroupCommitJournal(Path directory, String prefix, long segmentSize, long commitWindow) throws IOException {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.segmentSize = segmentSize;
+        this.commitWindow = TimeUnit.MICROSECONDS.toNanos(Math.max(0, commitWindow));
+
+        Files.createDirectories(directory);
+        List<Path> segments = getSegments();
+        segmentIndex = segments.isEmpty() ? 0 : getSegmentIndex(segments.get(segments.size() - 1));
+        openSegment();
+
+        writer = new Thread(this::processQueue, "oxalis-as4-journal-" + prefix);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues the record, the returned future completes with the index of the segment holding the record once the
+     * record is synced to disk.
+     */
+    public CompletableFuture<Long> append(byte[] record) {
+        return appendAt(record).thenApply(Position::getSegment);
+    }
+
+    /**
+     * Queues the record, the returned future completes with the position of the record once it is synced to disk.
+     */
+    public CompletableFuture<Position> appendAt(byte[] record) {
+        Entry entry = new Entry(record);
+
+        if (closed) {
+            entry.future.completeExceptionally(new IOException("Journal is closed"));
+            return entry.future;
+        }
+
+        queue.add(entry);
+
+        // Closed while adding, the record is failed here unless the writer or close() has taken it already
+        if (closed && queue.remove(entry)) {
+            entry.future.completeExceptionally(new IOException("Journal is closed"));
+        }
+
+        return entry.future;
+    }
+
+    /**
+     * Appends the record and waits for it to be synced to disk.
+     *
+     * @return Index of the segment holding the record.
+     */
+    public long appendAndWait(byte[] record) throws IOException {
+        return appendAtAndWait(record).getSegment();
+    }
+
+    /**
+     * Appends the record and waits for it to be synced to disk.
+     *
+     * @return Position of the record.
+     */
+    public Position appendAtAndWait(byte[] record) throws IOException {
+        try {
+            return appendAt(record).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Unable to append to journal", e.getCause());
+        }
+    }
+
+    /**
+     * Segment files of the journal, oldest first.
+     */
+    public List<Path> getSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "-*.log")) {
+            stream.forEach(segments::add);
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    /**
+     * Index of the segment currently written to.
+     */
+    public synchronized long getCurrentSegment() {
+        return segmentIndex;
+    }
+
+    public long getSegmentIndex(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(prefix.length() + 1, name.length() - 4));
+    }
+
+    public Path getSegmentPath(long index) {
+        return directory.resolve(String.format("%s-%016d.log", prefix, index));
+    }
+
+    /**
+     * Deletes a segment no longer needed. The current segment is never deleted.
+     */
+    public void deleteSegment(long index) throws IOException {
+        if (index >= getCurrentSegment()) {
+            throw new IllegalArgumentException("Unable to delete current journal segment");
+        }
+
+        Files.deleteIfExists(getSegmentPath(index));
+    }
+
+    /**
+     * Reads all complete records of a segment. Reading stops at a torn or corrupt record.
+     */
+    public static void read(Path segment, Consumer<byte[]> consumer) throws IOException {
+        scan(segment, (offset, record) -> consumer.accept(record));
+    }
+
+    /**
+     * Reads all complete records of a segment along with their offsets. Reading stops at a torn or corrupt record.
+     */
+    public static void scan(Path segment, BiConsumer<Long, byte[]> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            CRC32 crc = new CRC32();
+
+            while (true) {
+                long offset = channel.position();
+                header.clear();
+                if (!readFully(channel, header)) {
+                    return;
+                }
+                header.flip();
+                int length = header.getInt();
+                int checksum = header.getInt();
+
+                if (length < 0 || length > channel.size() - channel.position()) {
+                    log.warn("Torn record at end of journal segment '{}'", segment);
+                    return;
+                }
+
+                ByteBuffer content = ByteBuffer.allocate(length);
+                readFully(channel, content);
+
+                crc.reset();
+                crc.update(content.array());
+                if ((int) crc.getValue() != checksum) {
+                    log.warn("Corrupt record at end of journal segment '{}'", segment);
+                    return;
+                }
+
+                consumer.accept(offset, content.array());
+            }
+        }
+    }
+
+    /**
+     * Reads the record at the given offset of a segment.
+     */
+    public static byte[] read(Path segment, long offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (!readFully(channel.position(offset), header)) {
+                throw new EOFException("No record at offset " + offset + " of journal segment " + segment);
+            }
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+
+            if (length < 0 || length > channel.size() - channel.position()) {
+                throw new IOException("Torn record at offset " + offset + " of journal segment " + segment);
+            }
+
+            ByteBuffer content = ByteBuffer.allocate(length);
+            readFully(channel, content);
+
+            CRC32 crc = new CRC32();
+            crc.update(content.array());
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Corrupt record at offset " + offset + " of journal segment " + segment);
+            }
+
+            return content.array();
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (buffer.position() == 0) {
+                    return false;
+                }
+                throw new EOFException();
+            }
+        }
+        return true;
+    }
+
+    private void processQueue() {
+        List<Entry> batch = new ArrayList<>();
+
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                if (commitWindow > 0) {
+                    long deadline = System.nanoTime() + commitWindow;
+                    while (batch.size() < MAX_BATCH) {
+                        Entry next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                }
+                queue.drainTo(batch, MAX_BATCH - batch.size());
+
+                commit(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<Entry> batch) {
+        try {
+            ByteBuffer[] buffers = new ByteBuffer[batch.size() * 2];
+            CRC32 crc = new CRC32();
+            long start = channel.position();
+            long length = 0;
+
+            for (int i = 0; i < batch.size(); i++) {
+                byte[] record = batch.get(i).record;
+                crc.reset();
+                crc.update(record);
+
+                buffers[i * 2] = (ByteBuffer) ByteBuffer.allocate(HEADER_SIZE)
+                        .putInt(record.length)
+                        .putInt((int) crc.getValue())
+                        .flip();
+                buffers[i * 2 + 1] = ByteBuffer.wrap(record);
+                length += HEADER_SIZE + record.length;
+            }
+
+            for (long written = 0; written < length; ) {
+                written += channel.write(buffers);
+            }
+            channel.force(false);
+
+            log.debug("Committed {} journal record(s)", batch.size());
+            long segment = getCurrentSegment();
+            long offset = start;
+            for (Entry entry : batch) {
+                entry.future.complete(new Position(segment, offset));
+                offset += HEADER_SIZE + entry.record.length;
+            }
+
+            if (channel.size() >= segmentSize) {
+                channel.close();
+                openSegment();
+            }
+        } catch (IOException e) {
+            log.error("Unable to commit {} journal record(s)", batch.size(), e);
+            batch.forEach(entry -> entry.future.completeExceptionally(e));
+
+            // Records following a partial write would be unreadable, continue in a new segment
+            try {
+                channel.close();
+                openSegment();
+            } catch (IOException ex) {
+                log.error("Unable to start new journal segment", ex);
+            }
+        }
+    }
+
+    private synchronized void openSegment() throws IOException {
+        channel = FileChannel.open(getSegmentPath(segmentIndex + 1), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        segmentIndex++;
+
+        // Make the new segment itself durable
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // Not supported on all platforms
+        }
+    }
+
+    /**
+     * Commits queued records and closes the current segment.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Appended while closing
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            entry.future.completeExceptionally(new IOException("Journal is closed"));
+        }
+
+        channel.close();
+    }
+
+    private static class Entry {
+
+        private final byte[] record;
+        private final CompletableFuture<Position> future = new CompletableFuture<>();
+
+        private Entry(byte[] record) {
+            this.record = record;
+        }
+    }
+
+    /**
+     * Location of a record in the journal.
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class Position {
+
+        private final long segment;
+
+        private final long offset;
+    }
+}
@@ -0,0 +1,321 @@
+package no.difi.oxalis.as4.persist;
+
+import com.google.common.util.concurrent.Striped;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import no.difi.oxalis.api.lang.OxalisLoadingException;
+import no.difi.oxalis.api.model.Direction;
+import no.difi.oxalis.api.settings.Settings;
+import no.difi.oxalis.as4.config.As4Conf;
+import no.difi.oxalis.as4.inbound.MetadataJournal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+
+/**
+ * Index of inbound and outbound messages by message id, conversation id and RefToMessageId. Lookups are served from
+ * memory, every update is appended to a {@link GroupCommitJournal} replayed on startup.
+ * <p>
+ * When older segments hold messages recorded more than once, the entries are written anew to the current segment on
+ * startup and the older segments are deleted, so the journal does not keep growing. An empty index is rebuilt from the
+ * metadata journal, when enabled. The metadata journal only holds inbound messages, outbound messages are not recovered
+ * by a rebuild.
+ */
+@Slf4j
+@Singleton
+public class MessageIndex implements Closeable {
+
+    private static final int VERSION = 1;
+
+    private static final Comparator<Entry> BY_TIMESTAMP = Comparator.comparing(Entry::getTimestamp)
+            .thenComparing(Entry::getMessageId);
+
+    private final GroupCommitJournal journal;
+
+    private final Map<String, Entry> byMessageId = new ConcurrentHashMap<>();
+    private final Map<String, NavigableSet<Entry>> byConversationId = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> byRefToMessageId = new ConcurrentHashMap<>();
+
+    private final Striped<Lock> locks = Striped.lock(64);
+
+    @Inject
+    public MessageIndex(Settings<As4Conf> settings, MetadataJournal metadataJournal) {
+        this(open(settings));
+
+        if (isEnabled() && byMessageId.isEmpty() && metadataJournal.isEnabled()) {
+            try {
+                rebuild(metadataJournal);
+            } catch (IOException e) {
+                throw new OxalisLoadingException("Unable to rebuild message index from metadata journal", e);
+            }
+        }
+    }
+
+    public MessageIndex(GroupCommitJournal journal) {
+        this.journal = journal;
+
+        if (journal == null) {
+            return;
+        }
+
+        try {
+            replay();
+        } catch (IOException e) {
+            throw new OxalisLoadingException("Unable to read message index", e);
+        }
+    }
+
+    private static GroupCommitJournal open(Settings<As4Conf> settings) {
+        String directory = settings.getString(As4Conf.MESSAGE_INDEX_DIRECTORY);
+        if (directory == null || directory.isEmpty()) {
+            return null;
+        }
+
+        try {
+            return new GroupCommitJournal(Paths.get(directory), "index",
+                    Long.parseLong(settings.getString(As4Conf.INBOUND_JOURNAL_SEGMENT_SIZE)),
+                    Long.parseLong(settings.getString(As4Conf.INBOUND_JOURNAL_COMMIT_WINDOW)));
+        } catch (IOException e) {
+            throw new OxalisLoadingException("Unable to open message index in " + directory, e);
+        }
+    }
+
+    public boolean isEnabled() {
+        return journal != null;
+    }
+
+    /**
+     * Adds the message to the index, replacing an earlier entry of the same message. The entry is available for
+     * lookup at once, it is written to disk in the background.
+     */
+    public void record(Entry entry) {
+        CompletableFuture<Long> written;
+
+        // Records of the same message replace each other in memory and on disk in the same order
+        Lock lock = locks.get(entry.getMessageId());
+        lock.lock();
+        try {
+            add(entry);
+            written = journal.append(encode(entry));
+        } catch (IOException e) {
+            log.warn("Unable to write message '{}' to message index", entry.getMessageId(), e);
+            return;
+        } finally {
+            lock.unlock();
+        }
+
+        written.whenComplete((segment, e) -> {
+            if (e != null) {
+                log.warn("Unable to write message '{}' to message index", entry.getMessageId(), e);
+            }
+        });
+    }
+
+    public Optional<Entry> findByMessageId(String messageId) {
+        return Optional.ofNullable(byMessageId.get(messageId));
+    }
+
+    /**
+     * Messages of the conversation, oldest first.
+     */
+    public List<Entry> findByConversationId(String conversationId) {
+        return new ArrayList<>(byConversationId.getOrDefault(conversationId, Collections.emptyNavigableSet()));
+    }
+
+    /**
+     * Messages of the conversation with timestamp from (inclusive) to (exclusive), oldest first.
+     */
+    public List<Entry> findByConversationId(String conversationId, Date from, Date to) {
+        return new ArrayList<>(byConversationId.getOrDefault(conversationId, Collections.emptyNavigableSet())
+                .subSet(new Entry(null, "", null, null, from, null), true,
+                        new Entry(null, "", null, null, to, null), false));
+    }
+
+    /**
+     * Messages referring to the given message, e.g. responses to it.
+     */
+    public List<Entry> findByRefToMessageId(String refToMessageId) {
+        return byRefToMessageId.getOrDefault(refToMessageId, Collections.emptySet()).stream()
+                .map(byMessageId::get)
+                .filter(entry -> entry != null)
+                .sorted(BY_TIMESTAMP)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Adds inbound messages of the metadata journal missing in the index. Outbound messages are not in the metadata
+     * journal and RefToMessageId is not recorded there, so neither is recovered.
+     */
+    public void rebuild(MetadataJournal metadataJournal) throws IOException {
+        AtomicInteger count = new AtomicInteger();
+
+        metadataJournal.read(metadata -> {
+            String messageId = metadata.getTransmissionIdentifier().getIdentifier();
+            if (!byMessageId.containsKey(messageId)) {
+                record(new Entry(Direction.IN, messageId, metadata.getConversationId(), null,
+                        metadata.getTimestamp(), metadata.getPayloadPath()));
+                count.incrementAndGet();
+            }
+        });
+
+        log.info("Added {} message(s) from metadata journal to message index", count.get());
+    }
+
+    private void replay() throws IOException {
+        List<Path> segments = journal.getSegments();
+        int records = 0;
+
+        for (Path segment : segments) {
+            List<byte[]> content = new ArrayList<>();
+            GroupCommitJournal.read(segment, content::add);
+
+            for (byte[] record : content) {
+                try {
+                    add(decode(record));
+                    records++;
+                } catch (IOException e) {
+                    log.warn("Unable to read record of message index segment '{}'", segment, e);
+                }
+            }
+        }
+
+        log.info("Loaded {} message(s) into message index", byMessageId.size());
+
+        // The current segment is new, write the entries to it and remove the older segments
+        if (segments.size() > 2 || records > byMessageId.size()) {
+            List<CompletableFuture<Long>> written = new ArrayList<>();
+            for (Entry entry : byMessageId.values()) {
+                written.add(journal.append(encode(entry)));
+            }
+
+            try {
+                CompletableFuture.allOf(written.toArray(new CompletableFuture<?>[0])).join();
+            } catch (CompletionException e) {
+                throw new IOException("Unable to write message index", e.getCause());
+            }
+
+            for (Path segment : segments) {
+                long index = journal.getSegmentIndex(segment);
+                if (index < journal.getCurrentSegment()) {
+                    journal.deleteSegment(index);
+                }
+            }
+        }
+    }
+
+    private void add(Entry entry) {
+        Entry previous = byMessageId.put(entry.getMessageId(), entry);
+        if (previous != null) {
+            remove(previous);
+        }
+
+        if (entry.getConversationId() != null) {
+            byConversationId.computeIfAbsent(entry.getConversationId(), key -> new ConcurrentSkipListSet<>(BY_TIMESTAMP))
+                    .add(entry);
+        }
+        if (entry.getRefToMessageId() != null) {
+            byRefToMessageId.computeIfAbsent(entry.getRefToMessageId(), key -> ConcurrentHashMap.newKeySet())
+                    .add(entry.getMessageId());
+        }
+    }
+
+    private void remove(Entry entry) {
+        if (entry.getConversationId() != null) {
+            byConversationId.getOrDefault(entry.getConversationId(), Collections.emptyNavigableSet()).remove(entry);
+        }
+        if (entry.getRefToMessageId() != null) {
+            byRefToMessageId.getOrDefault(entry.getRefToMessageId(), Collections.emptySet()).remove(entry.getMessageId());
+        }
+    }
+
+    static byte[] encode(Entry entry) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bos);
+
+        out.writeByte(VERSION);
+        out.writeUTF(entry.getDirection().name());
+        out.writeUTF(entry.getMessageId());
+        writeNullable(out, entry.getConversationId());
+        writeNullable(out, entry.getRefToMessageId());
+        out.writeLong(entry.getTimestamp().getTime());
+        writeNullable(out, entry.getLocation());
+
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    static Entry decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported message index record version " + version);
+        }
+
+        return new Entry(Direction.valueOf(in.readUTF()), in.readUTF(), readNullable(in), readNullable(in),
+                new Date(in.readLong()), readNullable(in));
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Entry {
+
+        private final Direction direction;
+
+        private final String messageId;
+
+        private final String conversationId;
+
+        private final String refToMessageId;
+
+        private final Date timestamp;
+
+        /**
+         * Where the message is stored, e.g. the path of its first payload. Null when unknown.
+         */
+        private final String location;
+    }
+}
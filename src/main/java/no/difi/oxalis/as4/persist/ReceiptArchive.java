@@ -0,0 +1,403 @@
+package no.difi.oxalis.as4.persist;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import no.difi.oxalis.api.lang.OxalisLoadingException;
+import no.difi.oxalis.api.settings.Settings;
+import no.difi.oxalis.as4.config.As4Conf;
+import no.difi.vefa.peppol.common.model.Receipt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Append-only archive of receipts. Receipts are collected in blocks, each block is compressed and appended to a
+ * {@link GroupCommitJournal} once it reaches the block size or has been open for the flush interval. Receipts of
+ * a message share most of their content with receipts of other messages, so compressing them together saves most of
+ * their size.
+ * <p>
+ * Receipts are indexed by message id and conversation id in memory, the index is rebuilt from the blocks on startup.
+ * Receipts are read back from their block when asked for, so holders of {@link #supplier(String, List)} do not keep
+ * the receipts on the heap.
+ * <p>
+ * Futures returned by {@link #append(String, String, Receipt)} complete on the callback threads, so work depending on
+ * them does not hold up the thread writing the block.
+ */
+@Slf4j
+@Singleton
+public class ReceiptArchive implements Closeable {
+
+    private static final int VERSION = 1;
+
+    private final GroupCommitJournal journal;
+    private final long blockSize;
+
+    private final Map<String, List<Location>> byMessageId = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> byConversationId = new ConcurrentHashMap<>();
+
+    /**
+     * Receipts of the open block, and of the block being written.
+     */
+    private List<Entry> pending = new ArrayList<>();
+    private List<Entry> flushing = Collections.emptyList();
+    private long pendingSize;
+    private CompletableFuture<Void> pendingWritten = new CompletableFuture<>();
+
+    private final Object flushLock = new Object();
+
+    private ScheduledExecutorService flusher;
+
+    private ExecutorService callbacks;
+
+    @Inject
+    public ReceiptArchive(Settings<As4Conf> settings) {
+        this(open(settings),
+                Long.parseLong(settings.getString(As4Conf.RECEIPT_ARCHIVE_BLOCK_SIZE)),
+                Long.parseLong(settings.getString(As4Conf.RECEIPT_ARCHIVE_FLUSH_INTERVAL)),
+                settings.getInt(As4Conf.RECEIPT_ARCHIVE_THREADS),
+                settings.getInt(As4Conf.RECEIPT_ARCHIVE_QUEUE_SIZE));
+    }
+
+    /**
+     * @param flushInterval Time (in milliseconds) a block is kept open before it is written.
+     * @param threads       Number of threads completing the futures of written receipts.
+     * @param queueSize     Number of completions waiting for a thread before the writing thread runs them itself.
+     */
+    public ReceiptArchive(GroupCommitJournal journal, long blockSize, long flushInterval, int threads, int queueSize) {
+        this.journal = journal;
+        this.blockSize = blockSize;
+
+        if (journal == null) {
+            return;
+        }
+
+        AtomicInteger counter = new AtomicInteger();
+        callbacks = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), runnable -> {
+            Thread thread = new Thread(runnable, "oxalis-as4-receipt-archive-callback-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+        try {
+            rebuildIndex();
+        } catch (IOException e) {
+            throw new OxalisLoadingException("Unable to read receipt archive", e);
+        }
+
+        if (flushInterval > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "oxalis-as4-receipt-archive");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static GroupCommitJournal open(Settings<As4Conf> settings) {
+        String directory = settings.getString(As4Conf.RECEIPT_ARCHIVE_DIRECTORY);
+        if (directory == null || directory.isEmpty()) {
+            return null;
+        }
+
+        try {
+            // Blocks are batches already, no need to wait for more
+            return new GroupCommitJournal(Paths.get(directory), "receipts",
+                    Long.parseLong(settings.getString(As4Conf.INBOUND_JOURNAL_SEGMENT_SIZE)), 0);
+        } catch (IOException e) {
+            throw new OxalisLoadingException("Unable to open receipt archive in " + directory, e);
+        }
+    }
+
+    public boolean isEnabled() {
+        return journal != null;
+    }
+
+    /**
+     * Adds the receipt to the open block. The returned future completes on a callback thread once the block is
+     * written to disk.
+     */
+    public CompletableFuture<Void> append(String messageId, String conversationId, Receipt receipt) {
+        CompletableFuture<Void> written;
+        boolean full;
+
+        synchronized (this) {
+            pending.add(new Entry(messageId, conversationId == null ? "" : conversationId, receipt));
+            pendingSize += receipt.getValue().length + 256;
+            written = pendingWritten;
+            full = pendingSize >= blockSize;
+        }
+
+        if (full) {
+            flushQuietly();
+        }
+
+        // Completing the block future runs dependents inline, hand each receipt its own completion instead
+        return written.whenCompleteAsync((result, e) -> {
+        }, callbacks);
+    }
+
+    /**
+     * Receipts archived for the message, in the order they were appended.
+     */
+    public List<Receipt> getReceipts(String messageId) throws IOException {
+        List<Location> locations;
+        List<Receipt> unwritten = new ArrayList<>();
+
+        // Receipts move from the pending blocks to the index while holding the lock
+        synchronized (this) {
+            locations = new ArrayList<>(byMessageId.getOrDefault(messageId, Collections.emptyList()));
+            for (Entry entry : getUnwritten()) {
+                if (entry.messageId.equals(messageId)) {
+                    unwritten.add(entry.receipt);
+                }
+            }
+        }
+
+        List<Receipt> receipts = new ArrayList<>();
+        for (Location location : locations) {
+            receipts.add(readBlock(location.segment, location.offset).get(location.entry).receipt);
+        }
+        receipts.addAll(unwritten);
+
+        return receipts;
+    }
+
+    /**
+     * Reads the receipts of the message each time they are asked for, the last receipt archived of each type in the
+     * order of the types. Receipts of earlier deliveries of the same message id are left out.
+     */
+    public Supplier<List<Receipt>> supplier(String messageId, List<String> types) {
+        return () -> {
+            List<Receipt> archived;
+            try {
+                archived = getReceipts(messageId);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read archived receipts of " + messageId, e);
+            }
+
+            List<Receipt> receipts = new ArrayList<>();
+            for (String type : types) {
+                receipts.add(archived.stream()
+                        .filter(receipt -> receipt.getType().equals(type))
+                        .reduce((first, last) -> last)
+                        .orElseThrow(() -> new IllegalStateException(
+                                "Receipt of type '" + type + "' of " + messageId + " not found in receipt archive")));
+            }
+            return receipts;
+        };
+    }
+
+    /**
+     * Ids of messages with receipts archived in the conversation.
+     */
+    public Set<String> getMessageIds(String conversationId) {
+        synchronized (this) {
+            Set<String> messageIds = new LinkedHashSet<>(
+                    byConversationId.getOrDefault(conversationId, Collections.emptySet()));
+            for (Entry entry : getUnwritten()) {
+                if (entry.conversationId.equals(conversationId)) {
+                    messageIds.add(entry.messageId);
+                }
+            }
+            return messageIds;
+        }
+    }
+
+    /**
+     * Compresses and writes the open block.
+     */
+    public void flush() throws IOException {
+        synchronized (flushLock) {
+            List<Entry> entries;
+            CompletableFuture<Void> written;
+
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+
+                entries = pending;
+                written = pendingWritten;
+                flushing = entries;
+                pending = new ArrayList<>();
+                pendingSize = 0;
+                pendingWritten = new CompletableFuture<>();
+            }
+
+            try {
+                GroupCommitJournal.Position position = journal.appendAtAndWait(encode(entries));
+
+                synchronized (this) {
+                    for (int i = 0; i < entries.size(); i++) {
+                        index(entries.get(i), position.getSegment(), position.getOffset(), i);
+                    }
+                    flushing = Collections.emptyList();
+                }
+
+                log.debug("Archived block of {} receipt(s)", entries.size());
+                written.complete(null);
+            } catch (IOException e) {
+                // Kept in memory, written with the next block
+                synchronized (this) {
+                    entries.addAll(pending);
+                    pending = entries;
+                    pendingSize = entries.stream().mapToLong(entry -> entry.receipt.getValue().length + 256).sum();
+                    flushing = Collections.emptyList();
+                    pendingWritten.whenComplete((result, ex) -> {
+                        if (ex != null) {
+                            written.completeExceptionally(ex);
+                        } else {
+                            written.complete(null);
+                        }
+                    });
+                }
+                throw e;
+            }
+        }
+    }
+
+    private List<Entry> getUnwritten() {
+        List<Entry> entries = new ArrayList<>(flushing);
+        entries.addAll(pending);
+        return entries;
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException | RuntimeException e) {
+            log.error("Unable to write block to receipt archive", e);
+        }
+    }
+
+    private void rebuildIndex() throws IOException {
+        for (Path segment : journal.getSegments()) {
+            long segmentIndex = journal.getSegmentIndex(segment);
+
+            GroupCommitJournal.scan(segment, (offset, record) -> {
+                try {
+                    List<Entry> entries = decode(record);
+                    for (int i = 0; i < entries.size(); i++) {
+                        index(entries.get(i), segmentIndex, offset, i);
+                    }
+                } catch (IOException e) {
+                    log.warn("Unable to read block at offset {} of receipt archive segment '{}'", offset, segment, e);
+                }
+            });
+        }
+    }
+
+    private void index(Entry entry, long segment, long offset, int index) {
+        byMessageId.computeIfAbsent(entry.messageId, key -> Collections.synchronizedList(new ArrayList<>()))
+                .add(new Location(segment, offset, index));
+        if (!entry.conversationId.isEmpty()) {
+            byConversationId.computeIfAbsent(entry.conversationId, key -> ConcurrentHashMap.newKeySet())
+                    .add(entry.messageId);
+        }
+    }
+
+    private List<Entry> readBlock(long segment, long offset) throws IOException {
+        return decode(GroupCommitJournal.read(journal.getSegmentPath(segment), offset));
+    }
+
+    static byte[] encode(List<Entry> entries) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(VERSION);
+
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bos))) {
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.messageId);
+                out.writeUTF(entry.conversationId);
+                out.writeUTF(entry.receipt.getType());
+                out.writeInt(entry.receipt.getValue().length);
+                out.write(entry.receipt.getValue());
+            }
+        }
+
+        return bos.toByteArray();
+    }
+
+    static List<Entry> decode(byte[] record) throws IOException {
+        if (record.length == 0 || record[0] != VERSION) {
+            throw new IOException("Unsupported receipt archive block");
+        }
+
+        try (DataInputStream in = new DataInputStream(
+                new InflaterInputStream(new ByteArrayInputStream(record, 1, record.length - 1)))) {
+            List<Entry> entries = new ArrayList<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                String messageId = in.readUTF();
+                String conversationId = in.readUTF();
+                String type = in.readUTF();
+                byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                entries.add(new Entry(messageId, conversationId, Receipt.of(type, value)));
+            }
+            return entries;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (journal == null) {
+            return;
+        }
+
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        flush();
+        journal.close();
+        callbacks.shutdown();
+    }
+
+    @AllArgsConstructor
+    static class Entry {
+
+        private final String messageId;
+
+        private final String conversationId;
+
+        private final Receipt receipt;
+    }
+
+    @AllArgsConstructor
+    private static class Location {
+
+        private final long segment;
+
+        private final long offset;
+
+        private final int entry;
+    }
+}
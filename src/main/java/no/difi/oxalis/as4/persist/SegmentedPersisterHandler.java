@@ -0,0 +1,481 @@
+package no.difi.oxalis.as4.persist;
+
+import com.google.common.io.ByteStreams;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import no.difi.oxalis.api.inbound.InboundMetadata;
+import no.difi.oxalis.api.lang.OxalisLoadingException;
+import no.difi.oxalis.api.model.TransmissionIdentifier;
+import no.difi.oxalis.api.persist.PersisterHandler;
+import no.difi.oxalis.api.settings.Settings;
+import no.difi.oxalis.api.util.Type;
+import no.difi.oxalis.as4.config.As4Conf;
+import no.difi.oxalis.as4.inbound.As4InboundMetadata;
+import no.difi.oxalis.as4.inbound.As4PayloadHeader;
+import no.difi.oxalis.as4.inbound.MetadataJournal;
+import no.difi.vefa.peppol.common.model.Header;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Persister keeping the documents of inbound messages in rolling segment files instead of a few files per message.
+ * Payloads up to the inline size, metadata and receipts are appended to a {@link GroupCommitJournal}, larger
+ * payloads are spilled to individual files in a {@link ShardedPayloadStore}.
+ * <p>
+ * An index of the records of each message, by message id, is kept in memory and rebuilt from the segments on startup.
+ * The index only covers segments written within the retention period, or within the index period when messages are
+ * kept forever, so it does not grow with the number of messages ever received. Inline payloads are addressed by paths
+ * under {@code <directory>/inline} not found on disk, use {@link #open(Path)} to read them, or
+ * {@link #materialize(Path)} to write them to that path for consumers needing a file. When a retention period is set,
+ * segments older than the period are deleted in the background together with the payloads spilled or materialized
+ * from them.
+ */
+@Slf4j
+@Singleton
+@Type("segmented")
+public class SegmentedPersisterHandler implements PersisterHandler, Closeable {
+
+    private static final byte PAYLOAD = 1;
+
+    private static final byte SPILLED = 2;
+
+    private static final byte METADATA = 3;
+
+    private static final byte EXCEPTION = 4;
+
+    private static final long COMPACTION_INTERVAL = TimeUnit.HOURS.toMillis(1);
+
+    private final GroupCommitJournal journal;
+    private final ShardedPayloadStore spillStore;
+    private final Path inlineDirectory;
+    private final int inlineSize;
+    private final long retention;
+    private final long indexRetention;
+
+    private final Map<String, List<Location>> index = new ConcurrentHashMap<>();
+
+    /**
+     * Ids of the messages with records in each indexed segment.
+     */
+    private final Map<Long, Set<String>> idsBySegment = new ConcurrentSkipListMap<>();
+
+    /**
+     * Segments before this one are not indexed.
+     */
+    private volatile long indexedFrom;
+
+    private ScheduledExecutorService compactor;
+
+    @Inject
+    public SegmentedPersisterHandler(Settings<As4Conf> settings, @Named("inbound") Path inboundFolder) {
+        this(getDirectory(settings, inboundFolder), open(getDirectory(settings, inboundFolder), settings),
+                settings.getInt(As4Conf.PERSISTER_SEGMENTED_INLINE_SIZE),
+                TimeUnit.HOURS.toMillis(Long.parseLong(settings.getString(As4Conf.PERSISTER_SEGMENTED_RETENTION))),
+                TimeUnit.HOURS.toMillis(Long.parseLong(settings.getString(As4Conf.PERSISTER_SEGMENTED_INDEX_RETENTION))));
+    }
+
+    /**
+     * @param retention      Time (in milliseconds) to keep messages, zero to keep them forever.
+     * @param indexRetention Time (in milliseconds) to keep messages kept forever in the index.
+     */
+    public SegmentedPersisterHandler(Path directory, GroupCommitJournal journal, int inlineSize, long retention,
+                                     long indexRetention) {
+        this.journal = journal;
+        this.spillStore = new ShardedPayloadStore(Collections.singletonList(directory.resolve("payloads")));
+        this.inlineDirectory = directory.resolve("inline");
+        this.inlineSize = Math.max(0, inlineSize);
+        this.retention = retention;
+        this.indexRetention = retention > 0 ? retention : indexRetention;
+
+        try {
+            rebuildIndex();
+        } catch (IOException e) {
+            throw new OxalisLoadingException("Unable to read persisted segments in " + directory, e);
+        }
+
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "oxalis-as4-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compact, 0, COMPACTION_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private static Path getDirectory(Settings<As4Conf> settings, Path inboundFolder) {
+        String directory = settings.getString(As4Conf.PERSISTER_SEGMENTED_DIRECTORY);
+        return directory == null || directory.isEmpty() ? inboundFolder.resolve("segments") : Paths.get(directory);
+    }
+
+    private static GroupCommitJournal open(Path directory, Settings<As4Conf> settings) {
+        try {
+            return new GroupCommitJournal(directory, "document",
+                    Long.parseLong(settings.getString(As4Conf.INBOUND_JOURNAL_SEGMENT_SIZE)),
+                    Long.parseLong(settings.getString(As4Conf.INBOUND_JOURNAL_COMMIT_WINDOW)));
+        } catch (IOException e) {
+            throw new OxalisLoadingException("Unable to open persister segments in " + directory, e);
+        }
+    }
+
+    @Override
+    public Path persist(TransmissionIdentifier transmissionIdentifier, Header header, InputStream inputStream)
+            throws IOException {
+        String id = transmissionIdentifier.getIdentifier();
+        String contentId = header instanceof As4PayloadHeader && ((As4PayloadHeader) header).getCid() != null
+                ? ((As4PayloadHeader) header).getCid() : "payload";
+
+        byte[] buffer = new byte[inlineSize + 1];
+        int length = ByteStreams.read(inputStream, buffer, 0, buffer.length);
+
+        if (length <= inlineSize) {
+            GroupCommitJournal.Position position = journal.appendAtAndWait(
+                    record(PAYLOAD, id, contentId, Arrays.copyOf(buffer, length)));
+            track(id, new Location(PAYLOAD, contentId, position.getSegment(), position.getOffset(), null));
+            return getInlinePath(position);
+        }
+
+        Path path = spillStore.persist(transmissionIdentifier, contentId,
+                new SequenceInputStream(new ByteArrayInputStream(buffer, 0, length), inputStream));
+        GroupCommitJournal.Position position = journal.appendAtAndWait(
+                record(SPILLED, id, contentId, path.toString().getBytes(StandardCharsets.UTF_8)));
+        track(id, new Location(SPILLED, contentId, position.getSegment(), position.getOffset(), path));
+        return path;
+    }
+
+    @Override
+    public void persist(InboundMetadata inboundMetadata, Path payloadPath) throws IOException {
+        if (!(inboundMetadata instanceof As4InboundMetadata)) {
+            throw new IOException("Unsupported inbound metadata: " + inboundMetadata.getClass().getName());
+        }
+
+        String id = inboundMetadata.getTransmissionIdentifier().getIdentifier();
+        GroupCommitJournal.Position position = journal.appendAtAndWait(
+                record(METADATA, id, "", MetadataJournal.encode((As4InboundMetadata) inboundMetadata, payloadPath)));
+        track(id, new Location(METADATA, "", position.getSegment(), position.getOffset(), null));
+    }
+
+    @Override
+    public void persist(TransmissionIdentifier transmissionIdentifier, Header header, Path payloadPath,
+                        Exception exception) {
+        log.warn("Transmission '{}' failed due to {}.", transmissionIdentifier, exception.getMessage());
+
+        String id = transmissionIdentifier.getIdentifier();
+        try {
+            journal.appendAndWait(record(EXCEPTION, id, "",
+                    String.valueOf(exception.getMessage()).getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            log.warn("Unable to record failure of transmission '{}'", transmissionIdentifier, e);
+        }
+
+        // Payloads of a failed transmission are not kept
+        for (Location location : remove(id, Location::isPayload)) {
+            deleteSpilled(location);
+        }
+    }
+
+    /**
+     * Paths of the payloads persisted for the message, inline payloads are read using {@link #open(Path)}.
+     */
+    public List<Path> getPayloads(TransmissionIdentifier transmissionIdentifier) {
+        return index.getOrDefault(transmissionIdentifier.getIdentifier(), Collections.emptyList()).stream()
+                .filter(Location::isPayload)
+                .map(location -> location.path != null ? location.path : getInlinePath(location.segment, location.offset))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Metadata persisted for the message, read from its segment.
+     */
+    public Optional<MetadataJournal.Entry> getMetadata(TransmissionIdentifier transmissionIdentifier)
+            throws IOException {
+        Optional<Location> metadata = index.getOrDefault(transmissionIdentifier.getIdentifier(), Collections.emptyList())
+                .stream()
+                .filter(location -> location.type == METADATA)
+                .findFirst();
+
+        if (!metadata.isPresent()) {
+            return Optional.empty();
+        }
+
+        return Optional.of(MetadataJournal.decode(readContent(metadata.get().segment, metadata.get().offset)));
+    }
+
+    /**
+     * Opens a payload returned by this persister, whether stored inline or spilled to its own file.
+     */
+    public InputStream open(Path payloadPath) throws IOException {
+        if (!isInlinePath(payloadPath)) {
+            return Files.newInputStream(payloadPath);
+        }
+
+        long segment = Long.parseLong(payloadPath.getName(inlineDirectory.getNameCount()).toString());
+        long offset = Long.parseLong(payloadPath.getFileName().toString());
+        return new ByteArrayInputStream(readContent(segment, offset));
+    }
+
+    /**
+     * Writes an inline payload to the path it is addressed by, so that it can be read as any other file. Paths of
+     * spilled payloads, and of payloads already materialized, are returned as is.
+     */
+    public Path materialize(Path payloadPath) throws IOException {
+        if (!isInlinePath(payloadPath) || Files.exists(payloadPath)) {
+            return payloadPath;
+        }
+
+        Files.createDirectories(payloadPath.getParent());
+        Path temp = Files.createTempFile(payloadPath.getParent(), payloadPath.getFileName().toString(), ".tmp");
+        try (InputStream inputStream = open(payloadPath)) {
+            Files.copy(inputStream, temp, StandardCopyOption.REPLACE_EXISTING);
+            // Readers never see a partly written payload
+            Files.move(temp, payloadPath, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        return payloadPath;
+    }
+
+    /**
+     * Removes segments older than the index period from the index. With a retention period, they are deleted along
+     * with the payloads spilled from them. Segments are written in order, so compaction stops at the first segment
+     * still within the period.
+     */
+    synchronized void compact() {
+        long expiry = System.currentTimeMillis() - indexRetention;
+
+        try {
+            for (Path segment : journal.getSegments()) {
+                long segmentIndex = journal.getSegmentIndex(segment);
+                if (segmentIndex < indexedFrom && retention <= 0) {
+                    continue;
+                }
+                if (segmentIndex >= journal.getCurrentSegment()
+                        || Files.getLastModifiedTime(segment).toMillis() > expiry) {
+                    return;
+                }
+
+                if (segmentIndex >= indexedFrom) {
+                    for (String id : idsBySegment.getOrDefault(segmentIndex, Collections.emptySet())) {
+                        for (Location location : remove(id, location -> location.segment == segmentIndex)) {
+                            if (retention > 0) {
+                                deleteSpilled(location);
+                            }
+                        }
+                    }
+                    idsBySegment.remove(segmentIndex);
+                    indexedFrom = segmentIndex + 1;
+                } else {
+                    // Expired before startup, so never indexed
+                    deleteSpilled(segment);
+                }
+
+                if (retention > 0) {
+                    FileUtils.deleteDirectory(inlineDirectory.resolve(Long.toString(segmentIndex)).toFile());
+                    journal.deleteSegment(segmentIndex);
+                    log.info("Deleted expired persister segment '{}'", segment);
+                } else {
+                    log.info("Removed persister segment '{}' from index", segment);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Unable to compact persister segments", e);
+        }
+    }
+
+    private void rebuildIndex() throws IOException {
+        long expiry = System.currentTimeMillis() - indexRetention;
+        long currentSegment = journal.getCurrentSegment();
+        List<Path> segments = journal.getSegments();
+        indexedFrom = segments.isEmpty() ? currentSegment : journal.getSegmentIndex(segments.get(0));
+
+        for (Path segment : segments) {
+            long segmentIndex = journal.getSegmentIndex(segment);
+            if (segmentIndex == indexedFrom && segmentIndex < currentSegment
+                    && Files.getLastModifiedTime(segment).toMillis() <= expiry) {
+                indexedFrom = segmentIndex + 1;
+                continue;
+            }
+
+            GroupCommitJournal.scan(segment, (offset, record) -> {
+                try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+                    byte type = in.readByte();
+                    String id = in.readUTF();
+                    String contentId = in.readUTF();
+
+                    if (type == EXCEPTION) {
+                        remove(id, Location::isPayload);
+                    } else {
+                        Path path = type == SPILLED ? Paths.get(new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8)) : null;
+                        track(id, new Location(type, contentId, segmentIndex, offset, path));
+                    }
+                } catch (IOException e) {
+                    log.warn("Unable to read record at offset {} of persister segment '{}'", offset, segment, e);
+                }
+            });
+        }
+
+        log.info("Indexed {} persisted message(s)", index.size());
+    }
+
+    /**
+     * A document persisted again, e.g. for a message received twice, replaces the earlier one.
+     */
+    private void track(String id, Location location) {
+        idsBySegment.computeIfAbsent(location.segment, segment -> ConcurrentHashMap.newKeySet()).add(id);
+        index.compute(id, (key, locations) -> {
+            List<Location> updated = new ArrayList<>();
+            if (locations != null) {
+                locations.stream().filter(existing -> !existing.replacedBy(location)).forEach(updated::add);
+            }
+            updated.add(location);
+            return updated;
+        });
+    }
+
+    private List<Location> remove(String id, Predicate<Location> predicate) {
+        List<Location> removed = new ArrayList<>();
+
+        index.computeIfPresent(id, (key, locations) -> {
+            List<Location> remaining = new ArrayList<>();
+            for (Location location : locations) {
+                (predicate.test(location) ? removed : remaining).add(location);
+            }
+            return remaining.isEmpty() ? null : remaining;
+        });
+
+        return removed;
+    }
+
+    /**
+     * Deletes the payloads spilled from a segment not indexed, unless persisted again since.
+     */
+    private void deleteSpilled(Path segment) throws IOException {
+        List<Path> spilled = new ArrayList<>();
+        GroupCommitJournal.scan(segment, (offset, record) -> {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+                if (in.readByte() == SPILLED) {
+                    String id = in.readUTF();
+                    in.readUTF();
+                    Path path = Paths.get(new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8));
+                    if (index.getOrDefault(id, Collections.emptyList()).stream().noneMatch(l -> path.equals(l.path))) {
+                        spilled.add(path);
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("Unable to read record at offset {} of persister segment '{}'", offset, segment, e);
+            }
+        });
+
+        for (Path path : spilled) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private void deleteSpilled(Location location) {
+        if (!location.isPayload()) {
+            return;
+        }
+
+        // Inline payloads leave a file behind only when materialized
+        Path path = location.path != null ? location.path : getInlinePath(location.segment, location.offset);
+
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Unable to delete file: {}", path, e);
+        }
+    }
+
+    private byte[] readContent(long segment, long offset) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                GroupCommitJournal.read(journal.getSegmentPath(segment), offset)))) {
+            in.readByte();
+            in.readUTF();
+            in.readUTF();
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    private Path getInlinePath(GroupCommitJournal.Position position) {
+        return getInlinePath(position.getSegment(), position.getOffset());
+    }
+
+    private Path getInlinePath(long segment, long offset) {
+        return inlineDirectory.resolve(Long.toString(segment)).resolve(Long.toString(offset));
+    }
+
+    private boolean isInlinePath(Path payloadPath) {
+        return payloadPath.startsWith(inlineDirectory)
+                && payloadPath.getNameCount() == inlineDirectory.getNameCount() + 2;
+    }
+
+    private static byte[] record(byte type, String id, String contentId, byte[] content) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(content.length + 128);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(type);
+        out.writeUTF(id);
+        out.writeUTF(contentId);
+        out.write(content);
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+        journal.close();
+    }
+
+    @AllArgsConstructor
+    private static class Location {
+
+        private final byte type;
+
+        private final String contentId;
+
+        private final long segment;
+
+        private final long offset;
+
+        private final Path path;
+
+        private boolean isPayload() {
+            return type == PAYLOAD || type == SPILLED;
+        }
+
+        private boolean replacedBy(Location location) {
+            return isPayload() ? location.isPayload() && contentId.equals(location.contentId) : type == location.type;
+        }
+    }
+}
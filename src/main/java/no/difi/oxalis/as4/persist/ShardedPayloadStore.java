@@ -0,0 +1,135 @@
+package no.difi.oxalis.as4.persist;
+
+import com.google.common.io.BaseEncoding;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import no.difi.oxalis.api.model.TransmissionIdentifier;
+import no.difi.oxalis.api.settings.Settings;
+import no.difi.oxalis.as4.config.As4Conf;
+import org.apache.cxf.io.Transferable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Stores payloads in directories sharded by the SHA-256 of the transmission identifier, spread over one or more
+ * root directories. Each root is meant to be on its own disk, so concurrent messages are written to several disks
+ * in parallel, while no directory grows beyond a manageable number of files.
+ * <p>
+ * A payload of message {@code id} is stored as {@code <root>/<h[0..2]>/<h[2..4]>/<h>-<content id>.payload}, where
+ * {@code h} is the hex encoded hash of {@code id} and the root is chosen by the hash.
+ */
+@Singleton
+public class ShardedPayloadStore {
+
+    private final List<Path> roots;
+
+    @Inject
+    public ShardedPayloadStore(Settings<As4Conf> settings) {
+        this(Arrays.stream(settings.getString(As4Conf.INBOUND_PAYLOAD_DIRECTORIES).split(","))
+                .map(String::trim)
+                .filter(directory -> !directory.isEmpty())
+                .map(Paths::get)
+                .collect(Collectors.toList()));
+    }
+
+    public ShardedPayloadStore(List<Path> roots) {
+        this.roots = Collections.unmodifiableList(new ArrayList<>(roots));
+    }
+
+    public boolean isEnabled() {
+        return !roots.isEmpty();
+    }
+
+    /**
+     * Writes the payload to a temporary file in its shard, moved in place once complete.
+     */
+    public Path persist(TransmissionIdentifier transmissionIdentifier, String contentId, InputStream inputStream)
+            throws IOException {
+        Path path = getPath(transmissionIdentifier, contentId);
+        Path temporary = createTemporary(path);
+
+        try {
+            Files.copy(inputStream, temporary, StandardCopyOption.REPLACE_EXISTING);
+            return Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Takes over a payload spooled to disk, moving the file when it is on the same file system as the shard.
+     */
+    public Path persist(TransmissionIdentifier transmissionIdentifier, String contentId, Transferable payload)
+            throws IOException {
+        Path path = getPath(transmissionIdentifier, contentId);
+        Path temporary = createTemporary(path);
+
+        try {
+            Files.delete(temporary);
+            payload.transferTo(temporary.toFile());
+            return Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Payloads stored for the transmission, ordered by content id.
+     */
+    public List<Path> lookup(TransmissionIdentifier transmissionIdentifier) throws IOException {
+        String hash = hash(transmissionIdentifier);
+        Path shard = getShard(hash);
+
+        List<Path> payloads = new ArrayList<>();
+        if (Files.isDirectory(shard)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(shard, hash + "-*.payload")) {
+                stream.forEach(payloads::add);
+            }
+        }
+        payloads.sort(null);
+        return payloads;
+    }
+
+    Path getPath(TransmissionIdentifier transmissionIdentifier, String contentId) {
+        String hash = hash(transmissionIdentifier);
+        return getShard(hash).resolve(hash + "-" + sanitize(contentId) + ".payload");
+    }
+
+    private Path getShard(String hash) {
+        Path root = roots.get(Integer.remainderUnsigned(Integer.parseUnsignedInt(hash.substring(4, 12), 16), roots.size()));
+        return root.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4));
+    }
+
+    private Path createTemporary(Path path) throws IOException {
+        Files.createDirectories(path.getParent());
+        return Files.createTempFile(path.getParent(), ".", ".tmp");
+    }
+
+    private static String hash(TransmissionIdentifier transmissionIdentifier) {
+        try {
+            return BaseEncoding.base16().lowerCase().encode(MessageDigest.getInstance("SHA-256")
+                    .digest(transmissionIdentifier.getIdentifier().getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String sanitize(String contentId) {
+        String sanitized = contentId.replaceAll("[^A-Za-z0-9._@-]", "_");
+        return sanitized.length() > 100 ? sanitized.substring(0, 100) : sanitized;
+    }
+}
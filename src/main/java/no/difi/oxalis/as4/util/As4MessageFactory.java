@@ -5,40 +5,33 @@ import com.google.inject.Singleton;
 import no.difi.oxalis.as4.api.MessageIdGenerator;
 import no.difi.oxalis.as4.inbound.ProsessingContext;
 import no.difi.oxalis.as4.lang.OxalisAs4Exception;
-import org.apache.cxf.interceptor.Fault;
-import org.apache.cxf.ws.policy.PolicyConstants;
-import org.oasis_open.docs.ebxml_bp.ebbp_signals_2.MessagePartNRInformation;
-import org.oasis_open.docs.ebxml_bp.ebbp_signals_2.NonRepudiationInformation;
-import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.Error;
-import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.*;
-
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBElement;
+import org.apache.cxf.helpers.DOMUtils;
+import org.apache.cxf.staxutils.W3CDOMStreamWriter;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.UserMessage;
+import org.w3c.dom.Element;
+
 import javax.xml.datatype.XMLGregorianCalendar;
 import javax.xml.soap.*;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import java.util.Date;
-import java.util.List;
-import java.util.stream.Collectors;
 
 @Singleton
 public class As4MessageFactory {
 
     private final MessageIdGenerator messageIdGenerator;
     private final MessageFactory messageFactory;
-    private final JAXBContext jaxbContext;
 
     @Inject
     public As4MessageFactory(MessageIdGenerator messageIdGenerator) throws SOAPException {
         this(
                 messageIdGenerator,
-                MessageFactory.newInstance(SOAPConstants.SOAP_1_2_PROTOCOL),
-                Marshalling.getInstance()
+                MessageFactory.newInstance(SOAPConstants.SOAP_1_2_PROTOCOL)
         );
     }
 
-    public As4MessageFactory(MessageIdGenerator messageIdGenerator, MessageFactory messageFactory, JAXBContext jaxbContext) {
+    public As4MessageFactory(MessageIdGenerator messageIdGenerator, MessageFactory messageFactory) {
         this.messageFactory = messageFactory;
-        this.jaxbContext = jaxbContext;
         this.messageIdGenerator = messageIdGenerator;
     }
 
@@ -48,66 +41,44 @@ public class As4MessageFactory {
                 prosessingContext.getReceiptTimestamp().getDate()
         );
 
-        MessageInfo messageInfo = MessageInfo.builder()
-                .withTimestamp(xmlGc)
-                .withMessageId(messageIdGenerator.generate())
-                .withRefToMessageId(inUserMessage.getMessageInfo().getMessageId())
-                .build();
-
-        List<MessagePartNRInformation> mpList = prosessingContext.getReferenceList().stream()
-                .map(reference -> MessagePartNRInformation.builder().withReference(reference).build())
-                .collect(Collectors.toList());
-
-        NonRepudiationInformation nri = NonRepudiationInformation.builder()
-                .addMessagePartNRInformation(mpList)
-                .build();
-
-        SignalMessage signalMessage = SignalMessage.builder()
-                .withMessageInfo(messageInfo)
-                .withReceipt(Receipt.builder().withAny(nri).build())
-                .build();
-
+        String messageId = messageIdGenerator.generate();
+        String refToMessageId = inUserMessage.getMessageInfo().getMessageId();
 
-        return marshalSignalMessage(signalMessage);
+        return writeSignalMessage(writer -> SignalMessageWriter.writeReceipt(
+                writer, messageId, refToMessageId, xmlGc, prosessingContext.getReferenceList()));
     }
 
 
-    public SOAPMessage createErrorMessage(MessageId messageId, OxalisAs4Exception oxalisException) {
-        try {
-
-            XMLGregorianCalendar currentDate = XMLUtil.dateToXMLGeorgianCalendar(new Date());
-
-
-            MessageInfo messageInfo = MessageInfo.builder()
-                    .withRefToMessageId(messageId.getValue())
-                    .withTimestamp(currentDate)
-                    .withMessageId(messageIdGenerator.generate())
-                    .build();
+    /**
+     * Creates the eb:Messaging header of an error signal, for interceptors adding it to an outgoing CXF message.
+     */
+    public Element createErrorHeader(MessageId messageId, OxalisAs4Exception oxalisException) throws OxalisAs4Exception {
+        XMLGregorianCalendar currentDate = XMLUtil.dateToXMLGeorgianCalendar(new Date());
 
-            Error error = Error.builder()
-                    .withRefToMessageInError(messageId.getValue())
+        String signalMessageId = messageIdGenerator.generate();
 
-                    .withErrorCode(oxalisException.getErrorCode().toString())
-                    .withErrorDetail(getErrorDetail(oxalisException))
-                    .withShortDescription(oxalisException.getErrorCode().getShortDescription())
-                    //                .withDescription()
-
-                    .withOrigin(oxalisException.getErrorCode().getOrigin().toString())
-                    .withCategory(oxalisException.getErrorCode().getCatgory().toString())
-                    .withSeverity(oxalisException.getSeverity().toString())
-
-                    .build();
+        try {
+            W3CDOMStreamWriter writer = new W3CDOMStreamWriter(DOMUtils.createDocument());
+            writer.writeStartElement(Constants.MESSAGING_QNAME.getPrefix(),
+                    Constants.MESSAGING_QNAME.getLocalPart(), Constants.MESSAGING_QNAME.getNamespaceURI());
+            writer.writeNamespace(Constants.MESSAGING_QNAME.getPrefix(), Constants.MESSAGING_QNAME.getNamespaceURI());
 
-            SignalMessage signalMessage = SignalMessage.builder()
-                    .withMessageInfo(messageInfo)
-                    .withError(error)
-                    .build();
+            SignalMessageWriter.writeError(
+                    writer,
+                    signalMessageId,
+                    messageId.getValue(),
+                    currentDate,
+                    oxalisException.getErrorCode(),
+                    oxalisException.getSeverity(),
+                    getErrorDetail(oxalisException));
 
+            writer.writeEndElement();
+            writer.flush();
 
-            return marshalSignalMessage(signalMessage);
+            return writer.getDocument().getDocumentElement();
 
-        } catch (OxalisAs4Exception e) {
-            throw new Fault(e.getCause());
+        } catch (Exception e) {
+            throw new OxalisAs4Exception("Unable to marshal SignalMessage", e, AS4ErrorCode.EBMS_0004);
         }
     }
 
@@ -126,7 +97,7 @@ public class As4MessageFactory {
         return sb.toString();
     }
 
-    public SOAPMessage marshalSignalMessage(SignalMessage signalMessage) throws OxalisAs4Exception {
+    private SOAPMessage writeSignalMessage(SignalWriter signalWriter) throws OxalisAs4Exception {
         try {
             SOAPMessage message = messageFactory.createMessage();
             SOAPHeader soapHeader = message.getSOAPHeader();
@@ -134,15 +105,9 @@ public class As4MessageFactory {
             SOAPHeaderElement messagingHeader = soapHeader.addHeaderElement(Constants.MESSAGING_QNAME);
             messagingHeader.setMustUnderstand(true);
 
-            JAXBElement<SignalMessage> userMessageJAXBElement = new JAXBElement<>(
-                    Constants.SIGNAL_MESSAGE_QNAME,
-                    SignalMessage.class,
-                    signalMessage
-            );
-
-            jaxbContext.createMarshaller().marshal(userMessageJAXBElement, messagingHeader);
-
-//            message.setProperty(PolicyConstants.POLICY_OVERRIDE, PolicyUtil.getPolicy());
+            W3CDOMStreamWriter writer = new W3CDOMStreamWriter(messagingHeader);
+            signalWriter.write(writer);
+            writer.flush();
 
             return message;
 
@@ -150,4 +115,9 @@ public class As4MessageFactory {
             throw new OxalisAs4Exception("Unable to marshal SignalMessage", e, AS4ErrorCode.EBMS_0004);
         }
     }
+
+    @FunctionalInterface
+    private interface SignalWriter {
+        void write(XMLStreamWriter writer) throws XMLStreamException;
+    }
 }
@@ -0,0 +1,250 @@
+package no.difi.oxalis.as4.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses gzip content like {@link java.util.zip.GZIPInputStream}, while enforcing a maximum decompressed size
+ * and compression ratio. A {@link ZipException} is thrown as soon as a limit is crossed. Inflaters are pooled and
+ * returned when the end of the content is reached or the stream is closed.
+ */
+public class BoundedGzipInputStream extends InputStream {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final BlockingQueue<Inflater> INFLATER_POOL = new ArrayBlockingQueue<>(32);
+
+    private final InputStream inputStream;
+    private final long maxSize;
+    private final long maxRatio;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferPosition;
+    private int bufferLength;
+
+    private final CRC32 crc = new CRC32();
+    private final byte[] single = new byte[1];
+
+    private Inflater inflater;
+    private long compressedSize;
+    private long decompressedSize;
+    private boolean eof;
+
+    /**
+     * @param maxSize  maximum number of decompressed bytes, -1 for no limit.
+     * @param maxRatio maximum ratio between decompressed and compressed bytes, -1 for no limit.
+     */
+    public BoundedGzipInputStream(InputStream inputStream, long maxSize, long maxRatio) throws IOException {
+        this.inputStream = inputStream;
+        this.maxSize = maxSize;
+        this.maxRatio = maxRatio;
+
+        Inflater pooled = INFLATER_POOL.poll();
+        this.inflater = pooled != null ? pooled : new Inflater(true);
+
+        try {
+            readHeader();
+        } catch (IOException e) {
+            release();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (eof) {
+            return -1;
+        }
+        if (inflater == null) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        try {
+            int n;
+            while ((n = inflater.inflate(b, off, len)) == 0) {
+                if (inflater.finished() || inflater.needsDictionary()) {
+                    if (readTrailer()) {
+                        eof = true;
+                        release();
+                        return -1;
+                    }
+                } else if (inflater.needsInput()) {
+                    fill();
+                    inflater.setInput(buffer, bufferPosition, bufferLength - bufferPosition);
+                    bufferPosition = bufferLength;
+                }
+            }
+
+            crc.update(b, off, n);
+            decompressedSize += n;
+            enforceLimits();
+
+            return n;
+        } catch (DataFormatException e) {
+            String message = e.getMessage();
+            throw new ZipException(message != null ? message : "Invalid ZLIB data format");
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return eof ? 0 : 1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        release();
+        inputStream.close();
+    }
+
+    private void enforceLimits() throws ZipException {
+        if (maxSize >= 0 && decompressedSize > maxSize) {
+            throw new ZipException(String.format("Decompressed size exceeds limit of %s bytes", maxSize));
+        }
+
+        if (maxRatio >= 0 && decompressedSize > compressedSize * maxRatio) {
+            throw new ZipException(String.format("Compression ratio exceeds limit of %s", maxRatio));
+        }
+    }
+
+    private void readHeader() throws IOException {
+        if (readUShort() != GZIP_MAGIC) {
+            throw new ZipException("Not in GZIP format");
+        }
+        if (readUByte() != 8) {
+            throw new ZipException("Unsupported compression method");
+        }
+
+        int flags = readUByte();
+        // MTIME, XFL and OS
+        skipBytes(6);
+
+        if ((flags & FEXTRA) == FEXTRA) {
+            skipBytes(readUShort());
+        }
+        if ((flags & FNAME) == FNAME) {
+            skipString();
+        }
+        if ((flags & FCOMMENT) == FCOMMENT) {
+            skipString();
+        }
+        if ((flags & FHCRC) == FHCRC) {
+            // The header CRC is not verified, as in GZIPInputStream
+            skipBytes(2);
+        }
+
+        crc.reset();
+    }
+
+    /**
+     * Reads the trailer of a gzip member, returns true when no further member follows.
+     */
+    private boolean readTrailer() throws IOException {
+        // Hand the unused input back to our buffer
+        bufferPosition = bufferLength - inflater.getRemaining();
+
+        long expectedCrc = readUInt();
+        long expectedSize = readUInt();
+
+        if (expectedCrc != crc.getValue() || expectedSize != (inflater.getBytesWritten() & 0xffffffffL)) {
+            throw new ZipException("Corrupt GZIP trailer");
+        }
+
+        // Concatenated members are read as one stream, trailing garbage is ignored like in GZIPInputStream
+        if (!ensureBuffered(2) || peekUShort() != GZIP_MAGIC) {
+            return true;
+        }
+
+        inflater.reset();
+        readHeader();
+        return false;
+    }
+
+    private void fill() throws IOException {
+        if (!ensureBuffered(1)) {
+            throw new EOFException("Unexpected end of ZLIB input stream");
+        }
+    }
+
+    /**
+     * Reads from the underlying stream until at least the given number of unread bytes are buffered.
+     */
+    private boolean ensureBuffered(int n) throws IOException {
+        while (bufferLength - bufferPosition < n) {
+            int remaining = bufferLength - bufferPosition;
+            System.arraycopy(buffer, bufferPosition, buffer, 0, remaining);
+            bufferPosition = 0;
+            bufferLength = remaining;
+
+            int read = inputStream.read(buffer, remaining, buffer.length - remaining);
+            if (read <= 0) {
+                return false;
+            }
+
+            bufferLength += read;
+            compressedSize += read;
+        }
+        return true;
+    }
+
+    private int readUByte() throws IOException {
+        fill();
+        return buffer[bufferPosition++] & 0xff;
+    }
+
+    private int readUShort() throws IOException {
+        return readUByte() | (readUByte() << 8);
+    }
+
+    private long readUInt() throws IOException {
+        return ((long) readUShort()) | ((long) readUShort() << 16);
+    }
+
+    private int peekUShort() {
+        return (buffer[bufferPosition] & 0xff) | ((buffer[bufferPosition + 1] & 0xff) << 8);
+    }
+
+    private void skipBytes(int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            readUByte();
+        }
+    }
+
+    private void skipString() throws IOException {
+        while (readUByte() != 0) {
+            // Zero-terminated
+        }
+    }
+
+    private void release() {
+        if (inflater != null) {
+            inflater.reset();
+            if (!INFLATER_POOL.offer(inflater)) {
+                inflater.end();
+            }
+            inflater = null;
+        }
+    }
+}
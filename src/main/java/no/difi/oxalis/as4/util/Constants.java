@@ -10,6 +10,11 @@ public interface Constants {
     QName USER_MESSAGE_QNAME = new QName(EBMS_NAMESPACE, "UserMessage");
     QName SIGNAL_MESSAGE_QNAME = new QName(EBMS_NAMESPACE, "SignalMessage");
 
+    String EBBP_NAMESPACE = "http://docs.oasis-open.org/ebxml-bp/ebbp-signals-2.0";
+
+    QName NON_REPUDIATION_INFORMATION_QNAME = new QName(EBBP_NAMESPACE, "NonRepudiationInformation", "ebbp");
+    QName MESSAGE_PART_NR_INFORMATION_QNAME = new QName(EBBP_NAMESPACE, "MessagePartNRInformation", "ebbp");
+
     String RSA_SHA256 = "http://www.w3.org/2001/04/xmldsig-more#rsa-sha256";
     String DIGEST_ALGORITHM_SHA256 = "sha256";
 
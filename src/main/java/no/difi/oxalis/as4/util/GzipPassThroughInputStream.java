@@ -0,0 +1,122 @@
+package no.difi.oxalis.as4.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Passes gzip content through unchanged, while decompressing it on the side. The decompressed content is only
+ * counted and digested, so the limits of {@link BoundedGzipInputStream} apply without writing the content anywhere.
+ */
+public class GzipPassThroughInputStream extends InputStream {
+
+    private final InputStream inputStream;
+    private final BoundedGzipInputStream gzipInputStream;
+    private final MessageDigest messageDigest;
+
+    private final byte[] scratch = new byte[64 * 1024];
+    private final byte[] single = new byte[1];
+
+    private byte[] pending = new byte[128 * 1024];
+    private int pendingCount;
+    private int pendingPosition;
+
+    private long decompressedSize;
+    private byte[] decompressedDigest;
+
+    public GzipPassThroughInputStream(InputStream inputStream, long maxSize, long maxRatio) throws IOException {
+        this.inputStream = inputStream;
+
+        try {
+            this.messageDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        this.gzipInputStream = new BoundedGzipInputStream(new CapturingInputStream(), maxSize, maxRatio);
+    }
+
+    /**
+     * Size of the decompressed content, available once the stream is exhausted.
+     */
+    public long getDecompressedSize() {
+        return decompressedSize;
+    }
+
+    /**
+     * SHA-256 digest of the decompressed content, available once the stream is exhausted.
+     */
+    public byte[] getDecompressedDigest() {
+        return decompressedDigest;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        while (pendingPosition == pendingCount) {
+            pendingPosition = 0;
+            pendingCount = 0;
+
+            if (decompressedDigest != null) {
+                // Anything following the gzip content is passed through as is
+                return inputStream.read(b, off, len);
+            }
+
+            // Decompressing pulls the next compressed bytes into the pending buffer
+            int n = gzipInputStream.read(scratch, 0, scratch.length);
+            if (n < 0) {
+                decompressedDigest = messageDigest.digest();
+            } else {
+                messageDigest.update(scratch, 0, n);
+                decompressedSize += n;
+            }
+        }
+
+        int n = Math.min(len, pendingCount - pendingPosition);
+        System.arraycopy(pending, pendingPosition, b, off, n);
+        pendingPosition += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        gzipInputStream.close();
+    }
+
+    private class CapturingInputStream extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = inputStream.read(b, off, len);
+            if (n > 0) {
+                if (pendingCount + n > pending.length) {
+                    pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingCount + n));
+                }
+                System.arraycopy(b, off, pending, pendingCount, n);
+                pendingCount += n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inputStream.close();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package no.difi.oxalis.as4.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Records the bytes read from a stream into a bounded buffer, so they can be replayed followed by the rest of the
+ * stream. Used to parse the SBDH in front of a payload without buffering the payload itself. Buffers are pooled and
+ * returned to the pool once replayed or when the stream is closed.
+ */
+public class LookaheadInputStream extends InputStream {
+
+    public static final int LOOKAHEAD_LIMIT = 128 * 1024;
+
+    private static final BlockingQueue<byte[]> BUFFER_POOL = new ArrayBlockingQueue<>(32);
+
+    private final InputStream inputStream;
+
+    private byte[] buffer;
+    private int count;
+    private int position;
+    private boolean replaying;
+
+    public LookaheadInputStream(InputStream inputStream) {
+        this.inputStream = inputStream;
+
+        byte[] pooled = BUFFER_POOL.poll();
+        this.buffer = pooled != null ? pooled : new byte[LOOKAHEAD_LIMIT];
+    }
+
+    /**
+     * Stops recording. The stream then returns the recorded bytes, followed by the remaining bytes of the stream.
+     */
+    public InputStream replay() {
+        replaying = true;
+        position = 0;
+        return this;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (replaying) {
+            if (position < count) {
+                return buffer[position++] & 0xff;
+            }
+            release();
+            return inputStream.read();
+        }
+
+        ensureCapacity();
+        int b = inputStream.read();
+        if (b >= 0) {
+            buffer[count++] = (byte) b;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (replaying) {
+            if (position < count) {
+                int n = Math.min(len, count - position);
+                System.arraycopy(buffer, position, b, off, n);
+                position += n;
+                return n;
+            }
+            release();
+            return inputStream.read(b, off, len);
+        }
+
+        ensureCapacity();
+        int n = inputStream.read(b, off, Math.min(len, buffer.length - count));
+        if (n > 0) {
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+        }
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (replaying && position < count) {
+            return count - position;
+        }
+        return inputStream.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        release();
+        inputStream.close();
+    }
+
+    private void ensureCapacity() throws IOException {
+        if (buffer == null) {
+            throw new IOException("Stream is closed");
+        }
+        if (count == buffer.length) {
+            throw new IOException(String.format("Lookahead limit of %s bytes exceeded", buffer.length));
+        }
+    }
+
+    private void release() {
+        if (buffer != null) {
+            BUFFER_POOL.offer(buffer);
+            buffer = null;
+            count = 0;
+            position = 0;
+        }
+    }
+}
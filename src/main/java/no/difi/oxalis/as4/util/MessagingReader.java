@@ -0,0 +1,397 @@
+package no.difi.oxalis.as4.util;
+
+import lombok.extern.slf4j.Slf4j;
+import no.difi.oxalis.as4.lang.OxalisAs4Exception;
+import org.apache.cxf.staxutils.StaxUtils;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.Error;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.*;
+import org.w3c.dom.Element;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.annotation.adapters.CollapsedStringAdapter;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Reads the ebMS 3.0 Messaging header into the generated ebMS model without going through JAXB.
+ * Elements of the ebMS schema must be in the ebMS namespace, unknown ebMS elements are rejected with EBMS:0009.
+ * Foreign elements are only accepted where the schema has a wildcard, and are kept as DOM elements.
+ */
+@Slf4j
+public class MessagingReader {
+
+    private static final String EB_NS = Constants.EBMS_NAMESPACE;
+    private static final CollapsedStringAdapter COLLAPSED_STRING_ADAPTER = new CollapsedStringAdapter();
+    private static final DatatypeFactory DATATYPE_FACTORY;
+
+    static {
+        try {
+            DATATYPE_FACTORY = DatatypeFactory.newInstance();
+        } catch (DatatypeConfigurationException e) {
+            throw new IllegalStateException("Unable to create DatatypeFactory", e);
+        }
+    }
+
+    public static Messaging read(Element messaging) throws OxalisAs4Exception {
+        XMLStreamReader reader = StaxUtils.createXMLStreamReader(messaging);
+        try {
+            return read(reader);
+        } finally {
+            close(reader);
+        }
+    }
+
+    public static Messaging read(XMLStreamReader reader) throws OxalisAs4Exception {
+        try {
+            toStartElement(reader);
+            if (!"Messaging".equals(ebmsName(reader))) {
+                throw unexpected(reader);
+            }
+
+            Messaging messaging = new Messaging();
+            messaging.setId(collapse(reader.getAttributeValue(null, "id")));
+
+            while (nextChild(reader)) {
+                if (!EB_NS.equals(reader.getNamespaceURI())) {
+                    messaging.getAny().add(XMLUtil.readElement(reader));
+                } else if ("UserMessage".equals(reader.getLocalName())) {
+                    messaging.getUserMessage().add(readUserMessage(reader));
+                } else if ("SignalMessage".equals(reader.getLocalName())) {
+                    messaging.getSignalMessage().add(readSignalMessage(reader));
+                } else {
+                    throw unexpected(reader);
+                }
+            }
+
+            return messaging;
+        } catch (XMLStreamException | IllegalArgumentException e) {
+            throw new OxalisAs4Exception("Could not read Messaging header", e, AS4ErrorCode.EBMS_0009);
+        }
+    }
+
+    public static SignalMessage readSignalMessage(Element signalMessage) throws OxalisAs4Exception {
+        XMLStreamReader reader = StaxUtils.createXMLStreamReader(signalMessage);
+        try {
+            toStartElement(reader);
+            if (!"SignalMessage".equals(ebmsName(reader))) {
+                throw unexpected(reader);
+            }
+
+            return readSignalMessage(reader);
+        } catch (XMLStreamException | IllegalArgumentException e) {
+            throw new OxalisAs4Exception("Could not read SignalMessage", e, AS4ErrorCode.EBMS_0009);
+        } finally {
+            close(reader);
+        }
+    }
+
+    private static UserMessage readUserMessage(XMLStreamReader reader) throws XMLStreamException, OxalisAs4Exception {
+        UserMessage userMessage = new UserMessage();
+        userMessage.setMpc(reader.getAttributeValue(null, "mpc"));
+
+        while (nextChild(reader)) {
+            switch (ebmsName(reader)) {
+                case "MessageInfo":
+                    userMessage.setMessageInfo(readMessageInfo(reader));
+                    break;
+                case "PartyInfo":
+                    userMessage.setPartyInfo(readPartyInfo(reader));
+                    break;
+                case "CollaborationInfo":
+                    userMessage.setCollaborationInfo(readCollaborationInfo(reader));
+                    break;
+                case "MessageProperties":
+                    MessageProperties messageProperties = new MessageProperties();
+                    readProperties(reader, messageProperties.getProperty());
+                    userMessage.setMessageProperties(messageProperties);
+                    break;
+                case "PayloadInfo":
+                    userMessage.setPayloadInfo(readPayloadInfo(reader));
+                    break;
+                default:
+                    throw unexpected(reader);
+            }
+        }
+
+        return userMessage;
+    }
+
+    private static SignalMessage readSignalMessage(XMLStreamReader reader) throws XMLStreamException, OxalisAs4Exception {
+        SignalMessage signalMessage = new SignalMessage();
+
+        while (nextChild(reader)) {
+            if (!EB_NS.equals(reader.getNamespaceURI())) {
+                signalMessage.getAny().add(XMLUtil.readElement(reader));
+                continue;
+            }
+
+            switch (reader.getLocalName()) {
+                case "MessageInfo":
+                    signalMessage.setMessageInfo(readMessageInfo(reader));
+                    break;
+                case "PullRequest":
+                    PullRequest pullRequest = new PullRequest();
+                    pullRequest.setMpc(reader.getAttributeValue(null, "mpc"));
+                    readAny(reader, pullRequest.getAny());
+                    signalMessage.setPullRequest(pullRequest);
+                    break;
+                case "Receipt":
+                    Receipt receipt = new Receipt();
+                    readAny(reader, receipt.getAny());
+                    signalMessage.setReceipt(receipt);
+                    break;
+                case "Error":
+                    signalMessage.getError().add(readError(reader));
+                    break;
+                default:
+                    throw unexpected(reader);
+            }
+        }
+
+        return signalMessage;
+    }
+
+    private static MessageInfo readMessageInfo(XMLStreamReader reader) throws XMLStreamException, OxalisAs4Exception {
+        MessageInfo messageInfo = new MessageInfo();
+
+        while (nextChild(reader)) {
+            switch (ebmsName(reader)) {
+                case "Timestamp":
+                    messageInfo.setTimestamp(DATATYPE_FACTORY.newXMLGregorianCalendar(reader.getElementText().trim()));
+                    break;
+                case "MessageId":
+                    messageInfo.setMessageId(reader.getElementText());
+                    break;
+                case "RefToMessageId":
+                    messageInfo.setRefToMessageId(reader.getElementText());
+                    break;
+                default:
+                    throw unexpected(reader);
+            }
+        }
+
+        return messageInfo;
+    }
+
+    private static PartyInfo readPartyInfo(XMLStreamReader reader) throws XMLStreamException, OxalisAs4Exception {
+        PartyInfo partyInfo = new PartyInfo();
+
+        while (nextChild(reader)) {
+            switch (ebmsName(reader)) {
+                case "From":
+                    From from = new From();
+                    readParty(reader, from.getPartyId(), from::setRole);
+                    partyInfo.setFrom(from);
+                    break;
+                case "To":
+                    To to = new To();
+                    readParty(reader, to.getPartyId(), to::setRole);
+                    partyInfo.setTo(to);
+                    break;
+                default:
+                    throw unexpected(reader);
+            }
+        }
+
+        return partyInfo;
+    }
+
+    private static void readParty(XMLStreamReader reader, List<PartyId> partyIds, Consumer<String> role) throws XMLStreamException, OxalisAs4Exception {
+        while (nextChild(reader)) {
+            switch (ebmsName(reader)) {
+                case "PartyId":
+                    PartyId partyId = new PartyId();
+                    partyId.setType(reader.getAttributeValue(null, "type"));
+                    partyId.setValue(reader.getElementText());
+                    partyIds.add(partyId);
+                    break;
+                case "Role":
+                    role.accept(reader.getElementText());
+                    break;
+                default:
+                    throw unexpected(reader);
+            }
+        }
+    }
+
+    private static CollaborationInfo readCollaborationInfo(XMLStreamReader reader) throws XMLStreamException, OxalisAs4Exception {
+        CollaborationInfo collaborationInfo = new CollaborationInfo();
+
+        while (nextChild(reader)) {
+            switch (ebmsName(reader)) {
+                case "AgreementRef":
+                    AgreementRef agreementRef = new AgreementRef();
+                    agreementRef.setType(reader.getAttributeValue(null, "type"));
+                    agreementRef.setPmode(reader.getAttributeValue(null, "pmode"));
+                    agreementRef.setValue(reader.getElementText());
+                    collaborationInfo.setAgreementRef(agreementRef);
+                    break;
+                case "Service":
+                    Service service = new Service();
+                    service.setType(reader.getAttributeValue(null, "type"));
+                    service.setValue(reader.getElementText());
+                    collaborationInfo.setService(service);
+                    break;
+                case "Action":
+                    collaborationInfo.setAction(collapse(reader.getElementText()));
+                    break;
+                case "ConversationId":
+                    collaborationInfo.setConversationId(collapse(reader.getElementText()));
+                    break;
+                default:
+                    throw unexpected(reader);
+            }
+        }
+
+        return collaborationInfo;
+    }
+
+    private static PayloadInfo readPayloadInfo(XMLStreamReader reader) throws XMLStreamException, OxalisAs4Exception {
+        PayloadInfo payloadInfo = new PayloadInfo();
+
+        while (nextChild(reader)) {
+            if (!"PartInfo".equals(ebmsName(reader))) {
+                throw unexpected(reader);
+            }
+
+            payloadInfo.getPartInfo().add(readPartInfo(reader));
+        }
+
+        return payloadInfo;
+    }
+
+    private static PartInfo readPartInfo(XMLStreamReader reader) throws XMLStreamException, OxalisAs4Exception {
+        PartInfo partInfo = new PartInfo();
+        partInfo.setHref(collapse(reader.getAttributeValue(null, "href")));
+
+        while (nextChild(reader)) {
+            switch (ebmsName(reader)) {
+                case "Schema":
+                    Schema schema = new Schema();
+                    schema.setLocation(reader.getAttributeValue(null, "location"));
+                    schema.setVersion(reader.getAttributeValue(null, "version"));
+                    schema.setNamespace(reader.getAttributeValue(null, "namespace"));
+                    XMLUtil.skipElement(reader);
+                    partInfo.setSchema(schema);
+                    break;
+                case "Description":
+                    partInfo.setDescription(readDescription(reader));
+                    break;
+                case "PartProperties":
+                    PartProperties partProperties = new PartProperties();
+                    readProperties(reader, partProperties.getProperty());
+                    partInfo.setPartProperties(partProperties);
+                    break;
+                default:
+                    throw unexpected(reader);
+            }
+        }
+
+        return partInfo;
+    }
+
+    private static void readProperties(XMLStreamReader reader, List<Property> properties) throws XMLStreamException, OxalisAs4Exception {
+        while (nextChild(reader)) {
+            if (!"Property".equals(ebmsName(reader))) {
+                throw unexpected(reader);
+            }
+
+            Property property = new Property();
+            property.setName(reader.getAttributeValue(null, "name"));
+            property.setValue(reader.getElementText());
+            properties.add(property);
+        }
+    }
+
+    private static Error readError(XMLStreamReader reader) throws XMLStreamException, OxalisAs4Exception {
+        Error error = new Error();
+        error.setCategory(collapse(reader.getAttributeValue(null, "category")));
+        error.setRefToMessageInError(collapse(reader.getAttributeValue(null, "refToMessageInError")));
+        error.setErrorCode(collapse(reader.getAttributeValue(null, "errorCode")));
+        error.setOrigin(collapse(reader.getAttributeValue(null, "origin")));
+        error.setSeverity(collapse(reader.getAttributeValue(null, "severity")));
+        error.setShortDescription(collapse(reader.getAttributeValue(null, "shortDescription")));
+
+        while (nextChild(reader)) {
+            switch (ebmsName(reader)) {
+                case "Description":
+                    error.setDescription(readDescription(reader));
+                    break;
+                case "ErrorDetail":
+                    error.setErrorDetail(collapse(reader.getElementText()));
+                    break;
+                default:
+                    throw unexpected(reader);
+            }
+        }
+
+        return error;
+    }
+
+    private static Description readDescription(XMLStreamReader reader) throws XMLStreamException {
+        Description description = new Description();
+        description.setLang(reader.getAttributeValue(XMLConstants.XML_NS_URI, "lang"));
+        description.setValue(reader.getElementText());
+        return description;
+    }
+
+    private static void readAny(XMLStreamReader reader, List<Object> any) throws XMLStreamException {
+        while (nextChild(reader)) {
+            any.add(XMLUtil.readElement(reader));
+        }
+    }
+
+    /**
+     * Moves to the next child element of the current element. Returns false, leaving the reader at the end tag
+     * of the current element, when there are no more children.
+     */
+    private static boolean nextChild(XMLStreamReader reader) throws XMLStreamException {
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                return true;
+            }
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                return false;
+            }
+        }
+    }
+
+    private static void toStartElement(XMLStreamReader reader) throws XMLStreamException {
+        while (reader.getEventType() != XMLStreamConstants.START_ELEMENT) {
+            reader.next();
+        }
+    }
+
+    private static String ebmsName(XMLStreamReader reader) throws OxalisAs4Exception {
+        if (!EB_NS.equals(reader.getNamespaceURI())) {
+            throw unexpected(reader);
+        }
+
+        return reader.getLocalName();
+    }
+
+    private static OxalisAs4Exception unexpected(XMLStreamReader reader) {
+        return new OxalisAs4Exception(
+                String.format("Unexpected element %s in Messaging header", reader.getName()),
+                AS4ErrorCode.EBMS_0009
+        );
+    }
+
+    private static String collapse(String value) {
+        return COLLAPSED_STRING_ADAPTER.unmarshal(value);
+    }
+
+    private static void close(XMLStreamReader reader) {
+        try {
+            StaxUtils.close(reader);
+        } catch (XMLStreamException e) {
+            log.debug("Unable to close reader", e);
+        }
+    }
+}
@@ -138,16 +138,11 @@ public class SOAPHeaderParser {
     public static UserMessage getUserMessage(SOAPHeader header) throws OxalisAs4Exception {
         Node messagingNode = header.getElementsByTagNameNS(NS_ALL, MESSAGING).item(0);
 
-        try {
-            Unmarshaller unmarshaller = JAXB_CONTEXT.createUnmarshaller();
-            Messaging messaging = unmarshaller.unmarshal(messagingNode, Messaging.class).getValue();
+        Messaging messaging = MessagingReader.read((Element) messagingNode);
 
-            return messaging.getUserMessage().stream()
-                    .findFirst()
-                    .orElseThrow(() -> new OxalisAs4Exception("No UserMessage present in header"));
-        } catch (JAXBException e) {
-            throw new OxalisAs4Exception("Could not unmarshal Messaging node from header");
-        }
+        return messaging.getUserMessage().stream()
+                .findFirst()
+                .orElseThrow(() -> new OxalisAs4Exception("No UserMessage present in header"));
 
     }
 }
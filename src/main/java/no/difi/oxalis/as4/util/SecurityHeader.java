@@ -0,0 +1,62 @@
+package no.difi.oxalis.as4.util;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.apache.cxf.helpers.DOMUtils;
+import org.apache.wss4j.common.WSS4JConstants;
+import org.w3c.dom.Element;
+
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The parts of an inbound WS-Security header needed to build receipts and metadata.
+ */
+@Getter
+public class SecurityHeader {
+
+    private final byte[] signatureValue;
+
+    /**
+     * The ds:Reference elements of SignedInfo, as found in the header.
+     */
+    private final List<Element> referenceList;
+
+    private final X509Certificate senderCertificate;
+
+    /**
+     * DigestValue of each reference by URI, read from the reference list once.
+     */
+    @Getter(AccessLevel.NONE)
+    private final Map<String, byte[]> attachmentDigests;
+
+    public SecurityHeader(byte[] signatureValue, List<Element> referenceList, X509Certificate senderCertificate) {
+        this.signatureValue = signatureValue;
+        this.referenceList = referenceList;
+        this.senderCertificate = senderCertificate;
+
+        Map<String, byte[]> digests = new HashMap<>();
+        for (Element reference : referenceList) {
+            Element digestValue = DOMUtils.getFirstChildWithName(reference, WSS4JConstants.SIG_NS, "DigestValue");
+            if (digestValue != null) {
+                // The first reference wins, as when searching the list. The text is kept as is, line breaks of
+                // the base64 encoding included, as the metadata has always recorded it.
+                digests.putIfAbsent(reference.getAttributeNS(null, "URI"),
+                        digestValue.getTextContent().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        this.attachmentDigests = Collections.unmodifiableMap(digests);
+    }
+
+    /**
+     * Returns the DigestValue of the SignedInfo reference with the given URI, as the base64 encoded bytes
+     * found in the header, or null if no such reference exists.
+     */
+    public byte[] getAttachmentDigest(String refId) {
+        return attachmentDigests.get(refId);
+    }
+}
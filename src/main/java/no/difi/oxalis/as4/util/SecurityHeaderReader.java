@@ -0,0 +1,113 @@
+package no.difi.oxalis.as4.util;
+
+import lombok.extern.slf4j.Slf4j;
+import no.difi.oxalis.as4.lang.OxalisAs4Exception;
+import org.apache.cxf.helpers.DOMUtils;
+import org.apache.wss4j.common.WSS4JConstants;
+import org.w3c.dom.Element;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Reads signature value, SignedInfo references and sender certificate from the DOM of a wsse:Security header,
+ * visiting the children of the header and of the signature once instead of searching the whole header for each part.
+ * <p>
+ * The header is the DOM built by CXF for WS-Security processing, so no copy of it is made.
+ */
+@Slf4j
+public class SecurityHeaderReader {
+
+    private static final String SIG = "Signature";
+    private static final String SIG_VAL = "SignatureValue";
+    private static final String SIG_INFO = "SignedInfo";
+    private static final String KEY_INFO = "KeyInfo";
+    private static final String REF = "Reference";
+    private static final String BST = "BinarySecurityToken";
+    private static final String ID = "Id";
+    private static final String URI = "URI";
+
+    public static SecurityHeader read(Element securityHeader) throws OxalisAs4Exception {
+        List<Element> signatures = new ArrayList<>();
+        List<Element> binarySecurityTokens = new ArrayList<>();
+
+        for (Element child = DOMUtils.getFirstElement(securityHeader); child != null; child = DOMUtils.getNextElement(child)) {
+            if (isElement(child, WSS4JConstants.SIG_NS, SIG)) {
+                signatures.add(child);
+            } else if (isElement(child, WSS4JConstants.WSSE_NS, BST)) {
+                binarySecurityTokens.add(child);
+            }
+        }
+
+        if (signatures.size() != 1) {
+            throw new OxalisAs4Exception(String.format("Expected one Signature element in header, but found %d", signatures.size()));
+        }
+
+        String signatureValue = null;
+        String keyInfoReference = null;
+        List<Element> references = new ArrayList<>();
+
+        for (Element child = DOMUtils.getFirstElement(signatures.get(0)); child != null; child = DOMUtils.getNextElement(child)) {
+            if (isElement(child, WSS4JConstants.SIG_NS, SIG_INFO)) {
+                references.addAll(DOMUtils.getChildrenWithName(child, WSS4JConstants.SIG_NS, REF));
+            } else if (isElement(child, WSS4JConstants.SIG_NS, SIG_VAL)) {
+                signatureValue = DOMUtils.getContent(child);
+            } else if (isElement(child, WSS4JConstants.SIG_NS, KEY_INFO)) {
+                keyInfoReference = getKeyInfoReference(child);
+            }
+        }
+
+        if (signatureValue == null) {
+            throw new OxalisAs4Exception("Zero SignatureValue elements in header");
+        }
+
+        return new SecurityHeader(
+                signatureValue.replace("\r\n", "").getBytes(StandardCharsets.UTF_8),
+                references,
+                getSenderCertificate(keyInfoReference, binarySecurityTokens));
+    }
+
+    private static String getKeyInfoReference(Element keyInfo) {
+        for (Element tokenReference : DOMUtils.getChildrenWithName(keyInfo, WSS4JConstants.WSSE_NS, "SecurityTokenReference")) {
+            Element reference = DOMUtils.getFirstChildWithName(tokenReference, WSS4JConstants.WSSE_NS, REF);
+            if (reference != null) {
+                return reference.getAttributeNS(null, URI);
+            }
+        }
+        return null;
+    }
+
+    private static X509Certificate getSenderCertificate(String keyInfoReference, List<Element> binarySecurityTokens) {
+        if (keyInfoReference == null) {
+            return null;
+        }
+
+        String id = keyInfoReference.replace("#", "");
+        Element token = binarySecurityTokens.stream()
+                .filter(bst -> id.equals(bst.getAttributeNS(WSS4JConstants.WSU_NS, ID)))
+                .findFirst()
+                .orElse(null);
+
+        if (token == null) {
+            return null;
+        }
+
+        try {
+            byte[] buf = Base64.getDecoder().decode(DOMUtils.getContent(token).replaceAll("[\r\n]+", ""));
+            return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(buf));
+        } catch (CertificateException | IllegalArgumentException e) {
+            log.debug("Could not create certificate from BinarySecurityToken", e);
+            return null;
+        }
+    }
+
+    private static boolean isElement(Element element, String namespace, String localName) {
+        return namespace.equals(element.getNamespaceURI()) && localName.equals(element.getLocalName());
+    }
+}
@@ -0,0 +1,146 @@
+package no.difi.oxalis.as4.util;
+
+import org.apache.cxf.staxutils.StaxUtils;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import javax.xml.crypto.dsig.XMLSignature;
+import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Writes ebMS SignalMessages from a fixed template, without building and marshalling a JAXB object graph.
+ * Only message identifiers, timestamp, receipt references and error fields vary between messages.
+ * <p>
+ * Prefixes, namespace declarations and the content of the receipt references are written as the JAXB context
+ * marshalled them, so signed receipts are the same bytes as before.
+ */
+public class SignalMessageWriter {
+
+    private static final String EB = Constants.MESSAGING_QNAME.getPrefix();
+    private static final String EB_NS = Constants.EBMS_NAMESPACE;
+    private static final String EBBP = "ns7";
+    private static final String EBBP_NS = Constants.EBBP_NAMESPACE;
+    private static final String DS = "ns6";
+
+    /**
+     * Declared on the SignalMessage by the JAXB context, for all namespaces it knew of.
+     */
+    private static final String[][] NAMESPACES = {
+            {"ns3", "http://www.unece.org/cefact/namespaces/StandardBusinessDocumentHeader"},
+            {"ns4", "http://schemas.xmlsoap.org/soap/envelope/"},
+            {DS, XMLSignature.XMLNS},
+            {EBBP, EBBP_NS}
+    };
+
+    public static void writeReceipt(XMLStreamWriter writer, String messageId, String refToMessageId,
+                                    XMLGregorianCalendar timestamp, List<Element> references) throws XMLStreamException {
+        writeStartSignalMessage(writer, messageId, refToMessageId, timestamp);
+
+        writer.writeStartElement(EB, "Receipt", EB_NS);
+        writer.writeStartElement(EBBP, Constants.NON_REPUDIATION_INFORMATION_QNAME.getLocalPart(), EBBP_NS);
+
+        for (Element reference : references) {
+            writer.writeStartElement(EBBP, Constants.MESSAGE_PART_NR_INFORMATION_QNAME.getLocalPart(), EBBP_NS);
+            writeSignatureElement(writer, reference);
+            writer.writeEndElement();
+        }
+
+        writer.writeEndElement();
+        writer.writeEndElement();
+
+        writer.writeEndElement();
+    }
+
+    public static void writeError(XMLStreamWriter writer, String messageId, String refToMessageId, XMLGregorianCalendar timestamp,
+                                  AS4ErrorCode errorCode, AS4ErrorCode.Severity severity, String errorDetail) throws XMLStreamException {
+        writeStartSignalMessage(writer, messageId, refToMessageId, timestamp);
+
+        writer.writeStartElement(EB, "Error", EB_NS);
+        writer.writeAttribute("category", errorCode.getCatgory().toString());
+        writer.writeAttribute("errorCode", errorCode.toString());
+        writer.writeAttribute("origin", errorCode.getOrigin().toString());
+        if (refToMessageId != null) {
+            writer.writeAttribute("refToMessageInError", refToMessageId);
+        }
+        writer.writeAttribute("severity", severity.toString());
+        writer.writeAttribute("shortDescription", errorCode.getShortDescription());
+
+        writeElement(writer, "ErrorDetail", errorDetail);
+        writer.writeEndElement();
+
+        writer.writeEndElement();
+    }
+
+    private static void writeStartSignalMessage(XMLStreamWriter writer, String messageId, String refToMessageId,
+                                                XMLGregorianCalendar timestamp) throws XMLStreamException {
+        writer.writeStartElement(EB, "SignalMessage", EB_NS);
+        if (!EB_NS.equals(writer.getNamespaceContext().getNamespaceURI(EB))) {
+            writer.writeNamespace(EB, EB_NS);
+        }
+        for (String[] namespace : NAMESPACES) {
+            writer.writeNamespace(namespace[0], namespace[1]);
+        }
+
+        writer.writeStartElement(EB, "MessageInfo", EB_NS);
+        writeElement(writer, "Timestamp", timestamp.toXMLFormat());
+        writeElement(writer, "MessageId", messageId);
+        writeElement(writer, "RefToMessageId", refToMessageId);
+        writer.writeEndElement();
+    }
+
+    /**
+     * Writes an XML Signature element of a reference the way JAXB marshalled ReferenceType: whitespace between
+     * elements is dropped, except in the mixed content of Transform and DigestMethod, and the DigestValue is
+     * base64 encoded again. Elements of other namespaces are copied as found.
+     */
+    private static void writeSignatureElement(XMLStreamWriter writer, Element element) throws XMLStreamException {
+        String localName = element.getLocalName();
+        writer.writeStartElement(DS, localName, XMLSignature.XMLNS);
+
+        NamedNodeMap attributes = element.getAttributes();
+        for (int i = 0; i < attributes.getLength(); i++) {
+            Attr attribute = (Attr) attributes.item(i);
+            if (attribute.getNamespaceURI() == null) {
+                writer.writeAttribute(attribute.getLocalName(), attribute.getValue());
+            }
+        }
+
+        if ("DigestValue".equals(localName)) {
+            writer.writeCharacters(Base64.getEncoder().encodeToString(
+                    Base64.getMimeDecoder().decode(element.getTextContent())));
+            writer.writeEndElement();
+            return;
+        }
+
+        boolean mixed = !"Reference".equals(localName) && !"Transforms".equals(localName);
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                if (XMLSignature.XMLNS.equals(child.getNamespaceURI())) {
+                    writeSignatureElement(writer, (Element) child);
+                } else {
+                    StaxUtils.writeElement((Element) child, writer, false);
+                }
+            } else if (mixed && child.getNodeType() == Node.TEXT_NODE) {
+                writer.writeCharacters(child.getNodeValue());
+            }
+        }
+
+        writer.writeEndElement();
+    }
+
+    private static void writeElement(XMLStreamWriter writer, String localName, String text) throws XMLStreamException {
+        if (text == null) {
+            return;
+        }
+
+        writer.writeStartElement(EB, localName, EB_NS);
+        writer.writeCharacters(text);
+        writer.writeEndElement();
+    }
+}
@@ -0,0 +1,30 @@
+package no.difi.oxalis.as4.util;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Reads persisted payloads, decompressing payloads stored in the gzip form they were received in.
+ */
+public class StoredPayload {
+
+    private StoredPayload() {
+        // No action
+    }
+
+    /**
+     * Opens the payload at the path, decompressing it when the metadata records a decompressed size.
+     *
+     * @param decompressedSize As returned by {@code As4InboundMetadata.getDecompressedSize()}, -1 when the payload
+     *                         is stored decompressed.
+     */
+    public static InputStream newInputStream(Path path, long decompressedSize) throws IOException {
+        InputStream is = new BufferedInputStream(Files.newInputStream(path));
+
+        // An uncompressed payload may well start with the gzip magic bytes, only the metadata tells
+        return decompressedSize >= 0 ? new BoundedGzipInputStream(is, -1, -1) : is;
+    }
+}
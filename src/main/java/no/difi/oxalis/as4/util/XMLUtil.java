@@ -1,10 +1,19 @@
 package no.difi.oxalis.as4.util;
 
 import no.difi.oxalis.as4.lang.OxalisAs4Exception;
+import org.apache.cxf.helpers.DOMUtils;
+import org.apache.cxf.staxutils.StaxUtils;
+import org.apache.cxf.staxutils.W3CDOMStreamReader;
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentFragment;
+import org.w3c.dom.Element;
 
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.util.Date;
 import java.util.GregorianCalendar;
 
@@ -20,4 +29,35 @@ public class XMLUtil {
             throw new OxalisAs4Exception("Unable to convert timestamp to XML", e);
         }
     }
+
+    /**
+     * Returns the element at the current position and leaves the reader at its end tag. Elements of a DOM
+     * backed reader are returned as is, other readers are copied into a new document.
+     */
+    public static Element readElement(XMLStreamReader reader) throws XMLStreamException {
+        if (reader instanceof W3CDOMStreamReader) {
+            Element element = ((W3CDOMStreamReader) reader).getCurrentElement();
+            skipElement(reader);
+            return element;
+        }
+
+        Document document = DOMUtils.newDocument();
+        DocumentFragment fragment = document.createDocumentFragment();
+        StaxUtils.readDocElements(document, fragment, reader, false, false);
+        return (Element) fragment.getFirstChild();
+    }
+
+    /**
+     * Moves the reader from the start tag of an element to its end tag.
+     */
+    public static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        for (int depth = 1; depth > 0; ) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
 }
@@ -0,0 +1,75 @@
+package no.difi.oxalis.as4.common;
+
+import no.difi.oxalis.api.model.Direction;
+import no.difi.oxalis.api.timestamp.Timestamp;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncTimestampServiceTest {
+
+    @Test
+    public void asyncDoesNotWaitForAuthority() throws Exception {
+        LocalTimestampAuthority authority = new LocalTimestampAuthority(200);
+        AsyncTimestampService service = new AsyncTimestampService(authority, true, 2, 100);
+
+        long start = System.nanoTime();
+        List<CompletableFuture<Timestamp>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(service.generate(("signature-" + i).getBytes(), Direction.IN));
+        }
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 200);
+
+        for (int i = 0; i < futures.size(); i++) {
+            Timestamp timestamp = futures.get(i).get(10, TimeUnit.SECONDS);
+            authority.verify(timestamp.getReceipt().get().getValue(), ("signature-" + i).getBytes());
+        }
+        Assert.assertEquals(authority.getRequests(), 10);
+    }
+
+    @Test
+    public void syncCompletesBeforeReturning() throws Exception {
+        LocalTimestampAuthority authority = new LocalTimestampAuthority(0);
+        AsyncTimestampService service = new AsyncTimestampService(authority, false, 1, 1);
+
+        CompletableFuture<Timestamp> future = service.generate("signature".getBytes(), Direction.OUT);
+
+        Assert.assertTrue(future.isDone());
+        authority.verify(future.get().getReceipt().get().getValue(), "signature".getBytes());
+    }
+
+    @Test
+    public void fullQueueRequestsOnCallingThread() throws Exception {
+        LocalTimestampAuthority authority = new LocalTimestampAuthority(200);
+        AsyncTimestampService service = new AsyncTimestampService(authority, true, 1, 1);
+
+        try {
+            // One request is processed, one is queued, the third is processed by this thread
+            service.generate("signature-0".getBytes(), Direction.IN);
+            service.generate("signature-1".getBytes(), Direction.IN);
+            CompletableFuture<Timestamp> future = service.generate("signature-2".getBytes(), Direction.IN);
+
+            Assert.assertTrue(future.isDone());
+            authority.verify(future.get().getReceipt().get().getValue(), "signature-2".getBytes());
+        } finally {
+            service.close();
+        }
+    }
+
+    @Test
+    public void closeFailsQueuedRequests() throws Exception {
+        LocalTimestampAuthority authority = new LocalTimestampAuthority(200);
+        AsyncTimestampService service = new AsyncTimestampService(authority, true, 1, 10);
+
+        service.generate("signature-0".getBytes(), Direction.IN);
+        CompletableFuture<Timestamp> queued = service.generate("signature-1".getBytes(), Direction.IN);
+
+        service.close();
+
+        Assert.assertTrue(queued.isCompletedExceptionally());
+    }
+}
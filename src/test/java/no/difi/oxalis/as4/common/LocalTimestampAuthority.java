@@ -0,0 +1,101 @@
+package no.difi.oxalis.as4.common;
+
+import no.difi.oxalis.api.lang.TimestampException;
+import no.difi.oxalis.api.model.Direction;
+import no.difi.oxalis.api.timestamp.Timestamp;
+import no.difi.oxalis.api.timestamp.TimestampProvider;
+import no.difi.vefa.peppol.common.model.Receipt;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoGeneratorBuilder;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.tsp.*;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stand-in RFC 3161 timestamp authority for tests, issuing tokens signed by a generated key. A delay simulates the
+ * round trip to a remote authority.
+ */
+public class LocalTimestampAuthority implements TimestampProvider {
+
+    private final long delay;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private final X509CertificateHolder certificate;
+    private final TimeStampResponseGenerator responseGenerator;
+
+    public LocalTimestampAuthority(long delay) throws Exception {
+        this.delay = delay;
+
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+
+        X500Name name = new X500Name("CN=Local TSA");
+        certificate = new JcaX509v3CertificateBuilder(name, BigInteger.ONE, new Date(System.currentTimeMillis() - 60_000),
+                new Date(System.currentTimeMillis() + 3_600_000), name, keyPair.getPublic())
+                .addExtension(Extension.extendedKeyUsage, true, new ExtendedKeyUsage(KeyPurposeId.id_kp_timeStamping))
+                .build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate()));
+
+        TimeStampTokenGenerator tokenGenerator = new TimeStampTokenGenerator(
+                new JcaSimpleSignerInfoGeneratorBuilder().build("SHA256withRSA", keyPair.getPrivate(),
+                        new JcaX509CertificateConverter().getCertificate(certificate)),
+                new JcaDigestCalculatorProviderBuilder().build().get(new AlgorithmIdentifier(OIWObjectIdentifiers.idSHA1)),
+                new ASN1ObjectIdentifier("1.2.3.4"));
+        responseGenerator = new TimeStampResponseGenerator(tokenGenerator, TSPAlgorithms.ALLOWED);
+    }
+
+    @Override
+    public Timestamp generate(byte[] previous, Direction direction) throws TimestampException {
+        requests.incrementAndGet();
+
+        try {
+            Thread.sleep(delay);
+
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(previous != null ? previous : new byte[0]);
+            TimeStampRequest request = new TimeStampRequestGenerator().generate(TSPAlgorithms.SHA256, digest);
+
+            // The generator signs with shared state, only the simulated round trip runs concurrently
+            TimeStampToken token;
+            synchronized (responseGenerator) {
+                token = responseGenerator.generate(request, BigInteger.valueOf(requests.get()), new Date())
+                        .getTimeStampToken();
+            }
+
+            return new Timestamp(token.getTimeStampInfo().getGenTime(), Receipt.of("rfc3161", token.getEncoded()));
+        } catch (Exception e) {
+            throw new TimestampException(e.getMessage(), e);
+        }
+    }
+
+    public int getRequests() {
+        return requests.get();
+    }
+
+    public void verify(byte[] token, byte[] previous) throws Exception {
+        TimeStampToken timeStampToken = new TimeStampToken(new CMSSignedData(token));
+        timeStampToken.validate(new JcaSimpleSignerInfoVerifierBuilder().build(certificate));
+
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(previous);
+        if (!MessageDigest.isEqual(timeStampToken.getTimeStampInfo().getMessageImprintDigest(), digest)) {
+            throw new IllegalStateException("Token does not cover the given content");
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package no.difi.oxalis.as4.inbound;
+
+import no.difi.oxalis.as4.lang.OxalisAs4Exception;
+import no.difi.oxalis.as4.util.AS4ErrorCode;
+import no.difi.oxalis.as4.util.As4MessageFactory;
+import no.difi.oxalis.as4.util.Constants;
+import no.difi.oxalis.as4.util.MessageId;
+import org.apache.cxf.binding.soap.Soap12;
+import org.apache.cxf.binding.soap.SoapHeader;
+import org.apache.cxf.binding.soap.SoapMessage;
+import org.apache.cxf.binding.soap.interceptor.Soap12FaultOutInterceptor;
+import org.apache.cxf.bus.managers.PhaseManagerImpl;
+import org.apache.cxf.interceptor.Fault;
+import org.apache.cxf.message.Exchange;
+import org.apache.cxf.message.ExchangeImpl;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.message.MessageImpl;
+import org.apache.cxf.phase.PhaseInterceptorChain;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+public class As4FaultOutInterceptorTest {
+
+    @Test
+    public void convertsFaultToErrorSignal() throws Exception {
+        SoapMessage message = createFaultMessage(new Fault(new OxalisAs4Exception("Invalid header", AS4ErrorCode.EBMS_0009)));
+
+        createInterceptor().handleMessage(message);
+
+        SoapHeader header = (SoapHeader) message.getHeaders().get(0);
+        Assert.assertEquals(header.getName(), Constants.MESSAGING_QNAME);
+        Assert.assertTrue(header.isMustUnderstand());
+
+        Element error = (Element) ((Element) header.getObject())
+                .getElementsByTagNameNS(Constants.EBMS_NAMESPACE, "Error").item(0);
+        Assert.assertEquals(error.getAttribute("errorCode"), "EBMS:0009");
+        Assert.assertEquals(error.getAttribute("refToMessageInError"), "message@oxalis");
+
+        // The SOAP Fault body is replaced by the error signal
+        Assert.assertFalse(message.getInterceptorChain().iterator().hasNext());
+        Assert.assertEquals(message.get(Message.RESPONSE_CODE), 500);
+    }
+
+    @Test
+    public void leavesOtherFaultsUntouched() throws Exception {
+        SoapMessage message = createFaultMessage(new Fault(new IllegalStateException("Unexpected")));
+
+        createInterceptor().handleMessage(message);
+
+        Assert.assertTrue(message.getHeaders().isEmpty());
+        Assert.assertTrue(message.getInterceptorChain().iterator().hasNext());
+    }
+
+    private As4FaultOutInterceptor createInterceptor() throws Exception {
+        return new As4FaultOutInterceptor(new As4MessageFactory(() -> "error@oxalis"), null);
+    }
+
+    private SoapMessage createFaultMessage(Fault fault) {
+        Message inMessage = new MessageImpl();
+        inMessage.put(MessageId.MESSAGE_ID, new MessageId("message@oxalis"));
+
+        Exchange exchange = new ExchangeImpl();
+        exchange.setInMessage(inMessage);
+
+        SoapMessage message = new SoapMessage(new MessageImpl());
+        message.setVersion(Soap12.getInstance());
+        message.setExchange(exchange);
+        message.setContent(Exception.class, fault);
+        message.setInterceptorChain(new PhaseInterceptorChain(new PhaseManagerImpl().getOutPhases()));
+
+        // Adds the SOAP Fault body writer to the chain, as in the out fault chain of the endpoint
+        new Soap12FaultOutInterceptor().handleMessage(message);
+        return message;
+    }
+}
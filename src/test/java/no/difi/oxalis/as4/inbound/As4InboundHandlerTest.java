@@ -1,46 +1,758 @@
 package no.difi.oxalis.as4.inbound;
 
+import com.google.common.io.ByteStreams;
+import no.difi.oxalis.api.inbound.InboundMetadata;
+import no.difi.oxalis.api.lang.OxalisLoadingException;
+import no.difi.oxalis.api.model.Direction;
+import no.difi.oxalis.api.model.TransmissionIdentifier;
+import no.difi.oxalis.api.persist.PersisterHandler;
+import no.difi.oxalis.api.settings.DefaultValue;
+import no.difi.oxalis.api.settings.Settings;
+import no.difi.oxalis.api.timestamp.Timestamp;
+import no.difi.oxalis.as4.common.AsyncTimestampService;
+import no.difi.oxalis.as4.common.DummyHeaderParser;
+import no.difi.oxalis.as4.config.As4Conf;
 import no.difi.oxalis.as4.lang.OxalisAs4Exception;
+import no.difi.oxalis.as4.persist.ContentAddressedPayloadStore;
+import no.difi.oxalis.as4.persist.GroupCommitJournal;
+import no.difi.oxalis.as4.persist.MessageIndex;
+import no.difi.oxalis.as4.persist.ReceiptArchive;
+import no.difi.oxalis.as4.persist.SegmentedPersisterHandler;
+import no.difi.oxalis.as4.persist.ShardedPayloadStore;
+import no.difi.oxalis.as4.util.AS4ErrorCode;
+import no.difi.oxalis.as4.util.As4MessageFactory;
+import no.difi.oxalis.as4.util.PolicyService;
+import no.difi.oxalis.as4.util.SecurityHeaderReader;
+import no.difi.vefa.peppol.common.code.DigestMethod;
+import no.difi.vefa.peppol.common.model.Digest;
+import no.difi.vefa.peppol.common.model.Header;
+import no.difi.vefa.peppol.common.model.TransportProfile;
+import org.apache.commons.io.FileUtils;
+import org.apache.cxf.attachment.AttachmentImpl;
+import org.apache.cxf.attachment.ByteDataSource;
+import org.apache.cxf.binding.soap.SoapHeader;
+import org.apache.cxf.binding.soap.SoapMessage;
+import org.apache.cxf.helpers.DOMUtils;
+import org.apache.cxf.interceptor.Fault;
+import org.apache.cxf.jaxws.context.WrappedMessageContext;
+import org.apache.cxf.message.Attachment;
+import org.apache.cxf.message.Exchange;
+import org.apache.cxf.message.ExchangeImpl;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.message.MessageImpl;
+import org.apache.wss4j.common.WSS4JConstants;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.CollaborationInfo;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.From;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.MessageInfo;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.MessageProperties;
 import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.PartInfo;
 import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.PartProperties;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.PartyId;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.PartyInfo;
 import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.PayloadInfo;
 import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.Property;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.Service;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.To;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.UserMessage;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 
-import static org.testng.Assert.*;
+import javax.activation.DataHandler;
+import javax.xml.namespace.QName;
+import javax.xml.ws.handler.MessageContext;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
+/**
+ * Messages are mostly handed to the handler as deferred messages recovered on startup, which runs the same processing
+ * as messages received, without the SOAP and WS-Security layers. The receipt path is covered with requests handled as
+ * received, the receipt written through ReceiptCaptureInterceptor.
+ */
 public class As4InboundHandlerTest {
 
-    @Test()
-    public void testValidateMessageId_withValidHref() throws Exception{
-
-        PayloadInfo payloadInfo = PayloadInfo.builder()
-                .addPartInfo(PartInfo.builder()
-                        .withHref("cid:attachedPayload")
-                        .withPartProperties(PartProperties.builder().
-                                withProperty(Property.builder()
-                                        .withName("MimeType")
-                                        .withValue("Dummy").build()).build()
-                        )
-                        .build())
-                .build();
+    private X509Certificate certificate;
+
+    private final List<Path> directories = new ArrayList<>();
+
+    private final List<Closeable> closeables = new ArrayList<>();
+
+    private final Map<As4Conf, String> settings = new EnumMap<>(As4Conf.class);
+
+    private RecordingPersisterHandler persisterHandler;
+
+    private PersisterHandler persister;
+
+    private BlockingQueue<InboundMetadata> completed;
+
+    private ShardedPayloadStore payloadStore;
+
+    private ContentAddressedPayloadStore contentStore;
+
+    private MetadataJournal metadataJournal;
+
+    private ReceiptArchive receiptArchive;
+
+    private MessageIndex messageIndex;
+
+    @BeforeClass
+    public void generateCertificate() throws Exception {
+        KeyPair keyPair = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        X500Name name = new X500Name("CN=Sender");
+        certificate = new JcaX509CertificateConverter().getCertificate(new JcaX509v3CertificateBuilder(
+                name, BigInteger.ONE, new Date(), new Date(System.currentTimeMillis() + 60_000), name, keyPair.getPublic())
+                .build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+    }
+
+    @BeforeMethod
+    public void reset() throws IOException {
+        settings.clear();
+        persisterHandler = new RecordingPersisterHandler(createDirectory());
+        persister = persisterHandler;
+        completed = new LinkedBlockingQueue<>();
+        payloadStore = new ShardedPayloadStore(Collections.emptyList());
+        contentStore = new ContentAddressedPayloadStore((Path) null);
+        metadataJournal = new MetadataJournal(null, 1, 1);
+        receiptArchive = new ReceiptArchive(null, 0, 0, 1, 1);
+        messageIndex = new MessageIndex((GroupCommitJournal) null);
+    }
+
+    @AfterMethod
+    public void deleteDirectories() throws IOException {
+        closeAll();
+
+        for (Path directory : directories) {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+        directories.clear();
+    }
+
+    @Test
+    public void holdsReceiptUntilMetadataPersisted() throws Exception {
+        As4InboundHandler handler = createHandler(disabledDeferredMessageJournal());
+        SoapMessage request = request("message", random(1, 1024), random(2, 1024));
+        Assert.assertNotNull(handler.handle(request, context(request)));
+
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        try (OutputStream os = response(request, new ReceiptCaptureInterceptor(), wire)
+                .getContent(OutputStream.class)) {
+            os.write("signed receipt".getBytes());
+
+            // Payloads are persisted while handling the request, the metadata once the receipt is complete
+            Assert.assertEquals(persisterHandler.payloads, 2);
+            Assert.assertTrue(persisterHandler.metadataPaths.isEmpty());
+        }
+
+        Assert.assertEquals(wire.toByteArray(), "signed receipt".getBytes());
+        Assert.assertEquals(persisterHandler.metadataPaths.size(), 1);
+        InboundMetadata metadata = completed.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(metadata);
+        Assert.assertEquals(metadata.primaryReceipt().getValue(), "signed receipt".getBytes());
+    }
+
+    @Test
+    public void answersFailedPersistWithError() throws Exception {
+        persisterHandler.metadataFailure = new IOException("Persister unavailable");
+        As4InboundHandler handler = createHandler(disabledDeferredMessageJournal());
+        SoapMessage request = request("message", random(1, 1024), random(2, 1024));
+        handler.handle(request, context(request));
+
+        ReceiptCaptureInterceptor interceptor = new ReceiptCaptureInterceptor();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        Message response = response(request, interceptor, wire);
+        try {
+            OutputStream os = response.getContent(OutputStream.class);
+            os.write("signed receipt".getBytes());
+            os.close();
+            Assert.fail("Receipt sent without persisted metadata");
+        } catch (IOException e) {
+            // Turned into an ebMS error by As4FaultOutInterceptor
+            Assert.assertTrue(e.getCause() instanceof OxalisAs4Exception);
+            Assert.assertEquals(((OxalisAs4Exception) e.getCause()).getErrorCode(), AS4ErrorCode.EBMS_0202);
+            response.setContent(Exception.class, new Fault(e));
+        }
+        Assert.assertEquals(wire.size(), 0);
+
+        // CXF unwinds the interceptors already run, the sender retries the message
+        interceptor.handleFault(response);
+        Assert.assertNotNull(persisterHandler.exceptions.poll(10, TimeUnit.SECONDS));
+        Assert.assertEquals(contents(persisterHandler.directory), contents(Collections.singletonList(random(1, 1024))));
+        Assert.assertTrue(completed.isEmpty());
+    }
+
+    @Test
+    public void discardsMessageWhenReceiptIsNotSent() throws Exception {
+        As4InboundHandler handler = createHandler(disabledDeferredMessageJournal());
+        SoapMessage request = request("message", random(1, 1024), random(2, 1024));
+        handler.handle(request, context(request));
+
+        ReceiptCaptureInterceptor interceptor = new ReceiptCaptureInterceptor();
+        Message response = response(request, interceptor, new ByteArrayOutputStream());
+
+        // Signing the receipt fails before it is written
+        Fault fault = new Fault(new IllegalStateException("Signing failed"));
+        response.setContent(Exception.class, fault);
+        interceptor.handleFault(response);
+
+        // The first payload handed to the persister along with the cause, the others deleted
+        Assert.assertSame(persisterHandler.exceptions.poll(10, TimeUnit.SECONDS), fault);
+        Assert.assertEquals(contents(persisterHandler.directory), contents(Collections.singletonList(random(1, 1024))));
+        Assert.assertTrue(persisterHandler.metadataPaths.isEmpty());
+    }
+
+    @Test
+    public void processesDeferredMessageOnce() throws Exception {
+        Path directory = createDirectory();
+        defer(directory, message("message", random(1, 1024)));
+
+        recover(directory);
+        InboundMetadata metadata = completed.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(metadata);
+        Assert.assertEquals(metadata.getTransmissionIdentifier().getIdentifier(), "message");
+        Assert.assertEquals(metadata.primaryReceipt().getValue(), "receipt".getBytes());
+        Assert.assertEquals(persisterHandler.payloads, 1);
+        closeAll();
+
+        // Processed messages are not processed again on the next startup
+        recover(directory);
+        Assert.assertNull(completed.poll(1, TimeUnit.SECONDS));
+    }
 
-        As4InboundHandler.validatePayloads(payloadInfo);
+    @Test
+    public void journalsMetadataUntilPersisted() throws Exception {
+        Path directory = createDirectory();
+        metadataJournal = openMetadataJournal(directory);
+
+        recover(message("message", random(1, 1024)));
+        Assert.assertNotNull(completed.poll(10, TimeUnit.SECONDS));
+        closeAll();
+
+        // Journaled, and marked as persisted
+        try (MetadataJournal journal = openMetadataJournal(directory)) {
+            List<MetadataJournal.Entry> entries = new ArrayList<>();
+            journal.read(entries::add);
+            Assert.assertEquals(entries.size(), 1);
+            Assert.assertEquals(entries.get(0).getConversationId(), "conversation");
+            Assert.assertTrue(journal.readUnpersisted().isEmpty());
+        }
+    }
+
+    @Test
+    public void replaysMetadataNotPersisted() throws Exception {
+        Path directory = createDirectory();
+        try (MetadataJournal journal = openMetadataJournal(directory)) {
+            journal.append(new As4InboundMetadata(TransmissionIdentifier.of("message"), "conversation",
+                    new Header(), new Timestamp(new Date(), null), TransportProfile.AS4,
+                    Digest.of(DigestMethod.SHA256, new byte[32]), certificate, "receipt".getBytes(), null), null);
+        }
+
+        metadataJournal = openMetadataJournal(directory);
+        createHandler(disabledDeferredMessageJournal()).recover();
+
+        // Handed to the persister and the inbound service during startup
+        InboundMetadata metadata = completed.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(metadata);
+        Assert.assertEquals(metadata.getTransmissionIdentifier().getIdentifier(), "message");
+        Assert.assertEquals(metadata.primaryReceipt().getValue(), "receipt".getBytes());
+        Assert.assertEquals(persisterHandler.metadataPaths, Collections.singletonList(null));
+        closeAll();
+
+        try (MetadataJournal journal = openMetadataJournal(directory)) {
+            Assert.assertTrue(journal.readUnpersisted().isEmpty());
+        }
+    }
+
+    @Test
+    public void storesPayloadsInPayloadDirectories() throws Exception {
+        Path directory = createDirectory();
+        payloadStore = new ShardedPayloadStore(Collections.singletonList(directory));
+
+        List<byte[]> payloads = Arrays.asList(random(1, 1024), random(2, 1024));
+        recover(message("message", payloads.toArray(new byte[0][])));
+
+        Assert.assertNotNull(completed.poll(10, TimeUnit.SECONDS));
+        Assert.assertEquals(persisterHandler.payloads, 0);
+        Assert.assertEquals(contents(directory), contents(payloads));
+        Assert.assertTrue(payloadStore.lookup(TransmissionIdentifier.of("message"))
+                .contains(persisterHandler.metadataPaths.get(0)));
+    }
+
+    @Test
+    public void readsReceiptsFromArchive() throws Exception {
+        receiptArchive = new ReceiptArchive(new GroupCommitJournal(createDirectory(), "receipts", 1 << 20, 0),
+                1 << 20, 50, 1, 10);
+        closeables.add(receiptArchive);
+
+        recover(message("message", random(1, 1024)));
+        Assert.assertNotNull(completed.poll(10, TimeUnit.SECONDS));
+
+        recover(message("message", random(2, 1024))
+                .withSignedReceipt("resent".getBytes()));
+        InboundMetadata metadata = completed.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(metadata);
+
+        // Archived once per delivery, the metadata reads the receipt of its own delivery
+        Assert.assertEquals(receiptArchive.getReceipts("message").size(), 2);
+        Assert.assertEquals(metadata.primaryReceipt().getValue(), "resent".getBytes());
+    }
+
+    @Test
+    public void indexesPersistedMessages() throws Exception {
+        Path directory = createDirectory();
+        messageIndex = new MessageIndex(new GroupCommitJournal(directory, "index", 1 << 20, 0));
+        closeables.add(messageIndex);
+
+        recover(message("message", random(1, 1024)));
+        Assert.assertNotNull(completed.poll(10, TimeUnit.SECONDS));
+
+        MessageIndex.Entry entry = messageIndex.findByMessageId("message").get();
+        Assert.assertEquals(entry.getDirection(), Direction.IN);
+        Assert.assertEquals(entry.getLocation(), persisterHandler.metadataPaths.get(0).toString());
+        Assert.assertEquals(messageIndex.findByConversationId("conversation").size(), 1);
+        closeAll();
+
+        // Replayed from disk
+        try (MessageIndex index = new MessageIndex(new GroupCommitJournal(directory, "index", 1 << 20, 0))) {
+            Assert.assertTrue(index.findByMessageId("message").isPresent());
+        }
+    }
+
+    @Test
+    public void persistsPayloadsInParallel() throws Exception {
+        Path directory = createDirectory();
+        payloadStore = new ShardedPayloadStore(Collections.singletonList(directory));
+        settings.put(As4Conf.INBOUND_PAYLOAD_THREADS, "4");
+
+        List<byte[]> payloads = Arrays.asList(random(1, 256 * 1024), random(2, 256 * 1024), random(3, 256 * 1024));
+        recover(message("message", payloads.toArray(new byte[0][])));
+
+        InboundMetadata metadata = completed.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(metadata);
+        Assert.assertEquals(metadata.getTransmissionIdentifier().getIdentifier(), "message");
+        Assert.assertEquals(persisterHandler.payloads, 0);
+
+        // Each payload in its own file of the payload store
+        Assert.assertEquals(contents(directory), contents(payloads));
+        Assert.assertTrue(persisterHandler.metadataPaths.get(0).startsWith(directory));
     }
 
-    @Test( expectedExceptions = {OxalisAs4Exception.class} )
-    public void testValidateMessageId_withInvalidHref() throws Exception{
+    @Test
+    public void deletesPayloadsOfFailedMessage() throws Exception {
+        Path directory = createDirectory();
+        payloadStore = new ShardedPayloadStore(Collections.singletonList(directory));
+        settings.put(As4Conf.INBOUND_PAYLOAD_THREADS, "4");
+
+        byte[] gzip = gzip(random(2, 256 * 1024));
+        recover(message("message", Arrays.asList(
+                attachment(random(1, 256 * 1024)),
+                attachment(Arrays.copyOf(gzip, gzip.length / 2), "application/gzip"),
+                attachment(random(3, 256 * 1024)))));
+
+        // Given up after the first attempt, the payloads stored before the failure are gone
+        Assert.assertNotNull(persisterHandler.exceptions.poll(10, TimeUnit.SECONDS));
+        Assert.assertTrue(completed.isEmpty());
+        Assert.assertTrue(contents(directory).isEmpty());
+    }
+
+    @Test(expectedExceptions = OxalisLoadingException.class)
+    public void rejectsPayloadThreadsWithDefaultPersister() throws Exception {
+        settings.put(As4Conf.INBOUND_PAYLOAD_THREADS, "4");
+        createHandler(disabledDeferredMessageJournal());
+    }
+
+    @Test
+    public void storesIdenticalPayloadsOnce() throws Exception {
+        Path directory = createDirectory();
+        contentStore = new ContentAddressedPayloadStore(directory);
+
+        byte[] content = random(1, 1024);
+        recover(message("first", content),
+                message("second", content));
+
+        Assert.assertNotNull(completed.poll(10, TimeUnit.SECONDS));
+        Assert.assertNotNull(completed.poll(10, TimeUnit.SECONDS));
+        Assert.assertEquals(persisterHandler.payloads, 0);
+
+        // Each message has its own link to the content
+        Path first = persisterHandler.metadataPaths.get(0);
+        Path second = persisterHandler.metadataPaths.get(1);
+        Assert.assertNotEquals(first, second);
+        Assert.assertTrue(Files.isSameFile(first, second));
+        Assert.assertEquals(Files.readAllBytes(first), content);
+    }
+
+    @Test(expectedExceptions = OxalisLoadingException.class)
+    public void rejectsContentAndPayloadDirectories() throws Exception {
+        contentStore = new ContentAddressedPayloadStore(createDirectory());
+        payloadStore = new ShardedPayloadStore(Collections.singletonList(createDirectory()));
+        createHandler(disabledDeferredMessageJournal());
+    }
 
-        PayloadInfo payloadInfo = PayloadInfo.builder()
-                .addPartInfo(PartInfo.builder()
-                        .withHref("http://difi.no")
+    @Test
+    public void persistsToSegments() throws Exception {
+        SegmentedPersisterHandler segmentedPersisterHandler = openSegmentedPersisterHandler(createDirectory());
+        persister = segmentedPersisterHandler;
+
+        byte[] small = random(1, 512);
+        byte[] large = random(2, 4096);
+        recover(message("message", small, large));
+        Assert.assertNotNull(completed.poll(10, TimeUnit.SECONDS));
+
+        // The small payload inline, the large one spilled to its own file
+        TransmissionIdentifier messageId = TransmissionIdentifier.of("message");
+        Set<String> contents = new HashSet<>();
+        for (Path path : segmentedPersisterHandler.getPayloads(messageId)) {
+            try (InputStream inputStream = segmentedPersisterHandler.open(path)) {
+                contents.add(Arrays.toString(ByteStreams.toByteArray(inputStream)));
+            }
+        }
+        Assert.assertEquals(contents, contents(Arrays.asList(small, large)));
+        Assert.assertEquals(segmentedPersisterHandler.getMetadata(messageId).get().getConversationId(), "conversation");
+    }
+
+    @Test(expectedExceptions = OxalisLoadingException.class)
+    public void rejectsPayloadStoreWithSegmentedPersister() throws Exception {
+        persister = openSegmentedPersisterHandler(createDirectory());
+        payloadStore = new ShardedPayloadStore(Collections.singletonList(createDirectory()));
+        createHandler(disabledDeferredMessageJournal());
+    }
+
+    /**
+     * Journals the messages as deferred, then recovers them with a new handler.
+     */
+    private As4InboundHandler recover(DeferredMessage... messages) throws Exception {
+        Path directory = createDirectory();
+        defer(directory, messages);
+        return recover(directory);
+    }
+
+    private void defer(Path directory, DeferredMessage... messages) throws IOException {
+        try (DeferredMessageJournal journal = openDeferredMessageJournal(directory)) {
+            for (DeferredMessage message : messages) {
+                journal.append(message);
+            }
+        }
+    }
+
+    private As4InboundHandler recover(Path directory) throws Exception {
+        DeferredMessageJournal journal = openDeferredMessageJournal(directory);
+        closeables.add(journal);
+
+        As4InboundHandler handler = createHandler(journal);
+        handler.recover();
+        return handler;
+    }
+
+    private As4InboundHandler createHandler(DeferredMessageJournal deferredMessageJournal) throws Exception {
+        Settings<As4Conf> settings = settings();
+
+        As4InboundHandler handler = new As4InboundHandler(
+                (header, direction) -> {
+                },
+                persister,
+                new AsyncTimestampService((signature, direction) -> new Timestamp(new Date(), null), false, 1, 1),
+                new DummyHeaderParser(),
+                new As4MessageFactory(() -> "receipt@oxalis"),
+                new PolicyService("/eDeliveryAS4Policy.xml"),
+                new WriteBehindInboundService(completed::add, false, 1, 1, 1),
+                metadataJournal,
+                deferredMessageJournal,
+                payloadStore,
+                contentStore,
+                receiptArchive,
+                messageIndex,
+                settings);
+        closeables.add(handler::close);
+        return handler;
+    }
+
+    private static MessageContext context(SoapMessage request) {
+        return new WrappedMessageContext(request, MessageContext.Scope.APPLICATION);
+    }
+
+    /**
+     * Stops the handlers and closes the journals, waiting for work in progress.
+     */
+    private void closeAll() throws IOException {
+        Collections.reverse(closeables);
+        for (Closeable closeable : closeables) {
+            closeable.close();
+        }
+        closeables.clear();
+    }
+
+    private SegmentedPersisterHandler openSegmentedPersisterHandler(Path directory) throws IOException {
+        SegmentedPersisterHandler segmentedPersisterHandler = new SegmentedPersisterHandler(directory,
+                new GroupCommitJournal(directory, "segment", 1 << 20, 0), 1024, 0, TimeUnit.HOURS.toMillis(1));
+        closeables.add(segmentedPersisterHandler);
+        return segmentedPersisterHandler;
+    }
+
+    private MetadataJournal openMetadataJournal(Path directory) throws IOException {
+        MetadataJournal journal = new MetadataJournal(new GroupCommitJournal(directory, "metadata", 1 << 20, 0), 1, 1);
+        closeables.add(journal);
+        return journal;
+    }
+
+    private DeferredMessageJournal openDeferredMessageJournal(Path directory) throws IOException {
+        return new DeferredMessageJournal(new GroupCommitJournal(directory, "message", 1 << 22, 0),
+                1 << 22, 1, 10, 1);
+    }
+
+    private static DeferredMessageJournal disabledDeferredMessageJournal() {
+        return new DeferredMessageJournal(null, 0, 1, 1, 1);
+    }
+
+    private Settings<As4Conf> settings() {
+        return new Settings<As4Conf>() {
+            @Override
+            public String getString(As4Conf key) {
+                if (settings.containsKey(key)) {
+                    return settings.get(key);
+                }
+
+                try {
+                    return As4Conf.class.getField(key.name()).getAnnotation(DefaultValue.class).value();
+                } catch (NoSuchFieldException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            @Override
+            public int getInt(As4Conf key) {
+                return Integer.parseInt(getString(key));
+            }
+        };
+    }
+
+    private DeferredMessage message(String messageId, byte[]... payloads) throws Exception {
+        return message(messageId, Arrays.stream(payloads).map(this::attachment).collect(Collectors.toList()));
+    }
+
+    private DeferredMessage message(String messageId, List<Attachment> attachments) throws Exception {
+        return DeferredMessage.of(TransmissionIdentifier.of(messageId), new Timestamp(new Date(), null),
+                SecurityHeaderReader.read(securityHeader(attachments)), userMessage(messageId, attachments),
+                attachments)
+                .withSignedReceipt("receipt".getBytes());
+    }
+
+    /**
+     * Request as left by the interceptors before the provider, holding the user message and the security header.
+     */
+    private SoapMessage request(String messageId, byte[]... payloads) throws Exception {
+        List<Attachment> attachments = Arrays.stream(payloads).map(this::attachment).collect(Collectors.toList());
+
+        SoapMessage request = new SoapMessage(new MessageImpl());
+        request.put(UserMessage.class, userMessage(messageId, attachments));
+        request.getHeaders().add(new SoapHeader(
+                new QName(WSS4JConstants.WSSE_NS, WSS4JConstants.WSSE_LN), securityHeader(attachments)));
+        request.setAttachments(attachments);
+
+        Exchange exchange = new ExchangeImpl();
+        exchange.setInMessage(request);
+        request.setExchange(exchange);
+        return request;
+    }
+
+    /**
+     * Response to the request, its content written through ReceiptCaptureInterceptor to the returned stream.
+     */
+    private Message response(SoapMessage request, ReceiptCaptureInterceptor interceptor, OutputStream wire) {
+        Message response = new MessageImpl();
+        response.setExchange(request.getExchange());
+        response.setContent(OutputStream.class, wire);
+        request.getExchange().setOutMessage(response);
+
+        interceptor.handleMessage(response);
+        return response;
+    }
+
+    private Element securityHeader(List<Attachment> attachments) throws Exception {
+        Document document = DOMUtils.newDocument();
+        Element security = document.createElementNS(WSS4JConstants.WSSE_NS, "wsse:Security");
+        document.appendChild(security);
+
+        Element token = append(security, WSS4JConstants.WSSE_NS, "wsse:BinarySecurityToken");
+        token.setAttributeNS(WSS4JConstants.WSU_NS, "wsu:Id", "X509");
+        token.setTextContent(Base64.getEncoder().encodeToString(certificate.getEncoded()));
+
+        Element signature = append(security, WSS4JConstants.SIG_NS, "ds:Signature");
+        Element signedInfo = append(signature, WSS4JConstants.SIG_NS, "ds:SignedInfo");
+        for (Attachment attachment : attachments) {
+            Element reference = append(signedInfo, WSS4JConstants.SIG_NS, "ds:Reference");
+            reference.setAttributeNS(null, "URI", "cid:" + attachment.getId());
+            append(reference, WSS4JConstants.SIG_NS, "ds:DigestValue").setTextContent("ZGlnZXN0");
+        }
+        append(signature, WSS4JConstants.SIG_NS, "ds:SignatureValue").setTextContent("c2lnbmF0dXJl");
+
+        Element tokenReference = append(append(signature, WSS4JConstants.SIG_NS, "ds:KeyInfo"),
+                WSS4JConstants.WSSE_NS, "wsse:SecurityTokenReference");
+        append(tokenReference, WSS4JConstants.WSSE_NS, "wsse:Reference").setAttributeNS(null, "URI", "#X509");
+        return security;
+    }
+
+    private static Element append(Element parent, String namespace, String name) {
+        Element element = parent.getOwnerDocument().createElementNS(namespace, name);
+        parent.appendChild(element);
+        return element;
+    }
+
+    private static UserMessage userMessage(String messageId, List<Attachment> attachments) {
+        PayloadInfo.Builder<Void> payloadInfo = PayloadInfo.builder();
+
+        for (Attachment attachment : attachments) {
+            PartProperties.Builder<Void> partProperties = PartProperties.builder()
+                    .addProperty(Property.builder().withName("MimeType").withValue("application/xml").build());
+            if (attachment.getHeader("CompressionType") != null) {
+                partProperties.addProperty(Property.builder()
+                        .withName("CompressionType").withValue(attachment.getHeader("CompressionType")).build());
+            }
+            payloadInfo.addPartInfo(PartInfo.builder()
+                    .withHref("cid:" + attachment.getId())
+                    .withPartProperties(partProperties.build())
+                    .build());
+        }
+
+        return UserMessage.builder()
+                .withMessageInfo(MessageInfo.builder().withMessageId(messageId).build())
+                .withPartyInfo(PartyInfo.builder()
+                        .withFrom(From.builder().withRole("sender")
+                                .addPartyId(PartyId.builder().withValue("0192:123").build()).build())
+                        .withTo(To.builder().withRole("receiver")
+                                .addPartyId(PartyId.builder().withValue("0192:456").build()).build())
+                        .build())
+                .withCollaborationInfo(CollaborationInfo.builder()
+                        .withConversationId("conversation")
+                        .withAction("urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##2.1")
+                        .withService(Service.builder().withType("cenbii-procid-ubl")
+                                .withValue("urn:fdc:peppol.eu:2017:poacc:billing:01:1.0").build())
                         .build())
+                .withMessageProperties(MessageProperties.builder()
+                        .addProperty(Property.builder().withName("originalSender").withValue("0192:123").build())
+                        .addProperty(Property.builder().withName("finalRecipient").withValue("0192:456").build())
+                        .build())
+                .withPayloadInfo(payloadInfo.build())
                 .build();
+    }
 
-        As4InboundHandler.validatePayloads(payloadInfo);
+    private Attachment attachment(byte[] content) {
+        return attachment(content, null);
+    }
 
-        fail();
+    private Attachment attachment(byte[] content, String compressionType) {
+        AttachmentImpl attachment = new AttachmentImpl("payload-" + Arrays.hashCode(content),
+                new DataHandler(new ByteDataSource(content, "application/octet-stream")));
+        if (compressionType != null) {
+            attachment.setHeader("CompressionType", compressionType);
+        }
+        return attachment;
     }
 
+    private Path createDirectory() throws IOException {
+        Path directory = Files.createTempDirectory("inbound");
+        directories.add(directory);
+        return directory;
+    }
 
-}
\ No newline at end of file
+    private static byte[] random(long seed, int size) {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bos)) {
+            out.write(content);
+        }
+        return bos.toByteArray();
+    }
+
+    private static Set<String> contents(Path directory) throws IOException {
+        Set<String> contents = new HashSet<>();
+        for (Path path : Files.walk(directory).filter(Files::isRegularFile).collect(Collectors.toList())) {
+            contents.add(Arrays.toString(Files.readAllBytes(path)));
+        }
+        return contents;
+    }
+
+    private static Set<String> contents(List<byte[]> payloads) {
+        return payloads.stream().map(Arrays::toString).collect(Collectors.toSet());
+    }
+
+    /**
+     * Stores payloads in files of its own directory, records metadata and exceptions handed to it. Persisting
+     * metadata fails with the metadata failure when set.
+     */
+    private static class RecordingPersisterHandler implements PersisterHandler {
+
+        private final Path directory;
+
+        private volatile int payloads;
+
+        private final List<Path> metadataPaths = Collections.synchronizedList(new ArrayList<>());
+
+        private final BlockingQueue<Exception> exceptions = new LinkedBlockingQueue<>();
+
+        private volatile IOException metadataFailure;
+
+        private RecordingPersisterHandler(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public synchronized Path persist(TransmissionIdentifier transmissionIdentifier, Header header,
+                                         InputStream inputStream) throws IOException {
+            Path path = directory.resolve(transmissionIdentifier.getIdentifier() + "-" + payloads++ + ".payload");
+            Files.write(path, ByteStreams.toByteArray(inputStream));
+            return path;
+        }
+
+        @Override
+        public void persist(InboundMetadata inboundMetadata, Path payloadPath) throws IOException {
+            if (metadataFailure != null) {
+                throw metadataFailure;
+            }
+            metadataPaths.add(payloadPath);
+        }
+
+        @Override
+        public void persist(TransmissionIdentifier transmissionIdentifier, Header header, Path payloadPath,
+                            Exception exception) {
+            exceptions.add(exception);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package no.difi.oxalis.as4.inbound;
+
+import no.difi.oxalis.as4.lang.OxalisAs4Exception;
+import org.apache.cxf.attachment.AttachmentImpl;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.PartInfo;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.PartProperties;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.PayloadInfo;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.Property;
+import org.testng.annotations.Test;
+
+import java.util.Collections;
+
+import static org.testng.Assert.*;
+
+public class As4ValidationInterceptorTest {
+
+    @Test()
+    public void testValidateMessageId_withValidHref() throws Exception{
+
+        PayloadInfo payloadInfo = PayloadInfo.builder()
+                .addPartInfo(PartInfo.builder()
+                        .withHref("cid:attachedPayload")
+                        .withPartProperties(PartProperties.builder().
+                                withProperty(Property.builder()
+                                        .withName("MimeType")
+                                        .withValue("Dummy").build()).build()
+                        )
+                        .build())
+                .build();
+
+        As4ValidationInterceptor.validatePayloads(payloadInfo);
+    }
+
+    @Test( expectedExceptions = {OxalisAs4Exception.class} )
+    public void testValidateMessageId_withInvalidHref() throws Exception{
+
+        PayloadInfo payloadInfo = PayloadInfo.builder()
+                .addPartInfo(PartInfo.builder()
+                        .withHref("http://difi.no")
+                        .build())
+                .build();
+
+        As4ValidationInterceptor.validatePayloads(payloadInfo);
+
+        fail();
+    }
+
+    @Test( expectedExceptions = {OxalisAs4Exception.class} )
+    public void testValidateMessageId_withInvalidMessageId() throws Exception{
+
+        As4ValidationInterceptor.validateMessageId("not a message id");
+
+        fail();
+    }
+
+    @Test()
+    public void testValidateAttachments_withPartInfo() throws Exception{
+
+        PayloadInfo payloadInfo = PayloadInfo.builder()
+                .addPartInfo(PartInfo.builder()
+                        .withHref("cid:attachedPayload")
+                        .build())
+                .build();
+
+        As4ValidationInterceptor.validateAttachments(
+                Collections.singletonList(new AttachmentImpl("<attachedPayload>")), payloadInfo);
+    }
+
+    @Test( expectedExceptions = {OxalisAs4Exception.class} )
+    public void testValidateAttachments_withoutPartInfo() throws Exception{
+
+        PayloadInfo payloadInfo = PayloadInfo.builder()
+                .addPartInfo(PartInfo.builder()
+                        .withHref("cid:attachedPayload")
+                        .build())
+                .build();
+
+        As4ValidationInterceptor.validateAttachments(
+                Collections.singletonList(new AttachmentImpl("unknownPayload")), payloadInfo);
+
+        fail();
+    }
+}
@@ -0,0 +1,249 @@
+package no.difi.oxalis.as4.inbound;
+
+import no.difi.oxalis.api.model.TransmissionIdentifier;
+import no.difi.oxalis.api.timestamp.Timestamp;
+import no.difi.oxalis.as4.persist.GroupCommitJournal;
+import no.difi.oxalis.as4.util.SecurityHeader;
+import no.difi.vefa.peppol.common.model.Receipt;
+import org.apache.commons.io.FileUtils;
+import org.apache.cxf.attachment.AttachmentImpl;
+import org.apache.cxf.attachment.ByteDataSource;
+import org.apache.cxf.helpers.DOMUtils;
+import org.apache.cxf.message.Attachment;
+import org.apache.wss4j.common.WSS4JConstants;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.MessageInfo;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.UserMessage;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.activation.DataHandler;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class DeferredMessageJournalTest {
+
+    private X509Certificate certificate;
+
+    private final List<Path> directories = new ArrayList<>();
+
+    @BeforeClass
+    public void generateCertificate() throws Exception {
+        KeyPair keyPair = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        X500Name name = new X500Name("CN=Sender");
+        certificate = new JcaX509CertificateConverter().getCertificate(new JcaX509v3CertificateBuilder(
+                name, BigInteger.ONE, new Date(), new Date(System.currentTimeMillis() + 60_000), name, keyPair.getPublic())
+                .build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+    }
+
+    @AfterMethod
+    public void deleteDirectories() throws IOException {
+        for (Path directory : directories) {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+        directories.clear();
+    }
+
+    @Test
+    public void roundTripsMessage() throws Exception {
+        Receipt timestampReceipt = Receipt.of("application/timestamp-reply", "token".getBytes());
+        DeferredMessage message = createMessage("message-1")
+                .withSignedReceipt("receipt".getBytes())
+                .withTimestamp(new Timestamp(new Date(1000), timestampReceipt));
+        DeferredMessage decoded = DeferredMessage.decode(message.encode());
+
+        Assert.assertEquals(decoded.getTransmissionIdentifier(), message.getTransmissionIdentifier());
+        Assert.assertEquals(decoded.getTimestamp().getDate(), new Date(1000));
+        Assert.assertEquals(decoded.getTimestamp().getReceipt().get().getValue(), "token".getBytes());
+        Assert.assertEquals(decoded.getSenderCertificate(), certificate);
+        Assert.assertEquals(decoded.getSignedReceipt(), "receipt".getBytes());
+        Assert.assertEquals(decoded.getUserMessage().getMessageInfo().getMessageId(), "message-1");
+        Assert.assertEquals(new String(decoded.getSecurityHeader().getAttachmentDigest("cid:payload")), "ZGlnZXN0");
+
+        Attachment attachment = decoded.getAttachments().get(0);
+        Assert.assertEquals(attachment.getId(), "payload");
+        Assert.assertEquals(attachment.getHeader("CompressionType"), "application/gzip");
+        try (InputStream is = attachment.getDataHandler().getInputStream()) {
+            byte[] content = new byte[7];
+            Assert.assertEquals(is.read(content), 7);
+            Assert.assertEquals(new String(content), "payload");
+        }
+    }
+
+    @Test
+    public void recoversUnprocessedMessages() throws Exception {
+        Path directory = createDirectory();
+
+        // Processing fails, as if the server went down before it completed
+        try (DeferredMessageJournal journal = open(directory)) {
+            for (String id : new String[]{"message-1", "message-2"}) {
+                DeferredMessage message = createMessage(id);
+                journal.append(message);
+                journal.process(message, m -> failed(), (m, e) -> Assert.fail("Given up after first attempt"));
+            }
+        }
+
+        List<String> processed = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(2);
+
+        try (DeferredMessageJournal journal = open(directory)) {
+            journal.recover(message -> {
+                processed.add(message.getTransmissionIdentifier().getIdentifier());
+                latch.countDown();
+                return CompletableFuture.completedFuture(null);
+            }, (m, e) -> Assert.fail("Given up"));
+            Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals(processed.size(), 2);
+
+        // Both processed, nothing left to recover and the old segments are gone
+        try (DeferredMessageJournal journal = open(directory)) {
+            journal.recover(message -> {
+                processed.add(message.getTransmissionIdentifier().getIdentifier());
+                return CompletableFuture.completedFuture(null);
+            }, (m, e) -> Assert.fail("Given up"));
+        }
+        Assert.assertEquals(processed.size(), 2);
+        Assert.assertTrue(Files.list(directory).count() <= 2);
+    }
+
+    @Test
+    public void givesUpAfterMaximumAttempts() throws Exception {
+        Path directory = createDirectory();
+        DeferredMessage message = createMessage("message-1");
+        List<String> deadLetters = new CopyOnWriteArrayList<>();
+
+        // First attempt fails and is recorded
+        try (DeferredMessageJournal journal = open(directory)) {
+            journal.append(message);
+            journal.process(message, m -> failed(), (m, e) -> deadLetters.add(m.getTransmissionIdentifier().getIdentifier()));
+        }
+        Assert.assertTrue(deadLetters.isEmpty());
+
+        // Second attempt, on startup, reaches the maximum
+        CountDownLatch latch = new CountDownLatch(1);
+        try (DeferredMessageJournal journal = open(directory)) {
+            journal.recover(m -> failed(), (m, e) -> {
+                Assert.assertEquals(e.getMessage(), "Stopped");
+                deadLetters.add(m.getTransmissionIdentifier().getIdentifier());
+                latch.countDown();
+            });
+            Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        }
+        Assert.assertEquals(deadLetters, Collections.singletonList("message-1"));
+
+        // Given up messages count as processed
+        try (DeferredMessageJournal journal = open(directory)) {
+            journal.recover(m -> {
+                Assert.fail("Processed again");
+                return null;
+            }, (m, e) -> Assert.fail("Given up again"));
+        }
+        Assert.assertTrue(Files.list(directory).count() <= 2);
+    }
+
+    @Test
+    public void processesOnCallingThreadWhenQueueIsFull() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Thread> threads = new CopyOnWriteArrayList<>();
+
+        try (DeferredMessageJournal journal = new DeferredMessageJournal(
+                new GroupCommitJournal(createDirectory(), "message", 1 << 20, 0), 1024 * 1024, 1, 1, 3)) {
+            for (int i = 0; i < 3; i++) {
+                DeferredMessage message = createMessage("message-" + i);
+                journal.append(message);
+                journal.process(message, m -> {
+                    threads.add(Thread.currentThread());
+                    if (threads.size() == 1) {
+                        blocked.countDown();
+                        await(release);
+                    }
+                    return CompletableFuture.completedFuture(null);
+                }, (m, e) -> Assert.fail("Given up"));
+                Assert.assertTrue(blocked.await(10, TimeUnit.SECONDS));
+            }
+
+            // The worker is busy and the queue holds the second message, the third ran here
+            Assert.assertTrue(threads.contains(Thread.currentThread()));
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void acceptsRequestsUpToMaximumSize() throws Exception {
+        try (DeferredMessageJournal journal = open(createDirectory())) {
+            Assert.assertTrue(journal.accepts(1024));
+            Assert.assertFalse(journal.accepts(1024 * 1024 + 1));
+            Assert.assertFalse(journal.accepts(-1));
+        }
+
+        Assert.assertFalse(new DeferredMessageJournal(null, 1024, 1, 1, 1).accepts(10));
+    }
+
+    private Path createDirectory() throws IOException {
+        Path directory = Files.createTempDirectory("deferred");
+        directories.add(directory);
+        return directory;
+    }
+
+    private DeferredMessageJournal open(Path directory) throws Exception {
+        return new DeferredMessageJournal(new GroupCommitJournal(directory, "message", 1 << 20, 0), 1024 * 1024, 2, 10, 2);
+    }
+
+    private static CompletableFuture<Void> failed() {
+        CompletableFuture<Void> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("Stopped"));
+        return failed;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private DeferredMessage createMessage(String messageId) throws Exception {
+        Document document = DOMUtils.newDocument();
+        Element reference = document.createElementNS(WSS4JConstants.SIG_NS, "ds:Reference");
+        reference.setAttributeNS(null, "URI", "cid:payload");
+        Element digestValue = document.createElementNS(WSS4JConstants.SIG_NS, "ds:DigestValue");
+        digestValue.setTextContent("ZGlnZXN0");
+        reference.appendChild(digestValue);
+
+        UserMessage userMessage = new UserMessage();
+        userMessage.setMessageInfo(new MessageInfo());
+        userMessage.getMessageInfo().setMessageId(messageId);
+
+        AttachmentImpl attachment = new AttachmentImpl("payload",
+                new DataHandler(new ByteDataSource("payload".getBytes(), "application/octet-stream")));
+        attachment.setHeader("CompressionType", "application/gzip");
+
+        return DeferredMessage.of(TransmissionIdentifier.of(messageId), new Timestamp(new Date(), null),
+                new SecurityHeader("signature".getBytes(), Collections.singletonList(reference), certificate),
+                userMessage, Collections.singletonList(attachment));
+    }
+}
@@ -0,0 +1,206 @@
+package no.difi.oxalis.as4.inbound;
+
+import com.google.common.io.ByteStreams;
+import no.difi.oxalis.as4.lang.OxalisAs4Exception;
+import no.difi.oxalis.as4.util.AS4ErrorCode;
+import org.apache.cxf.attachment.AttachmentDeserializer;
+import org.apache.cxf.binding.soap.SoapMessage;
+import org.apache.cxf.message.Attachment;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.message.MessageImpl;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.PartInfo;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.PayloadInfo;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+public class InboundLimitsTest {
+
+    private static final String BOUNDARY = "----=_Part_boundary";
+
+    @Test
+    public void rejectsAnnouncedContentLengthWithoutReadingBody() throws Exception {
+        As4Servlet servlet = new As4Servlet();
+        Field field = As4Servlet.class.getDeclaredField("inboundLimits");
+        field.setAccessible(true);
+        field.set(servlet, new InboundLimits(1024, -1, -1));
+
+        Map<String, Object> sent = new HashMap<>();
+        HttpServletResponse response = proxy(HttpServletResponse.class, (method, args) -> {
+            if (method.equals("sendError") || method.equals("setHeader")) {
+                sent.put(method.equals("sendError") ? "status" : (String) args[0], args[args.length - 1]);
+            }
+            return null;
+        });
+        HttpServletRequest request = proxy(HttpServletRequest.class, (method, args) -> {
+            if (method.equals("getContentLengthLong")) {
+                return 1025L;
+            }
+            throw new AssertionError("Request read after rejection: " + method);
+        });
+
+        servlet.doPost(request, response);
+
+        Assert.assertEquals(sent.get("status"), HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        Assert.assertEquals(sent.get("Connection"), "close");
+    }
+
+    @Test
+    public void acceptsContentLengthWithinLimit() {
+        Assert.assertTrue(new InboundLimits(1024, -1, -1).acceptsContentLength(1024));
+        Assert.assertTrue(new InboundLimits(1024, -1, -1).acceptsContentLength(-1));
+        Assert.assertTrue(new InboundLimits(-1, -1, -1).acceptsContentLength(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void failsChunkedBodyOverLimit() throws Exception {
+        InboundLimits limits = new InboundLimits(1024, -1, -1);
+
+        Assert.assertEquals(ByteStreams.toByteArray(limits.limitContent(chunked(new byte[1024])).getInputStream()).length, 1024);
+
+        try (InputStream inputStream = limits.limitContent(chunked(new byte[1025])).getInputStream()) {
+            ByteStreams.exhaust(inputStream);
+            Assert.fail("Body over limit was read");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("1024"));
+        }
+    }
+
+    @Test
+    public void limitsAttachmentCount() throws Exception {
+        Assert.assertEquals(readAttachments(multipart(new InboundLimits(-1, 3, -1), 3, 10)), 3);
+
+        try {
+            readAttachments(multipart(new InboundLimits(-1, 2, -1), 3, 10));
+            Assert.fail("Attachments over limit were read");
+        } catch (OxalisAs4Exception e) {
+            Assert.assertEquals(e.getErrorCode(), AS4ErrorCode.EBMS_0009);
+        }
+    }
+
+    @Test
+    public void limitsAttachmentSize() throws Exception {
+        Assert.assertEquals(readAttachments(multipart(new InboundLimits(-1, -1, 1024), 1, 1024)), 1);
+
+        try {
+            readAttachments(multipart(new InboundLimits(-1, -1, 1024), 1, 1025));
+            Assert.fail("Attachment over limit was read");
+        } catch (OxalisAs4Exception | IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Reads the attachments the way the inbound chain does, validating them before reading their content.
+     */
+    private static int readAttachments(Message message) throws IOException, OxalisAs4Exception {
+        new AttachmentDeserializer(message).initializeAttachments();
+        ByteStreams.exhaust(message.getContent(InputStream.class));
+        As4ValidationInterceptor.validateAttachments(message.getAttachments(), payloadInfo());
+
+        int count = 0;
+        for (Attachment attachment : message.getAttachments()) {
+            try (InputStream inputStream = attachment.getDataHandler().getInputStream()) {
+                ByteStreams.exhaust(inputStream);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    private static PayloadInfo payloadInfo() {
+        PayloadInfo payloadInfo = new PayloadInfo();
+        for (int i = 0; i < 10; i++) {
+            PartInfo partInfo = new PartInfo();
+            partInfo.setHref("cid:attachment-" + i);
+            payloadInfo.getPartInfo().add(partInfo);
+        }
+        return payloadInfo;
+    }
+
+    private static Message multipart(InboundLimits limits, int attachments, int size) {
+        StringBuilder body = new StringBuilder()
+                .append("--").append(BOUNDARY).append("\r\n")
+                .append("Content-Type: application/soap+xml\r\n")
+                .append("Content-ID: <root>\r\n\r\n")
+                .append("<env:Envelope xmlns:env=\"http://www.w3.org/2003/05/soap-envelope\"/>\r\n");
+
+        char[] content = new char[size];
+        java.util.Arrays.fill(content, 'a');
+        for (int i = 0; i < attachments; i++) {
+            body.append("--").append(BOUNDARY).append("\r\n")
+                    .append("Content-Type: application/octet-stream\r\n")
+                    .append("Content-ID: <attachment-").append(i).append(">\r\n\r\n")
+                    .append(content).append("\r\n");
+        }
+        body.append("--").append(BOUNDARY).append("--\r\n");
+
+        Message message = new SoapMessage(new MessageImpl());
+        message.put(Message.CONTENT_TYPE, "multipart/related; type=\"application/soap+xml\"; boundary=\"" + BOUNDARY + "\"");
+        message.setContent(InputStream.class, new ByteArrayInputStream(body.toString().getBytes(StandardCharsets.US_ASCII)));
+        limits.apply(message);
+        return message;
+    }
+
+    private static HttpServletRequest chunked(byte[] body) {
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(body);
+        ServletInputStream servletInputStream = new ServletInputStream() {
+            @Override
+            public int read() {
+                return inputStream.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return inputStream.read(b, off, len);
+            }
+
+            @Override
+            public boolean isFinished() {
+                return inputStream.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+            }
+        };
+
+        return proxy(HttpServletRequest.class, (method, args) -> {
+            switch (method) {
+                case "getContentLengthLong":
+                    return -1L;
+                case "getInputStream":
+                    return servletInputStream;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> handler.invoke(method.getName(), args == null ? new Object[0] : args)));
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        Object invoke(String method, Object[] args) throws Exception;
+    }
+}
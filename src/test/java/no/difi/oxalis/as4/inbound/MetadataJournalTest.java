@@ -0,0 +1,162 @@
+package no.difi.oxalis.as4.inbound;
+
+import no.difi.oxalis.api.model.TransmissionIdentifier;
+import no.difi.oxalis.api.timestamp.Timestamp;
+import no.difi.oxalis.as4.persist.GroupCommitJournal;
+import no.difi.vefa.peppol.common.code.DigestMethod;
+import no.difi.vefa.peppol.common.model.Digest;
+import no.difi.vefa.peppol.common.model.DocumentTypeIdentifier;
+import no.difi.vefa.peppol.common.model.Header;
+import no.difi.vefa.peppol.common.model.InstanceIdentifier;
+import no.difi.vefa.peppol.common.model.InstanceType;
+import no.difi.vefa.peppol.common.model.ParticipantIdentifier;
+import no.difi.vefa.peppol.common.model.ProcessIdentifier;
+import no.difi.vefa.peppol.common.model.Receipt;
+import no.difi.vefa.peppol.common.model.TransportProfile;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class MetadataJournalTest {
+
+    private final List<Path> directories = new ArrayList<>();
+
+    @AfterMethod
+    public void deleteDirectories() throws IOException {
+        for (Path directory : directories) {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+        directories.clear();
+    }
+
+    @Test
+    public void restoresMetadataWithHeader() throws Exception {
+        Header header = Header.newInstance()
+                .sender(ParticipantIdentifier.of("0192:123"))
+                .receiver(ParticipantIdentifier.of("0192:456"))
+                .process(ProcessIdentifier.of("urn:fdc:peppol.eu:2017:poacc:billing:01:1.0"))
+                .documentType(DocumentTypeIdentifier.of("urn:oasis:names:specification:ubl:schema:xsd:Invoice-2::Invoice##urn:cen.eu:en16931:2017::2.1"))
+                .identifier(InstanceIdentifier.of("instance"))
+                .instanceType(InstanceType.of("urn:oasis:names:specification:ubl:schema:xsd:Invoice-2", "Invoice", "2.1"))
+                .creationTimestamp(new Date(1000));
+
+        As4InboundMetadata metadata = metadata("message", "conversation", header);
+        MetadataJournal.Entry entry = MetadataJournal.decode(MetadataJournal.encode(metadata, Paths.get("payload")));
+
+        Assert.assertEquals(entry.getHeader(), header);
+        Assert.assertEquals(entry.getConversationId(), "conversation");
+        Assert.assertEquals(entry.getPayloadPath(), "payload");
+
+        As4InboundMetadata restored = entry.toMetadata();
+        Assert.assertEquals(restored.getTransmissionIdentifier(), metadata.getTransmissionIdentifier());
+        Assert.assertEquals(restored.getHeader(), header);
+        Assert.assertEquals(restored.getTimestamp(), metadata.getTimestamp());
+        Assert.assertEquals(restored.getDigest(), metadata.getDigest());
+        Assert.assertEquals(restored.primaryReceipt().getValue(), "receipt".getBytes());
+        Assert.assertEquals(restored.getReceipts().size(), 2);
+    }
+
+    @Test
+    public void keepsMissingValuesMissing() throws Exception {
+        MetadataJournal.Entry entry = MetadataJournal.decode(
+                MetadataJournal.encode(metadata("message", null, Header.newInstance()), null));
+
+        Assert.assertNull(entry.getConversationId());
+        Assert.assertNull(entry.getPayloadPath());
+        Assert.assertEquals(entry.getHeader(), Header.newInstance());
+    }
+
+    @Test
+    public void readsVersion1Records() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(1);
+        out.writeUTF("message");
+        out.writeUTF("null");
+        out.writeUTF(ParticipantIdentifier.of("0192:123").toString());
+        out.writeUTF("null");
+        out.writeUTF("null");
+        out.writeUTF("null");
+        out.writeLong(2000);
+        out.writeUTF(DigestMethod.SHA256.getUri());
+        out.writeInt(1);
+        out.write(1);
+        out.writeUTF("payload");
+        out.writeInt(0);
+        out.writeInt(0);
+
+        MetadataJournal.Entry entry = MetadataJournal.decode(bos.toByteArray());
+        Assert.assertNull(entry.getConversationId());
+        Assert.assertEquals(entry.getHeader().getSender(), ParticipantIdentifier.of("0192:123"));
+        Assert.assertNull(entry.getHeader().getReceiver());
+        Assert.assertEquals(entry.getTimestamp(), new Date(2000));
+        Assert.assertEquals(entry.getPayloadPath(), "payload");
+    }
+
+    @Test
+    public void returnsMetadataNotPersisted() throws Exception {
+        Path directory = Files.createTempDirectory("metadata");
+        directories.add(directory);
+
+        try (MetadataJournal journal = new MetadataJournal(new GroupCommitJournal(directory, "metadata", 1 << 20, 0), 1, 1)) {
+            journal.append(metadata("first", "conversation", Header.newInstance()), Paths.get("first"));
+            journal.append(metadata("second", "conversation", Header.newInstance()), Paths.get("second"));
+            journal.markPersisted(TransmissionIdentifier.of("first"));
+        }
+
+        try (MetadataJournal journal = new MetadataJournal(new GroupCommitJournal(directory, "metadata", 1 << 20, 0), 1, 1)) {
+            List<String> unpersisted = journal.readUnpersisted().stream()
+                    .map(entry -> entry.getTransmissionIdentifier().getIdentifier())
+                    .collect(Collectors.toList());
+            Assert.assertEquals(unpersisted, Collections.singletonList("second"));
+
+            // Markers are not metadata
+            List<MetadataJournal.Entry> entries = new ArrayList<>();
+            journal.read(entries::add);
+            Assert.assertEquals(entries.size(), 2);
+        }
+    }
+
+    @Test
+    public void deletesSegmentsOncePersisted() throws Exception {
+        Path directory = Files.createTempDirectory("metadata");
+        directories.add(directory);
+
+        // Every record gets a segment of its own
+        try (MetadataJournal journal = new MetadataJournal(new GroupCommitJournal(directory, "metadata", 1, 0), 1, 1)) {
+            journal.append(metadata("first", "conversation", Header.newInstance()), Paths.get("first"));
+            journal.append(metadata("second", "conversation", Header.newInstance()), Paths.get("second"));
+            journal.markPersisted(TransmissionIdentifier.of("second"));
+        }
+
+        GroupCommitJournal groupCommitJournal = new GroupCommitJournal(directory, "metadata", 1, 0);
+        try (MetadataJournal journal = new MetadataJournal(groupCommitJournal, 1, 1)) {
+            // Segments after the first one are kept until the first one is persisted
+            Assert.assertEquals(journal.readUnpersisted().size(), 1);
+            Assert.assertTrue(Files.exists(groupCommitJournal.getSegmentPath(1)));
+
+            journal.markPersisted(TransmissionIdentifier.of("first"));
+            Assert.assertEquals(groupCommitJournal.getSegments(),
+                    Collections.singletonList(groupCommitJournal.getSegmentPath(groupCommitJournal.getCurrentSegment())));
+        }
+    }
+
+    private static As4InboundMetadata metadata(String messageId, String conversationId, Header header) {
+        return new As4InboundMetadata(TransmissionIdentifier.of(messageId), conversationId, header,
+                new Timestamp(new Date(), Receipt.of("application/timestamp-reply", "timestamp".getBytes())), TransportProfile.AS4,
+                Digest.of(DigestMethod.SHA256, new byte[32]), null, "receipt".getBytes(), null);
+    }
+}
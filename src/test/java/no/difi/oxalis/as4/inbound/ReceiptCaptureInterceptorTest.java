@@ -0,0 +1,121 @@
+package no.difi.oxalis.as4.inbound;
+
+import org.apache.cxf.interceptor.Fault;
+import org.apache.cxf.message.Exchange;
+import org.apache.cxf.message.ExchangeImpl;
+import org.apache.cxf.message.Message;
+import org.apache.cxf.message.MessageImpl;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+public class ReceiptCaptureInterceptorTest {
+
+    @Test
+    public void holdsReceiptUntilCallbackReturns() throws Exception {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        AtomicReference<byte[]> captured = new AtomicReference<>();
+        AtomicReference<String> wireOnCallback = new AtomicReference<>();
+        Message message = createMessage(wire, receipt -> {
+            captured.set(receipt);
+            wireOnCallback.set(wire.toString());
+        });
+
+        new ReceiptCaptureInterceptor().handleMessage(message);
+
+        try (OutputStream os = message.getContent(OutputStream.class)) {
+            os.write("signed receipt".getBytes(StandardCharsets.UTF_8));
+            Assert.assertNull(captured.get());
+        }
+
+        Assert.assertEquals(wireOnCallback.get(), "");
+        Assert.assertEquals(new String(wire.toByteArray(), StandardCharsets.UTF_8), "signed receipt");
+        Assert.assertEquals(new String(captured.get(), StandardCharsets.UTF_8), "signed receipt");
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void failingCallbackPreventsReceipt() throws Exception {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        Message message = createMessage(wire, receipt -> {
+            throw new UncheckedIOException(new IOException("Persister unavailable"));
+        });
+
+        new ReceiptCaptureInterceptor().handleMessage(message);
+
+        try (OutputStream os = message.getContent(OutputStream.class)) {
+            os.write("signed receipt".getBytes(StandardCharsets.UTF_8));
+        } finally {
+            Assert.assertEquals(wire.size(), 0);
+        }
+    }
+
+    @Test
+    public void discardsMessageWhenReceiptIsNotSent() {
+        AtomicReference<Exception> discarded = new AtomicReference<>();
+        Message message = createMessage(new ByteArrayOutputStream(), receipt -> {
+        });
+        message.getExchange().getInMessage().put(AS4MessageContextKey.RECEIPT_DISCARD, (Consumer<Exception>) discarded::set);
+
+        ReceiptCaptureInterceptor interceptor = new ReceiptCaptureInterceptor();
+        interceptor.handleMessage(message);
+
+        // A later interceptor fails before the response is closed
+        Fault fault = new Fault(new IllegalStateException("Signing failed"));
+        message.setContent(Exception.class, fault);
+        interceptor.handleFault(message);
+
+        Assert.assertSame(discarded.get(), fault);
+        Assert.assertNull(message.getExchange().getInMessage().get(AS4MessageContextKey.RECEIPT_DISCARD));
+    }
+
+    @Test
+    public void keepsMessageOnceCallbackReturned() throws Exception {
+        AtomicReference<Exception> discarded = new AtomicReference<>();
+        Message message = createMessage(new ByteArrayOutputStream(), receipt -> {
+        });
+        message.getExchange().getInMessage().put(AS4MessageContextKey.RECEIPT_DISCARD, (Consumer<Exception>) discarded::set);
+
+        ReceiptCaptureInterceptor interceptor = new ReceiptCaptureInterceptor();
+        interceptor.handleMessage(message);
+        message.getContent(OutputStream.class).close();
+
+        // Writing the receipt failed after the callback returned
+        message.setContent(Exception.class, new Fault(new IOException("Connection reset")));
+        interceptor.handleFault(message);
+
+        Assert.assertNull(discarded.get());
+    }
+
+    @Test
+    public void ignoresResponsesWithoutCallback() {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        Message message = createMessage(wire, null);
+
+        new ReceiptCaptureInterceptor().handleMessage(message);
+
+        Assert.assertSame(message.getContent(OutputStream.class), wire);
+    }
+
+    private Message createMessage(OutputStream os, Consumer<byte[]> callback) {
+        Exchange exchange = new ExchangeImpl();
+        if (callback != null) {
+            exchange.put(AS4MessageContextKey.RECEIPT_CALLBACK, callback);
+        }
+
+        Message inMessage = new MessageImpl();
+        inMessage.setExchange(exchange);
+        exchange.setInMessage(inMessage);
+
+        Message message = new MessageImpl();
+        message.setExchange(exchange);
+        message.setContent(OutputStream.class, os);
+        return message;
+    }
+}
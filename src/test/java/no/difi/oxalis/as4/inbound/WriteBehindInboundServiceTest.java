@@ -0,0 +1,99 @@
+package no.difi.oxalis.as4.inbound;
+
+import no.difi.oxalis.api.inbound.InboundMetadata;
+import no.difi.oxalis.as4.api.BatchInboundService;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+public class WriteBehindInboundServiceTest {
+
+    @Test
+    public void completesBehindSlowInboundService() throws Exception {
+        List<InboundMetadata> completed = new CopyOnWriteArrayList<>();
+        WriteBehindInboundService service = new WriteBehindInboundService(inboundMetadata -> {
+            sleep(50);
+            completed.add(inboundMetadata);
+        }, true, 100, 10, 1000);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            service.complete(metadata());
+        }
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500);
+        Assert.assertTrue(completed.size() < 20);
+
+        service.close();
+        Assert.assertEquals(completed.size(), 20);
+
+        // Delivered directly once closed
+        service.complete(metadata());
+        Assert.assertEquals(completed.size(), 21);
+    }
+
+    @Test
+    public void blocksWhenQueueIsFull() throws Exception {
+        List<InboundMetadata> completed = new CopyOnWriteArrayList<>();
+        WriteBehindInboundService service = new WriteBehindInboundService(inboundMetadata -> {
+            sleep(100);
+            completed.add(inboundMetadata);
+        }, true, 2, 1, 1000);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 6; i++) {
+            service.complete(metadata());
+        }
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 250);
+
+        service.close();
+        Assert.assertEquals(completed.size(), 6);
+    }
+
+    @Test
+    public void deliversBatches() throws Exception {
+        List<Integer> batches = new CopyOnWriteArrayList<>();
+        WriteBehindInboundService service = new WriteBehindInboundService(new BatchInboundService() {
+            @Override
+            public void complete(List<InboundMetadata> inboundMetadata) {
+                batches.add(inboundMetadata.size());
+            }
+
+            @Override
+            public void complete(InboundMetadata inboundMetadata) {
+                batches.add(1);
+            }
+        }, true, 1000, 50, 200);
+
+        for (int i = 0; i < 120; i++) {
+            service.complete(metadata());
+        }
+
+        // Closing flushes a partial batch, wait for the worker instead
+        long deadline = System.currentTimeMillis() + 5000;
+        while (batches.stream().mapToInt(Integer::intValue).sum() < 120 && System.currentTimeMillis() < deadline) {
+            sleep(10);
+        }
+        service.close();
+
+        Assert.assertEquals(batches.stream().mapToInt(Integer::intValue).sum(), 120);
+        Assert.assertTrue(batches.stream().allMatch(size -> size <= 50));
+        Assert.assertTrue(batches.size() <= 4);
+    }
+
+    private static InboundMetadata metadata() {
+        return (InboundMetadata) Proxy.newProxyInstance(InboundMetadata.class.getClassLoader(),
+                new Class<?>[]{InboundMetadata.class}, (proxy, method, args) -> null);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package no.difi.oxalis.as4.persist;
+
+import no.difi.oxalis.api.model.TransmissionIdentifier;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class ContentAddressedPayloadStoreTest {
+
+    private final List<Path> directories = new ArrayList<>();
+
+    @AfterMethod
+    public void deleteDirectories() throws IOException {
+        for (Path directory : directories) {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+        directories.clear();
+    }
+
+    @Test
+    public void storesIdenticalPayloadsOnce() throws Exception {
+        Path directory = createDirectory();
+        ContentAddressedPayloadStore store = new ContentAddressedPayloadStore(directory);
+
+        byte[] large = new byte[ContentAddressedPayloadStore.MEMORY_THRESHOLD * 3];
+        new Random(1).nextBytes(large);
+
+        for (byte[] content : new byte[][]{"small".getBytes(), large}) {
+            TransmissionIdentifier first = TransmissionIdentifier.of("first");
+            TransmissionIdentifier second = TransmissionIdentifier.of("second");
+
+            Path firstPath = store.persist(first, new ByteArrayInputStream(content));
+            Path secondPath = store.persist(second, new ByteArrayInputStream(content));
+            Assert.assertEquals(store.persist(second, new ByteArrayInputStream(content)), secondPath);
+
+            // Each message has its own link to the same content
+            Assert.assertNotEquals(firstPath, secondPath);
+            Assert.assertTrue(Files.isSameFile(firstPath, secondPath));
+            Assert.assertEquals(Files.readAllBytes(secondPath), content);
+
+            // Deleting the payload of one message keeps the content of the other
+            Files.delete(firstPath);
+            Assert.assertEquals(Files.readAllBytes(secondPath), content);
+        }
+
+        // Content is stored once, next to the links of the messages, and no temporary files are left behind
+        Assert.assertEquals(Files.walk(directory).filter(Files::isRegularFile).count(), 4L);
+    }
+
+    @Test
+    public void namesContentByHash() throws Exception {
+        ContentAddressedPayloadStore store = new ContentAddressedPayloadStore(createDirectory());
+        TransmissionIdentifier messageId = TransmissionIdentifier.of("message");
+
+        Path path = store.persist(messageId, new ByteArrayInputStream("abc".getBytes()));
+        String hash = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+        Assert.assertEquals(path, store.getLinkPath(messageId, hash));
+        Assert.assertTrue(Files.isSameFile(path, store.getPath(hash)));
+        Assert.assertNotEquals(store.persist(messageId, new ByteArrayInputStream("abd".getBytes())), path);
+    }
+
+    private Path createDirectory() throws IOException {
+        Path directory = Files.createTempDirectory("content");
+        directories.add(directory);
+        return directory;
+    }
+}
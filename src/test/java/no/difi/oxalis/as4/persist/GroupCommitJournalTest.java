@@ -0,0 +1,135 @@
+package no.difi.oxalis.as4.persist;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class GroupCommitJournalTest {
+
+    private final List<Path> directories = new ArrayList<>();
+
+    @AfterMethod
+    public void deleteDirectories() throws IOException {
+        for (Path directory : directories) {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+        directories.clear();
+    }
+
+    private Path createDirectory() throws IOException {
+        Path directory = Files.createTempDirectory("journal");
+        directories.add(directory);
+        return directory;
+    }
+
+    @Test
+    public void appendsConcurrentRecords() throws Exception {
+        Path directory = createDirectory();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try (GroupCommitJournal journal = new GroupCommitJournal(directory, "test", 4096, 1000)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 400; i++) {
+                byte[] record = ("record-" + i).getBytes();
+                futures.add(executor.submit(() -> {
+                    journal.appendAndWait(record);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            // Segments are rolled once exceeding the segment size
+            Assert.assertTrue(journal.getSegments().size() > 1);
+        } finally {
+            executor.shutdown();
+        }
+
+        Set<String> records = new HashSet<>();
+        for (Path segment : Files.newDirectoryStream(directory)) {
+            GroupCommitJournal.read(segment, record -> records.add(new String(record)));
+        }
+        Assert.assertEquals(records.size(), 400);
+        Assert.assertTrue(records.contains("record-399"));
+    }
+
+    @Test
+    public void stopsReadingAtTornRecord() throws Exception {
+        Path directory = createDirectory();
+
+        Path segment;
+        try (GroupCommitJournal journal = new GroupCommitJournal(directory, "test", 1 << 20, 0)) {
+            journal.appendAndWait("first".getBytes());
+            journal.appendAndWait("second".getBytes());
+            segment = journal.getSegments().get(0);
+        }
+
+        // Simulate a crash in the middle of writing a record
+        Files.write(segment, new byte[]{0, 0, 0, 100, 1, 2, 3, 4, 'x'}, StandardOpenOption.APPEND);
+
+        List<String> records = new ArrayList<>();
+        GroupCommitJournal.read(segment, record -> records.add(new String(record)));
+        Assert.assertEquals(records.size(), 2);
+        Assert.assertEquals(records.get(1), "second");
+
+        // Reopening continues in a new segment
+        try (GroupCommitJournal journal = new GroupCommitJournal(directory, "test", 1 << 20, 0)) {
+            Assert.assertEquals(journal.getSegments().size(), 2);
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void rejectsAppendAfterClose() throws Exception {
+        GroupCommitJournal journal = new GroupCommitJournal(createDirectory(), "test", 1 << 20, 0);
+        journal.close();
+
+        CompletableFuture<Long> future = journal.append("late".getBytes());
+        Assert.assertTrue(future.isCompletedExceptionally());
+        journal.appendAndWait("late".getBytes());
+    }
+
+    @Test
+    public void completesAppendsRacingClose() throws Exception {
+        for (int run = 0; run < 20; run++) {
+            GroupCommitJournal journal = new GroupCommitJournal(createDirectory(), "test", 1 << 20, 0);
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+
+            try {
+                List<Future<CompletableFuture<Long>>> appends = new ArrayList<>();
+                for (int i = 0; i < 200; i++) {
+                    byte[] record = ("record-" + i).getBytes();
+                    appends.add(executor.submit(() -> journal.append(record)));
+                }
+                journal.close();
+
+                // Every append is either committed or failed, none is left waiting
+                for (Future<CompletableFuture<Long>> append : appends) {
+                    try {
+                        append.get().get(5, TimeUnit.SECONDS);
+                    } catch (ExecutionException e) {
+                        Assert.assertTrue(e.getCause() instanceof IOException);
+                    }
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package no.difi.oxalis.as4.persist;
+
+import no.difi.oxalis.api.model.Direction;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class MessageIndexTest {
+
+    private final List<Path> directories = new ArrayList<>();
+
+    @AfterMethod
+    public void deleteDirectories() throws IOException {
+        for (Path directory : directories) {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+        directories.clear();
+    }
+
+    @Test
+    public void findsMessagesByIds() throws Exception {
+        Path directory = createDirectory();
+
+        try (MessageIndex index = open(directory)) {
+            index.record(entry(Direction.OUT, "request", "conversation", null, 1000));
+            index.record(entry(Direction.IN, "response", "conversation", "request", 3000));
+            index.record(entry(Direction.IN, "other", "other-conversation", null, 2000));
+
+            assertIndex(index);
+        }
+
+        // Replayed from disk
+        try (MessageIndex index = open(directory)) {
+            assertIndex(index);
+        }
+    }
+
+    @Test
+    public void replacesEntriesOfMessagesRecordedAgain() throws Exception {
+        Path directory = createDirectory();
+
+        try (MessageIndex index = open(directory)) {
+            index.record(entry(Direction.IN, "message", "first", "request", 1000));
+            index.record(entry(Direction.IN, "message", "second", null, 2000));
+
+            Assert.assertTrue(index.findByConversationId("first").isEmpty());
+            Assert.assertTrue(index.findByRefToMessageId("request").isEmpty());
+            Assert.assertEquals(index.findByMessageId("message").get().getConversationId(), "second");
+        }
+
+        // Superseded entries are dropped from disk on startup
+        try (MessageIndex index = open(directory)) {
+            Assert.assertEquals(index.findByConversationId("second").size(), 1);
+        }
+        try (MessageIndex index = open(directory)) {
+            Assert.assertEquals(index.findByMessageId("message").get().getTimestamp(), new Date(2000));
+        }
+        Assert.assertTrue(Files.list(directory).count() <= 2);
+    }
+
+    @Test
+    public void keepsOneEntryOfMessagesRecordedConcurrently() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try (MessageIndex index = open(createDirectory())) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                int n = i % 10;
+                futures.add(executor.submit(() ->
+                        index.record(entry(Direction.IN, "message", "conversation-" + n, "request-" + n, n))));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            MessageIndex.Entry entry = index.findByMessageId("message").get();
+            Assert.assertEquals(IntStream.range(0, 10)
+                    .mapToObj(n -> index.findByConversationId("conversation-" + n))
+                    .mapToInt(List::size)
+                    .sum(), 1);
+            Assert.assertEquals(ids(index.findByConversationId(entry.getConversationId())), "message");
+            Assert.assertEquals(IntStream.range(0, 10)
+                    .mapToObj(n -> index.findByRefToMessageId("request-" + n))
+                    .mapToInt(List::size)
+                    .sum(), 1);
+            Assert.assertEquals(ids(index.findByRefToMessageId(entry.getRefToMessageId())), "message");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void assertIndex(MessageIndex index) {
+        MessageIndex.Entry response = index.findByMessageId("response").get();
+        Assert.assertEquals(response.getDirection(), Direction.IN);
+        Assert.assertEquals(response.getRefToMessageId(), "request");
+        Assert.assertEquals(response.getLocation(), "/inbound/response");
+        Assert.assertFalse(index.findByMessageId("unknown").isPresent());
+
+        Assert.assertEquals(ids(index.findByConversationId("conversation")), "request,response");
+        Assert.assertEquals(ids(index.findByConversationId("conversation", new Date(2000), new Date(4000))), "response");
+        Assert.assertEquals(ids(index.findByConversationId("conversation", new Date(0), new Date(3000))), "request");
+        Assert.assertEquals(ids(index.findByRefToMessageId("request")), "response");
+    }
+
+    private Path createDirectory() throws IOException {
+        Path directory = Files.createTempDirectory("index");
+        directories.add(directory);
+        return directory;
+    }
+
+    private static MessageIndex open(Path directory) throws Exception {
+        return new MessageIndex(new GroupCommitJournal(directory, "index", 1 << 20, 0));
+    }
+
+    private static MessageIndex.Entry entry(Direction direction, String messageId, String conversationId,
+                                            String refToMessageId, long timestamp) {
+        return new MessageIndex.Entry(direction, messageId, conversationId, refToMessageId, new Date(timestamp),
+                "/inbound/" + messageId);
+    }
+
+    private static String ids(List<MessageIndex.Entry> entries) {
+        return entries.stream().map(MessageIndex.Entry::getMessageId).collect(Collectors.joining(","));
+    }
+}
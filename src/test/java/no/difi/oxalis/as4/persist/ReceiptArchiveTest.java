@@ -0,0 +1,138 @@
+package no.difi.oxalis.as4.persist;
+
+import no.difi.vefa.peppol.common.model.Receipt;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class ReceiptArchiveTest {
+
+    private final List<Path> directories = new ArrayList<>();
+
+    @AfterMethod
+    public void deleteDirectories() throws IOException {
+        for (Path directory : directories) {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+        directories.clear();
+    }
+
+    @Test
+    public void readsReceiptsBeforeAndAfterWritten() throws Exception {
+        Path directory = createDirectory();
+
+        try (ReceiptArchive archive = open(directory, 1 << 20, 0)) {
+            CompletableFuture<Void> written = archive.append("message-1", "conversation", receipt("first"));
+            archive.append("message-1", "conversation", Receipt.of("timestamp", "token".getBytes()));
+            archive.append("message-2", "conversation", receipt("second"));
+
+            Assert.assertFalse(written.isDone());
+            Assert.assertEquals(archive.getReceipts("message-1").size(), 2);
+
+            archive.flush();
+            written.get(5, TimeUnit.SECONDS);
+
+            List<Receipt> receipts = archive.getReceipts("message-1");
+            Assert.assertEquals(receipts.get(0).getValue(), receipt("first").getValue());
+            Assert.assertEquals(receipts.get(1).getType(), "timestamp");
+
+            archive.append("message-1", "conversation", receipt("resent"));
+            Assert.assertEquals(archive.getReceipts("message-1").size(), 3);
+        }
+
+        // Index is rebuilt from the blocks
+        try (ReceiptArchive archive = open(directory, 1 << 20, 0)) {
+            Assert.assertEquals(archive.getReceipts("message-1").size(), 3);
+            Assert.assertEquals(archive.getReceipts("message-2").get(0).getValue(), receipt("second").getValue());
+            Assert.assertTrue(archive.getReceipts("message-3").isEmpty());
+            Assert.assertEquals(archive.getMessageIds("conversation"),
+                    new HashSet<>(Arrays.asList("message-1", "message-2")));
+        }
+    }
+
+    @Test
+    public void suppliesReceiptsOfLatestDelivery() throws Exception {
+        try (ReceiptArchive archive = open(createDirectory(), 1 << 20, 0)) {
+            archive.append("message", null, receipt("first"));
+            archive.append("message", null, Receipt.of("timestamp", "token".getBytes()));
+            archive.flush();
+            archive.append("message", null, receipt("resent"));
+
+            List<Receipt> receipts = archive.supplier("message",
+                    Arrays.asList("message/disposition-notification", "timestamp")).get();
+            Assert.assertEquals(receipts.size(), 2);
+            Assert.assertEquals(receipts.get(0).getValue(), receipt("resent").getValue());
+            Assert.assertEquals(receipts.get(1).getValue(), "token".getBytes());
+        }
+    }
+
+    @Test
+    public void completesOnCallbackThreads() throws Exception {
+        try (ReceiptArchive archive = open(createDirectory(), 1 << 20, 0)) {
+            CompletableFuture<String> thread = archive.append("message", null, receipt("message"))
+                    .thenApply(result -> Thread.currentThread().getName());
+            archive.flush();
+
+            Assert.assertTrue(thread.get(5, TimeUnit.SECONDS).startsWith("oxalis-as4-receipt-archive-callback-"));
+        }
+    }
+
+    @Test
+    public void writesFullAndExpiredBlocks() throws Exception {
+        try (ReceiptArchive archive = open(createDirectory(), 4096, 0)) {
+            CompletableFuture<Void> written = archive.append("message-0", null, receipt("message-0"));
+            for (int i = 1; i < 20; i++) {
+                archive.append("message-" + i, null, receipt("message-" + i));
+            }
+            written.get(5, TimeUnit.SECONDS);
+        }
+
+        try (ReceiptArchive archive = open(createDirectory(), 1 << 20, 50)) {
+            archive.append("message", null, receipt("message")).get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void compressesBlocks() throws Exception {
+        List<ReceiptArchive.Entry> entries = Arrays.asList(
+                new ReceiptArchive.Entry("message-1", "", receipt("message-1")),
+                new ReceiptArchive.Entry("message-2", "", receipt("message-2")));
+
+        byte[] block = ReceiptArchive.encode(entries);
+        Assert.assertTrue(block.length < receipt("message-1").getValue().length);
+        Assert.assertEquals(ReceiptArchive.decode(block).size(), 2);
+    }
+
+    private static ReceiptArchive open(Path directory, long blockSize, long flushInterval) throws Exception {
+        return new ReceiptArchive(new GroupCommitJournal(directory, "receipts", 1 << 20, 0), blockSize, flushInterval,
+                2, 100);
+    }
+
+    private Path createDirectory() throws IOException {
+        Path directory = Files.createTempDirectory("receipts");
+        directories.add(directory);
+        return directory;
+    }
+
+    private static Receipt receipt(String messageId) {
+        StringBuilder receipt = new StringBuilder("<env:Envelope><env:Header><eb:Messaging><eb:SignalMessage>");
+        for (int i = 0; i < 20; i++) {
+            receipt.append("<ds:Reference URI=\"#part-").append(i).append("\"><ds:DigestMethod ")
+                    .append("Algorithm=\"http://www.w3.org/2001/04/xmlenc#sha256\"/></ds:Reference>");
+        }
+        receipt.append("<eb:RefToMessageId>").append(messageId).append("</eb:RefToMessageId>");
+        receipt.append("</eb:SignalMessage></eb:Messaging></env:Header></env:Envelope>");
+        return Receipt.of("message/disposition-notification", receipt.toString().getBytes());
+    }
+}
@@ -0,0 +1,211 @@
+package no.difi.oxalis.as4.persist;
+
+import com.google.common.io.ByteStreams;
+import no.difi.oxalis.api.model.TransmissionIdentifier;
+import no.difi.oxalis.api.timestamp.Timestamp;
+import no.difi.oxalis.as4.inbound.As4InboundMetadata;
+import no.difi.oxalis.as4.inbound.As4PayloadHeader;
+import no.difi.oxalis.as4.inbound.MetadataJournal;
+import no.difi.vefa.peppol.common.code.DigestMethod;
+import no.difi.vefa.peppol.common.model.Digest;
+import no.difi.vefa.peppol.common.model.Header;
+import no.difi.vefa.peppol.common.model.TransportProfile;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+public class SegmentedPersisterHandlerTest {
+
+    private final List<Path> directories = new ArrayList<>();
+
+    @AfterMethod
+    public void deleteDirectories() throws IOException {
+        for (Path directory : directories) {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+        directories.clear();
+    }
+
+    @Test
+    public void storesSmallPayloadsInSegments() throws Exception {
+        Path directory = createDirectory();
+        TransmissionIdentifier messageId = TransmissionIdentifier.of("message@example.com");
+
+        Path small;
+        Path large;
+        try (SegmentedPersisterHandler handler = open(directory, 0)) {
+            small = handler.persist(messageId, header("small"), new ByteArrayInputStream("small".getBytes()));
+            large = handler.persist(messageId, header("large"), new ByteArrayInputStream(new byte[100]));
+            handler.persist(metadata(messageId), small);
+
+            Assert.assertFalse(Files.exists(small));
+            Assert.assertEquals(Files.size(large), 100L);
+            Assert.assertEquals(read(handler, small), "small");
+        }
+
+        // Index is rebuilt from the segments
+        try (SegmentedPersisterHandler handler = open(directory, 0)) {
+            List<Path> payloads = handler.getPayloads(messageId);
+            Assert.assertEquals(payloads.size(), 2);
+            Assert.assertEquals(read(handler, payloads.get(0)), "small");
+            Assert.assertEquals(payloads.get(1), large);
+
+            MetadataJournal.Entry metadata = handler.getMetadata(messageId).get();
+            Assert.assertEquals(metadata.getConversationId(), "conversation");
+            Assert.assertEquals(metadata.getPayloadPath(), small.toString());
+            Assert.assertEquals(metadata.getReceipts().get(0).getValue(), "receipt".getBytes());
+
+            Assert.assertTrue(handler.getPayloads(TransmissionIdentifier.of("other")).isEmpty());
+            Assert.assertFalse(handler.getMetadata(TransmissionIdentifier.of("other")).isPresent());
+        }
+    }
+
+    @Test
+    public void materializesInlinePayloads() throws Exception {
+        Path directory = createDirectory();
+        TransmissionIdentifier messageId = TransmissionIdentifier.of("message@example.com");
+
+        try (SegmentedPersisterHandler handler = open(directory, 60_000)) {
+            Path small = handler.persist(messageId, header("small"), new ByteArrayInputStream("small".getBytes()));
+            Path large = handler.persist(messageId, header("large"), new ByteArrayInputStream(new byte[100]));
+
+            Assert.assertEquals(handler.materialize(small), small);
+            Assert.assertEquals(new String(Files.readAllBytes(small)), "small");
+            Assert.assertEquals(handler.materialize(small), small);
+            Assert.assertEquals(handler.materialize(large), large);
+
+            handler.persist(messageId, header("small"), small, new IllegalStateException("Failed"));
+            Assert.assertFalse(Files.exists(small));
+        }
+    }
+
+    @Test
+    public void dropsPayloadsOfFailedTransmission() throws Exception {
+        Path directory = createDirectory();
+        TransmissionIdentifier messageId = TransmissionIdentifier.of("message@example.com");
+
+        try (SegmentedPersisterHandler handler = open(directory, 0)) {
+            Path large = handler.persist(messageId, header("large"), new ByteArrayInputStream(new byte[100]));
+            handler.persist(messageId, header("large"), large, new IllegalStateException("Failed"));
+
+            Assert.assertFalse(Files.exists(large));
+            Assert.assertTrue(handler.getPayloads(messageId).isEmpty());
+        }
+
+        try (SegmentedPersisterHandler handler = open(directory, 0)) {
+            Assert.assertTrue(handler.getPayloads(messageId).isEmpty());
+        }
+    }
+
+    @Test
+    public void deletesExpiredSegments() throws Exception {
+        Path directory = createDirectory();
+        TransmissionIdentifier expired = TransmissionIdentifier.of("expired");
+
+        Path small;
+        Path large;
+        try (SegmentedPersisterHandler handler = open(directory, 0)) {
+            small = handler.materialize(
+                    handler.persist(expired, header("small"), new ByteArrayInputStream("small".getBytes())));
+            large = handler.persist(expired, header("large"), new ByteArrayInputStream(new byte[100]));
+        }
+
+        FileTime old = FileTime.fromMillis(System.currentTimeMillis() - 3_600_000);
+        for (Path segment : Files.newDirectoryStream(directory, "document-*.log")) {
+            Files.setLastModifiedTime(segment, old);
+        }
+
+        try (SegmentedPersisterHandler handler = open(directory, 60_000)) {
+            TransmissionIdentifier recent = TransmissionIdentifier.of("recent");
+            handler.persist(recent, header("small"), new ByteArrayInputStream("small".getBytes()));
+
+            handler.compact();
+
+            Assert.assertTrue(handler.getPayloads(expired).isEmpty());
+            Assert.assertFalse(Files.exists(large));
+            Assert.assertFalse(Files.exists(small));
+            Assert.assertEquals(handler.getPayloads(recent).size(), 1);
+        }
+    }
+
+    @Test
+    public void removesOldSegmentsFromIndexWhenKeptForever() throws Exception {
+        Path directory = createDirectory();
+        TransmissionIdentifier old = TransmissionIdentifier.of("old");
+
+        Path large;
+        try (SegmentedPersisterHandler handler = open(directory, 0)) {
+            handler.persist(old, header("small"), new ByteArrayInputStream("small".getBytes()));
+            large = handler.persist(old, header("large"), new ByteArrayInputStream(new byte[100]));
+        }
+
+        FileTime modified = FileTime.fromMillis(System.currentTimeMillis() - 3_600_000);
+        for (Path segment : Files.newDirectoryStream(directory, "document-*.log")) {
+            Files.setLastModifiedTime(segment, modified);
+        }
+
+        // Old segments are not indexed on startup, but kept
+        try (SegmentedPersisterHandler handler = open(directory, 0)) {
+            Assert.assertTrue(handler.getPayloads(old).isEmpty());
+            Assert.assertTrue(Files.exists(large));
+        }
+
+        // Segments leaving the index period while running are removed from the index
+        try (SegmentedPersisterHandler handler = new SegmentedPersisterHandler(directory,
+                new GroupCommitJournal(directory, "document", 1 << 20, 0), 16, 0, 7_200_000)) {
+            Assert.assertEquals(handler.getPayloads(old).size(), 2);
+
+            TransmissionIdentifier recent = TransmissionIdentifier.of("recent");
+            handler.persist(recent, header("small"), new ByteArrayInputStream("small".getBytes()));
+
+            handler.compact();
+            Assert.assertEquals(handler.getPayloads(old).size(), 2);
+
+            for (Path segment : Files.newDirectoryStream(directory, "document-*.log")) {
+                Files.setLastModifiedTime(segment, FileTime.fromMillis(System.currentTimeMillis() - 10_800_000));
+            }
+            handler.compact();
+
+            Assert.assertTrue(handler.getPayloads(old).isEmpty());
+            Assert.assertTrue(Files.exists(large));
+        }
+    }
+
+    private Path createDirectory() throws IOException {
+        Path directory = Files.createTempDirectory("segments");
+        directories.add(directory);
+        return directory;
+    }
+
+    private static SegmentedPersisterHandler open(Path directory, long retention) throws Exception {
+        return new SegmentedPersisterHandler(directory, new GroupCommitJournal(directory, "document", 1 << 20, 0),
+                16, retention, 60_000);
+    }
+
+    private static As4PayloadHeader header(String contentId) {
+        return new As4PayloadHeader(Header.newInstance(), Collections.emptyList(), contentId, "conversation");
+    }
+
+    private static As4InboundMetadata metadata(TransmissionIdentifier messageId) {
+        return new As4InboundMetadata(messageId, "conversation", Header.newInstance(), new Timestamp(new Date(), null),
+                TransportProfile.AS4, Digest.of(DigestMethod.SHA256, new byte[32]), null, "receipt".getBytes(), null);
+    }
+
+    private static String read(SegmentedPersisterHandler handler, Path path) throws Exception {
+        try (InputStream is = handler.open(path)) {
+            return new String(ByteStreams.toByteArray(is));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package no.difi.oxalis.as4.persist;
+
+import no.difi.oxalis.api.model.TransmissionIdentifier;
+import org.apache.commons.io.FileUtils;
+import org.apache.cxf.io.CachedOutputStream;
+import org.apache.cxf.io.Transferable;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class ShardedPayloadStoreTest {
+
+    private final List<Path> directories = new ArrayList<>();
+
+    @AfterMethod
+    public void deleteDirectories() throws IOException {
+        for (Path directory : directories) {
+            FileUtils.deleteDirectory(directory.toFile());
+        }
+        directories.clear();
+    }
+
+    @Test
+    public void spreadsPayloadsOverRoots() throws Exception {
+        Path first = createDirectory();
+        Path second = createDirectory();
+        ShardedPayloadStore store = new ShardedPayloadStore(Arrays.asList(first, second));
+
+        Set<Path> roots = new HashSet<>();
+        for (int i = 0; i < 50; i++) {
+            Path path = store.persist(TransmissionIdentifier.of("message-" + i), "payload@example.com",
+                    new ByteArrayInputStream(("content-" + i).getBytes()));
+
+            roots.add(path.getParent().getParent().getParent());
+            Assert.assertEquals(new String(Files.readAllBytes(path)), "content-" + i);
+        }
+
+        Assert.assertEquals(roots, new HashSet<>(Arrays.asList(first, second)));
+    }
+
+    @Test
+    public void looksUpPayloadsOfTransmission() throws Exception {
+        ShardedPayloadStore store = new ShardedPayloadStore(Arrays.asList(createDirectory()));
+        TransmissionIdentifier transmissionIdentifier = TransmissionIdentifier.of("<message@example.com>");
+
+        Assert.assertTrue(store.lookup(transmissionIdentifier).isEmpty());
+
+        store.persist(transmissionIdentifier, "a@example.com", new ByteArrayInputStream("first".getBytes()));
+        store.persist(transmissionIdentifier, "b@example.com", new ByteArrayInputStream("second".getBytes()));
+        store.persist(TransmissionIdentifier.of("other"), "a@example.com", new ByteArrayInputStream("x".getBytes()));
+
+        List<Path> payloads = store.lookup(transmissionIdentifier);
+        Assert.assertEquals(payloads.size(), 2);
+        Assert.assertEquals(new String(Files.readAllBytes(payloads.get(1))), "second");
+
+        // Resending replaces the payload, no temporary files are left behind
+        store.persist(transmissionIdentifier, "a@example.com", new ByteArrayInputStream("again".getBytes()));
+        Assert.assertEquals(new String(Files.readAllBytes(store.lookup(transmissionIdentifier).get(0))), "again");
+        Assert.assertEquals(Files.list(payloads.get(0).getParent()).count(), 2L);
+    }
+
+    @Test
+    public void takesOverSpooledPayload() throws Exception {
+        ShardedPayloadStore store = new ShardedPayloadStore(Arrays.asList(createDirectory()));
+
+        CachedOutputStream cos = new CachedOutputStream();
+        cos.setThreshold(1);
+        cos.write("spooled content".getBytes());
+        cos.flush();
+
+        try (InputStream is = cos.getInputStream()) {
+            Assert.assertTrue(is instanceof Transferable);
+            Path path = store.persist(TransmissionIdentifier.of("message"), "payload", (Transferable) is);
+            Assert.assertEquals(new String(Files.readAllBytes(path)), "spooled content");
+        }
+    }
+
+    private Path createDirectory() throws IOException {
+        Path directory = Files.createTempDirectory("store");
+        directories.add(directory);
+        return directory;
+    }
+}
@@ -0,0 +1,124 @@
+package no.difi.oxalis.as4.util;
+
+import no.difi.oxalis.api.timestamp.Timestamp;
+import no.difi.oxalis.as4.inbound.ProsessingContext;
+import no.difi.oxalis.as4.lang.OxalisAs4Exception;
+import org.apache.commons.io.IOUtils;
+import org.apache.cxf.helpers.DOMUtils;
+import org.apache.cxf.staxutils.StaxUtils;
+import org.oasis_open.docs.ebxml_bp.ebbp_signals_2.MessagePartNRInformation;
+import org.oasis_open.docs.ebxml_bp.ebbp_signals_2.NonRepudiationInformation;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.MessageInfo;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.UserMessage;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3.xmldsig.ReferenceType;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.soap.SOAPMessage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class As4MessageFactoryTest {
+
+    private final JAXBContext jaxbContext = Marshalling.getInstance();
+
+    @Test
+    public void receiptContainsSignedReferences() throws Exception {
+        Element securityHeader = getSecurityHeader().getDocumentElement();
+        List<Element> references = SecurityHeaderReader.read(securityHeader).getReferenceList();
+
+        As4MessageFactory messageFactory = new As4MessageFactory(() -> "receipt@oxalis");
+        SOAPMessage receipt = messageFactory.createReceiptMessage(
+                UserMessage.builder().withMessageInfo(MessageInfo.builder().withMessageId("message@oxalis").build()).build(),
+                new ProsessingContext(new Timestamp(new Date(), null), references));
+
+        // Serialize and parse the receipt, as the receiver of the receipt would
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        receipt.writeTo(bos);
+        Document document = StaxUtils.read(new ByteArrayInputStream(bos.toByteArray()));
+
+        Element nri = (Element) document.getElementsByTagNameNS(
+                Constants.EBBP_NAMESPACE, Constants.NON_REPUDIATION_INFORMATION_QNAME.getLocalPart()).item(0);
+        Assert.assertNotNull(nri);
+
+        // The imported references must be equivalent to what the JAXB round trip used to produce
+        NonRepudiationInformation expected = NonRepudiationInformation.builder()
+                .addMessagePartNRInformation(references.stream()
+                        .map(this::unmarshalReference)
+                        .map(reference -> MessagePartNRInformation.builder().withReference(reference).build())
+                        .collect(Collectors.toList()))
+                .build();
+
+        Assert.assertEquals(marshal(jaxbContext.createUnmarshaller().unmarshal(nri)), marshal(expected));
+        Assert.assertEquals(DOMUtils.getChildrenWithName(nri, Constants.EBBP_NAMESPACE, "MessagePartNRInformation").size(), 2);
+    }
+
+    @Test
+    public void receiptMatchesBaseline() throws Exception {
+        List<Element> references = SecurityHeaderReader.read(getSecurityHeader().getDocumentElement()).getReferenceList();
+        Date timestamp = new Date(0);
+
+        As4MessageFactory messageFactory = new As4MessageFactory(() -> "receipt@oxalis");
+        SOAPMessage receipt = messageFactory.createReceiptMessage(
+                UserMessage.builder().withMessageInfo(MessageInfo.builder().withMessageId("message@oxalis").build()).build(),
+                new ProsessingContext(new Timestamp(timestamp, null), references));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        receipt.writeTo(bos);
+
+        // Captured from the JAXB based factory, the signed receipt must not change by a single byte
+        String expected;
+        try (InputStream is = getClass().getResourceAsStream("/receipt.xml")) {
+            expected = new String(IOUtils.toByteArray(is), StandardCharsets.UTF_8).trim()
+                    .replace("${timestamp}", XMLUtil.dateToXMLGeorgianCalendar(timestamp).toXMLFormat());
+        }
+        Assert.assertEquals(new String(bos.toByteArray(), StandardCharsets.UTF_8), expected);
+    }
+
+    @Test
+    public void errorHeaderContainsErrorFields() throws Exception {
+        As4MessageFactory messageFactory = new As4MessageFactory(() -> "error@oxalis");
+        Element errorHeader = messageFactory.createErrorHeader(
+                new MessageId("message@oxalis"),
+                new OxalisAs4Exception("Invalid header", AS4ErrorCode.EBMS_0009));
+
+        Document document = StaxUtils.read(new ByteArrayInputStream(StaxUtils.toString(errorHeader).getBytes(StandardCharsets.UTF_8)));
+
+        Element error = (Element) document.getElementsByTagNameNS(Constants.EBMS_NAMESPACE, "Error").item(0);
+        Assert.assertEquals(error.getAttribute("errorCode"), "EBMS:0009");
+        Assert.assertEquals(error.getAttribute("refToMessageInError"), "message@oxalis");
+        Assert.assertEquals(error.getAttribute("shortDescription"), "InvalidHeader");
+        Assert.assertEquals(error.getAttribute("severity"), "error");
+        Assert.assertEquals(DOMUtils.getContent(
+                DOMUtils.getFirstChildWithName(error, Constants.EBMS_NAMESPACE, "ErrorDetail")), "Invalid header");
+    }
+
+    private ReferenceType unmarshalReference(Element reference) {
+        try {
+            return jaxbContext.createUnmarshaller().unmarshal(reference, ReferenceType.class).getValue();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String marshal(Object object) throws Exception {
+        StringWriter writer = new StringWriter();
+        jaxbContext.createMarshaller().marshal(object, writer);
+        return writer.toString();
+    }
+
+    private Document getSecurityHeader() throws Exception {
+        try (InputStream is = getClass().getResourceAsStream("/security-header.xml")) {
+            return StaxUtils.read(is);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package no.difi.oxalis.as4.util;
+
+import com.google.common.io.ByteStreams;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+public class BoundedGzipInputStreamTest {
+
+    @Test
+    public void equivalentToGzipInputStream() throws Exception {
+        Random random = new Random(20191021);
+
+        for (int i = 0; i < 50; i++) {
+            byte[] content = new byte[random.nextInt(512 * 1024)];
+            // Mix of incompressible and compressible content
+            random.nextBytes(content);
+            for (int j = 0; j < content.length / 2; j++) {
+                content[random.nextInt(content.length)] = 'a';
+            }
+
+            byte[] compressed = gzip(content);
+            if (random.nextBoolean()) {
+                // Concatenated members
+                compressed = concat(compressed, gzip(content));
+            }
+
+            Assert.assertEquals(
+                    ByteStreams.toByteArray(new BoundedGzipInputStream(new ByteArrayInputStream(compressed), -1, -1)),
+                    ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+        }
+    }
+
+    @Test(expectedExceptions = ZipException.class)
+    public void rejectsExceedingSize() throws Exception {
+        byte[] compressed = gzip(new byte[10 * 1024 * 1024]);
+        ByteStreams.exhaust(new BoundedGzipInputStream(new ByteArrayInputStream(compressed), 1024 * 1024, -1));
+    }
+
+    @Test(expectedExceptions = ZipException.class)
+    public void rejectsExceedingRatio() throws Exception {
+        byte[] compressed = gzip(new byte[10 * 1024 * 1024]);
+        ByteStreams.exhaust(new BoundedGzipInputStream(new ByteArrayInputStream(compressed), -1, 100));
+    }
+
+    @Test(expectedExceptions = ZipException.class)
+    public void rejectsCorruptTrailer() throws Exception {
+        byte[] compressed = gzip("content".getBytes());
+        compressed[compressed.length - 5]++;
+        ByteStreams.exhaust(new BoundedGzipInputStream(new ByteArrayInputStream(compressed), -1, -1));
+    }
+
+    @Test(expectedExceptions = ZipException.class)
+    public void rejectsUncompressedContent() throws Exception {
+        new BoundedGzipInputStream(new ByteArrayInputStream("<Invoice/>".getBytes()), -1, -1);
+    }
+
+    private byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bos)) {
+            gzip.write(content);
+        }
+        return bos.toByteArray();
+    }
+
+    private byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
@@ -0,0 +1,65 @@
+package no.difi.oxalis.as4.util;
+
+import com.google.common.io.ByteStreams;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+public class GzipPassThroughInputStreamTest {
+
+    @Test
+    public void passesCompressedContentThrough() throws Exception {
+        byte[] content = new byte[3 * 1024 * 1024];
+        Random random = new Random(20191021);
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) "<Invoice>0123456789</Invoice>".charAt(random.nextInt(29));
+        }
+        byte[] compressed = gzip(content);
+
+        GzipPassThroughInputStream passThrough =
+                new GzipPassThroughInputStream(new ByteArrayInputStream(compressed), -1, -1);
+
+        Assert.assertEquals(ByteStreams.toByteArray(passThrough), compressed);
+        Assert.assertEquals(passThrough.getDecompressedSize(), (long) content.length);
+        Assert.assertEquals(passThrough.getDecompressedDigest(), MessageDigest.getInstance("SHA-256").digest(content));
+
+        Path path = Files.createTempFile("payload", ".gz");
+        try {
+            Files.write(path, compressed);
+            try (InputStream is = StoredPayload.newInputStream(path, passThrough.getDecompressedSize())) {
+                Assert.assertEquals(ByteStreams.toByteArray(is), content);
+            }
+
+            // Stored decompressed, also when the content looks like gzip
+            try (InputStream is = StoredPayload.newInputStream(path, -1)) {
+                Assert.assertEquals(ByteStreams.toByteArray(is), compressed);
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test(expectedExceptions = ZipException.class)
+    public void enforcesLimits() throws Exception {
+        byte[] compressed = gzip(new byte[10 * 1024 * 1024]);
+        ByteStreams.exhaust(new GzipPassThroughInputStream(new ByteArrayInputStream(compressed), 1024 * 1024, -1));
+    }
+
+    private byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bos)) {
+            gzip.write(content);
+        }
+        return bos.toByteArray();
+    }
+}
@@ -0,0 +1,46 @@
+package no.difi.oxalis.as4.util;
+
+import com.google.common.io.ByteStreams;
+import no.difi.vefa.peppol.common.model.Header;
+import no.difi.vefa.peppol.sbdh.SbdReader;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class LookaheadInputStreamTest {
+
+    @Test
+    public void replaysPayloadAfterReadingHeader() throws Exception {
+        char[] content = new char[4 * 1024 * 1024];
+        Arrays.fill(content, 'x');
+        byte[] sbd = getSimpleSbd().replace("<Payload></Payload>", "<Payload>" + new String(content) + "</Payload>")
+                .getBytes(StandardCharsets.UTF_8);
+
+        LookaheadInputStream lis = new LookaheadInputStream(new ByteArrayInputStream(sbd));
+
+        Header header;
+        try (SbdReader sbdReader = SbdReader.newInstance(lis)) {
+            header = sbdReader.getHeader();
+        }
+
+        Assert.assertNotNull(header.getIdentifier());
+        Assert.assertEquals(ByteStreams.toByteArray(lis.replay()), sbd);
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void rejectsReadingBeyondLimit() throws Exception {
+        LookaheadInputStream lis = new LookaheadInputStream(new ByteArrayInputStream(new byte[LookaheadInputStream.LOOKAHEAD_LIMIT + 1]));
+        ByteStreams.exhaust(lis);
+    }
+
+    private String getSimpleSbd() throws IOException {
+        try (InputStream is = getClass().getResourceAsStream("/simple-sbd.xml")) {
+            return new String(ByteStreams.toByteArray(is), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package no.difi.oxalis.as4.util;
+
+import no.difi.oxalis.as4.lang.OxalisAs4Exception;
+import org.apache.cxf.staxutils.StaxUtils;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.Messaging;
+import org.oasis_open.docs.ebxml_msg.ebms.v3_0.ns.core._200704.SignalMessage;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Element;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Random;
+
+public class MessagingReaderTest {
+
+    private static final String EB = "http://docs.oasis-open.org/ebxml-msg/ebms/v3.0/ns/core/200704/";
+
+    private final JAXBContext jaxbContext = Marshalling.getInstance();
+
+    @Test
+    public void userMessageEquivalentToJaxb() throws Exception {
+        assertEquivalent(userMessage(new Random(0), true));
+    }
+
+    @Test
+    public void randomUserMessagesEquivalentToJaxb() throws Exception {
+        Random random = new Random(20191021);
+
+        for (int i = 0; i < 250; i++) {
+            assertEquivalent(userMessage(random, random.nextBoolean()));
+        }
+    }
+
+    @Test
+    public void signalMessageEquivalentToJaxb() throws Exception {
+        Element messaging = parse("<eb:Messaging xmlns:eb=\"" + EB + "\"><eb:SignalMessage>" +
+                "<eb:MessageInfo><eb:Timestamp>2019-10-21T17:50:00.000Z</eb:Timestamp>" +
+                "<eb:MessageId>signal@oxalis</eb:MessageId><eb:RefToMessageId>user@oxalis</eb:RefToMessageId></eb:MessageInfo>" +
+                "<eb:Error category=\" Content \" errorCode=\"EBMS:0004\" origin=\"ebms\" refToMessageInError=\"user@oxalis\" " +
+                "severity=\"failure\" shortDescription=\"Other\">" +
+                "<eb:Description xml:lang=\"en\">Description</eb:Description><eb:ErrorDetail>Detail\n text</eb:ErrorDetail>" +
+                "</eb:Error></eb:SignalMessage></eb:Messaging>");
+
+        SignalMessage signalMessage = MessagingReader.readSignalMessage(
+                (Element) messaging.getElementsByTagNameNS(EB, "SignalMessage").item(0));
+
+        Assert.assertEquals(marshal(signalMessage), marshal(unmarshal(messaging).getSignalMessage().get(0)));
+        Assert.assertEquals(signalMessage.getError().get(0).getCategory(), "Content");
+    }
+
+    @Test(expectedExceptions = OxalisAs4Exception.class)
+    public void rejectsEbmsElementInOtherNamespace() throws Exception {
+        MessagingReader.read(parse("<eb:Messaging xmlns:eb=\"" + EB + "\" xmlns:x=\"urn:other\"><eb:UserMessage>" +
+                "<x:MessageInfo><x:MessageId>user@oxalis</x:MessageId></x:MessageInfo>" +
+                "</eb:UserMessage></eb:Messaging>"));
+    }
+
+    @Test(expectedExceptions = OxalisAs4Exception.class)
+    public void rejectsUnknownEbmsElement() throws Exception {
+        MessagingReader.read(parse("<eb:Messaging xmlns:eb=\"" + EB + "\"><eb:UserMessage>" +
+                "<eb:MessageInformation/></eb:UserMessage></eb:Messaging>"));
+    }
+
+    private void assertEquivalent(String xml) throws Exception {
+        Element messaging = parse(xml);
+        Assert.assertEquals(marshal(MessagingReader.read(messaging)), marshal(unmarshal(messaging)), xml);
+    }
+
+    private String userMessage(Random random, boolean complete) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<eb:Messaging xmlns:eb=\"").append(EB).append("\">");
+        sb.append("<eb:UserMessage").append(optional(random, complete, " mpc=\"urn:mpc\"")).append(">");
+
+        sb.append("<eb:MessageInfo><eb:Timestamp>").append(whitespace(random)).append("2019-10-21T17:50:")
+                .append(10 + random.nextInt(49)).append(".").append(100 + random.nextInt(899)).append("Z")
+                .append(whitespace(random)).append("</eb:Timestamp>")
+                .append("<eb:MessageId>").append(text(random)).append("@oxalis</eb:MessageId>")
+                .append(optional(random, complete, "<eb:RefToMessageId>" + text(random) + "</eb:RefToMessageId>"))
+                .append("</eb:MessageInfo>");
+
+        sb.append("<eb:PartyInfo>");
+        for (String party : new String[]{"From", "To"}) {
+            sb.append("<eb:").append(party).append(">");
+            for (int i = 0, n = 1 + random.nextInt(3); i < n; i++) {
+                sb.append("<eb:PartyId").append(optional(random, complete, " type=\"urn:type\"")).append(">")
+                        .append(text(random)).append("</eb:PartyId>");
+            }
+            sb.append("<eb:Role>").append(text(random)).append("</eb:Role></eb:").append(party).append(">");
+        }
+        sb.append("</eb:PartyInfo>");
+
+        sb.append("<eb:CollaborationInfo>")
+                .append(optional(random, complete, "<eb:AgreementRef type=\"t\" pmode=\"p\">" + text(random) + "</eb:AgreementRef>"))
+                .append("<eb:Service").append(optional(random, complete, " type=\"urn:service\"")).append(">")
+                .append(text(random)).append("</eb:Service>")
+                .append("<eb:Action>").append(whitespace(random)).append(text(random)).append(whitespace(random))
+                .append(text(random)).append("</eb:Action>")
+                .append("<eb:ConversationId>").append(whitespace(random)).append(text(random)).append("</eb:ConversationId>")
+                .append("</eb:CollaborationInfo>");
+
+        if (complete || random.nextBoolean()) {
+            sb.append("<eb:MessageProperties>");
+            for (int i = 0, n = random.nextInt(4); i < n; i++) {
+                sb.append("<eb:Property name=\"").append(text(random)).append("\">").append(text(random)).append("</eb:Property>");
+            }
+            sb.append("</eb:MessageProperties>");
+        }
+
+        if (complete || random.nextBoolean()) {
+            sb.append("<eb:PayloadInfo>");
+            for (int i = 0, n = 1 + random.nextInt(3); i < n; i++) {
+                sb.append("<eb:PartInfo href=\"").append(whitespace(random)).append("cid:").append(text(random)).append("\">")
+                        .append(optional(random, complete, "<eb:Schema location=\"urn:l\" version=\"1\" namespace=\"urn:n\"/>"))
+                        .append(optional(random, complete, "<eb:Description xml:lang=\"no\">" + text(random) + "</eb:Description>"))
+                        .append("<eb:PartProperties><eb:Property name=\"MimeType\">application/xml</eb:Property></eb:PartProperties>")
+                        .append("</eb:PartInfo>");
+            }
+            sb.append("</eb:PayloadInfo>");
+        }
+
+        sb.append("</eb:UserMessage></eb:Messaging>");
+        return sb.toString();
+    }
+
+    private String optional(Random random, boolean complete, String value) {
+        return complete || random.nextBoolean() ? value : "";
+    }
+
+    private String whitespace(Random random) {
+        return new String[]{"", " ", "\n  ", "\t"}[random.nextInt(4)];
+    }
+
+    private String text(Random random) {
+        String alphabet = "abcXYZ019-_.:/ æøå&<";
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0, n = 1 + random.nextInt(12); i < n; i++) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString().replace("&", "&amp;").replace("<", "&lt;");
+    }
+
+    private Element parse(String xml) throws Exception {
+        return StaxUtils.read(new StringReader(xml)).getDocumentElement();
+    }
+
+    private Messaging unmarshal(Element element) throws Exception {
+        return jaxbContext.createUnmarshaller().unmarshal(element, Messaging.class).getValue();
+    }
+
+    @SuppressWarnings("unchecked")
+    private String marshal(Object object) throws Exception {
+        StringWriter writer = new StringWriter();
+        jaxbContext.createMarshaller().marshal(
+                new JAXBElement<>(Constants.MESSAGING_QNAME, (Class<Object>) object.getClass(), object), writer);
+        return writer.toString();
+    }
+}
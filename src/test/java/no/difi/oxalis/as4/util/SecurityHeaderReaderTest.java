@@ -0,0 +1,37 @@
+package no.difi.oxalis.as4.util;
+
+import org.apache.cxf.staxutils.StaxUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class SecurityHeaderReaderTest {
+
+    @Test
+    public void readSecurityHeader() throws Exception {
+        SecurityHeader securityHeader = SecurityHeaderReader.read(getSecurityHeader().getDocumentElement());
+
+        Assert.assertEquals(new String(securityHeader.getSignatureValue(), StandardCharsets.UTF_8), "c2lnbmF0dXJl\ndmFsdWU=");
+
+        Assert.assertEquals(securityHeader.getReferenceList().size(), 2);
+        Assert.assertEquals(securityHeader.getReferenceList().get(0).getAttribute("URI"), "#id-1");
+        Assert.assertEquals(securityHeader.getReferenceList().get(1).getAttribute("URI"), "cid:attachedPayload");
+
+        Assert.assertEquals(
+                new String(securityHeader.getAttachmentDigest("cid:attachedPayload"), StandardCharsets.UTF_8),
+                "4vJ9A8Xc1D9fQ5Hc2qL8B0s3mV6nW7tY1uI0oP9aS2k=");
+        Assert.assertNull(securityHeader.getAttachmentDigest("cid:unknown"));
+
+        Assert.assertNotNull(securityHeader.getSenderCertificate());
+        Assert.assertTrue(securityHeader.getSenderCertificate().getSubjectDN().getName().contains("POP000000"));
+    }
+
+    private Document getSecurityHeader() throws Exception {
+        try (InputStream is = getClass().getResourceAsStream("/security-header.xml")) {
+            return StaxUtils.read(is);
+        }
+    }
+}